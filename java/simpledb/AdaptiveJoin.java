@@ -0,0 +1,413 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * AdaptiveJoin is an equi-join that chooses its algorithm while it runs,
+ * from the actual size of its build side (child1), rather than from
+ * estimates made when the plan was built.
+ * <p>
+ * It starts like HashEquiJoin, loading child1 into a hash table. Then:
+ * <ul>
+ * <li>if child1 ends within the build limit and is so small that looking
+ * each of its tuples up in an index costs fewer page reads than scanning
+ * child2, and child2 is an unprojected SeqScan of a BTreeFile or
+ * HashIndexFile keyed on the join field, child2 is never scanned: the
+ * join becomes an IndexNestedLoopJoin over the buffered tuples;</li>
+ * <li>if child1 ends within the build limit otherwise, child2 is scanned
+ * once and probes the hash table (an in-memory hash join);</li>
+ * <li>if child1 overflows the build limit, both inputs are partitioned by
+ * the hash of their join field into PARTITIONS temporary files, and each
+ * pair of partitions is joined in memory (a partitioned, "grace", hash
+ * join). A build partition that is still too big is joined a build-limit
+ * chunk at a time, rescanning its probe partition once per chunk.</li>
+ * </ul>
+ * The choice is logged through Debug and returned by getDecision, which
+ * JoinOptimizer's explain includes.
+ */
+public class AdaptiveJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of build tuples held in memory. */
+    public static final int DEFAULT_BUILD_LIMIT = HashEquiJoin.MAP_SIZE;
+    /** Number of partitions a join that overflows the build limit uses. */
+    static final int PARTITIONS = 32;
+
+    private JoinPredicate predicate;
+    private DbIterator child1, child2;
+    private final TupleDesc td1, td2, comboTD;
+    private final int buildLimit;
+
+    private transient String strategy;
+    private transient long buildTuples;
+    private transient boolean partitioned;
+    private transient int passes;
+
+    private transient HashMap<Field, ArrayList<Tuple>> map;
+    private transient IndexNestedLoopJoin indexJoin;
+    private transient TupleSource probe;
+    private transient Tuple t2;
+    private transient Iterator<Tuple> matches;
+
+    // partitioned join state
+    private transient File[] buildFiles, probeFiles;
+    private transient int[] buildCounts, probeCounts;
+    private transient int partition;
+    private transient SpillReader buildReader;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to join on; its operator must be EQUALS
+     * @param child1
+     *            The build side
+     * @param child2
+     *            The probe side
+     * @param buildLimit
+     *            The number of build tuples to hold in memory at most
+     */
+    public AdaptiveJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int buildLimit) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("AdaptiveJoin needs an equality predicate, not " + p.getOperator());
+        this.predicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.buildLimit = buildLimit;
+        td1 = child1.getTupleDesc();
+        td2 = child2.getTupleDesc();
+        comboTD = TupleDesc.merge(td1, td2);
+    }
+
+    public AdaptiveJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BUILD_LIMIT);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return predicate;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * @return the algorithm this join chose when it was last opened or
+     *         rewound, with the sizes it was chosen from, or null if it has
+     *         not been opened
+     */
+    public String getDecision() {
+        if (strategy == null)
+            return null;
+        String d = strategy + ", " + buildTuples + " build tuples";
+        if (partitioned)
+            d += ", " + PARTITIONS + " partitions, " + passes + " passes";
+        return d;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        super.open();
+        start();
+    }
+
+    public void close() {
+        super.close();
+        reset();
+        child1.close();
+        child2.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        reset();
+        child1.rewind();
+        child2.rewind();
+        start();
+    }
+
+    private void reset() {
+        if (indexJoin != null)
+            indexJoin.close();
+        indexJoin = null;
+        closeReaders();
+        deleteFiles(buildFiles);
+        deleteFiles(probeFiles);
+        buildFiles = probeFiles = null;
+        map = null;
+        t2 = null;
+        matches = null;
+    }
+
+    // read the build side and choose how to join
+    private void start() throws DbException, TransactionAbortedException {
+        map = new HashMap<Field, ArrayList<Tuple>>();
+        buildTuples = 0;
+        partitioned = false;
+        passes = 1;
+        boolean overflow = false;
+        while (child1.hasNext()) {
+            if (buildTuples == buildLimit) {
+                overflow = true;
+                break;
+            }
+            add(child1.next());
+            buildTuples++;
+        }
+
+        try {
+            if (buildTuples == 0) {
+                probe = null;
+                strategy = "empty build side";
+            } else if (overflow) {
+                partitionInputs();
+                strategy = "partitioned hash join";
+            } else if (useIndex()) {
+                ArrayList<Tuple> build = new ArrayList<Tuple>();
+                for (ArrayList<Tuple> l : map.values())
+                    build.addAll(l);
+                map = null;
+                SeqScan scan = (SeqScan) child2;
+                indexJoin = new IndexNestedLoopJoin(new JoinPredicate(predicate.getField1(), Predicate.Op.EQUALS,
+                        predicate.getField2()), new TupleIterator(td1, build), scan.getTransactionId(),
+                        scan.getTableId(), scan.getAlias(), scan.getPredicates());
+                indexJoin.open();
+                strategy = "index nested-loop join into " + scan.getTableName();
+            } else {
+                if (child2 instanceof SeqScan) {
+                    ((SeqScan) child2).setProbeKeys(predicate.getField2(), map.keySet());
+                    child2.rewind();
+                }
+                probe = new ChildSource(child2);
+                strategy = "in-memory hash join";
+            }
+        } catch (IOException e) {
+            throw new DbException("join spill failed: " + e.getMessage());
+        }
+        Debug.log("AdaptiveJoin on %s = %s: %s", td1.getFieldName(predicate.getField1()),
+                td2.getFieldName(predicate.getField2()), getDecision());
+    }
+
+    private void add(Tuple t) {
+        Field key = t.getField(predicate.getField1());
+        ArrayList<Tuple> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(key, list);
+        }
+        list.add(t);
+    }
+
+    // whether probing child2's index once per build tuple reads fewer pages
+    // than scanning child2
+    private boolean useIndex() {
+        if (!(child2 instanceof SeqScan) || ((SeqScan) child2).getColumns() != null)
+            return false;
+        DbFile file = Database.getCatalog().getDatabaseFile(((SeqScan) child2).getTableId());
+        return IndexNestedLoopJoin.canProbe(file, predicate.getField2(), Predicate.Op.EQUALS)
+                && buildTuples * JoinOptimizer.INDEX_PROBE_PAGES < file.numPages();
+    }
+
+    private static int partitionOf(Field key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (PARTITIONS - 1);
+    }
+
+    // write the buffered and remaining build tuples, then the probe tuples,
+    // to partition files
+    private void partitionInputs() throws IOException, DbException, TransactionAbortedException {
+        buildFiles = new File[PARTITIONS];
+        probeFiles = new File[PARTITIONS];
+        buildCounts = new int[PARTITIONS];
+        probeCounts = new int[PARTITIONS];
+        DataOutputStream[] out = openAll(buildFiles);
+        for (ArrayList<Tuple> l : map.values()) {
+            for (Tuple t : l)
+                write(out, buildCounts, predicate.getField1(), t);
+        }
+        map.clear();
+        while (child1.hasNext()) {
+            write(out, buildCounts, predicate.getField1(), child1.next());
+            buildTuples++;
+        }
+        closeAll(out);
+        if (child2 instanceof SeqScan) {
+            // keys from an earlier in-memory run would skip probe pages
+            ((SeqScan) child2).setProbeKeys(predicate.getField2(), null);
+            child2.rewind();
+        }
+        out = openAll(probeFiles);
+        while (child2.hasNext())
+            write(out, probeCounts, predicate.getField2(), child2.next());
+        closeAll(out);
+        partition = -1;
+        probe = null;
+        partitioned = true;
+        passes = 0;
+    }
+
+    private static DataOutputStream[] openAll(File[] files) throws IOException {
+        DataOutputStream[] out = new DataOutputStream[files.length];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = File.createTempFile("join", ".spill");
+            files[i].deleteOnExit();
+            out[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i])));
+        }
+        return out;
+    }
+
+    private static void closeAll(DataOutputStream[] out) throws IOException {
+        for (DataOutputStream o : out)
+            o.close();
+    }
+
+    private static void write(DataOutputStream[] out, int[] counts, int field, Tuple t) throws IOException {
+        int p = partitionOf(t.getField(field));
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+            t.getField(i).serialize(out[p]);
+        counts[p]++;
+    }
+
+    private static void deleteFiles(File[] files) {
+        if (files == null)
+            return;
+        for (File f : files) {
+            if (f != null)
+                f.delete();
+        }
+    }
+
+    private void closeReaders() {
+        if (probe instanceof SpillReader)
+            ((SpillReader) probe).close();
+        probe = null;
+        if (buildReader != null)
+            buildReader.close();
+        buildReader = null;
+    }
+
+    // load the next chunk of build tuples of a partitioned join, and start
+    // its probe partition over; false when every partition is done
+    private boolean nextChunk() throws IOException {
+        if (buildFiles == null || partition >= PARTITIONS)
+            return false;
+        if (probe != null)
+            ((SpillReader) probe).close();
+        probe = null;
+        while (buildReader == null || buildReader.remaining == 0) {
+            if (buildReader != null)
+                buildReader.close();
+            buildReader = null;
+            if (++partition == PARTITIONS) {
+                // done; later calls (hasNext after the end) must not read past the last partition
+                deleteFiles(buildFiles);
+                deleteFiles(probeFiles);
+                buildFiles = probeFiles = null;
+                return false;
+            }
+            if (buildCounts[partition] > 0 && probeCounts[partition] > 0)
+                buildReader = new SpillReader(buildFiles[partition], td1, buildCounts[partition]);
+        }
+        map.clear();
+        for (int n = 0; n < buildLimit && buildReader.remaining > 0; n++)
+            add(buildReader.next());
+        probe = new SpillReader(probeFiles[partition], td2, probeCounts[partition]);
+        passes++;
+        return true;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (indexJoin != null)
+            return indexJoin.hasNext() ? indexJoin.next() : null;
+        try {
+            while (true) {
+                if (matches != null && matches.hasNext()) {
+                    Tuple t1 = matches.next();
+                    Tuple t = new Tuple(comboTD);
+                    int n1 = td1.numFields();
+                    for (int i = 0; i < n1; i++)
+                        t.setField(i, t1.getField(i));
+                    for (int i = 0; i < td2.numFields(); i++)
+                        t.setField(n1 + i, t2.getField(i));
+                    return t;
+                }
+                matches = null;
+                t2 = probe == null ? null : probe.next();
+                if (t2 != null) {
+                    ArrayList<Tuple> l = map.get(t2.getField(predicate.getField2()));
+                    if (l != null)
+                        matches = l.iterator();
+                } else if (!nextChunk()) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("join spill failed: " + e.getMessage());
+        }
+    }
+
+    /** Tuples from a child or a partition file; next returns null at the end. */
+    private interface TupleSource {
+        Tuple next() throws IOException, DbException, TransactionAbortedException;
+    }
+
+    private static final class ChildSource implements TupleSource {
+        private final DbIterator child;
+
+        ChildSource(DbIterator child) {
+            this.child = child;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            return child.hasNext() ? child.next() : null;
+        }
+    }
+
+    private static final class SpillReader implements TupleSource {
+        private final DataInputStream in;
+        private final TupleDesc td;
+        int remaining;
+
+        SpillReader(File f, TupleDesc td, int count) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            this.td = td;
+            this.remaining = count;
+        }
+
+        public Tuple next() throws IOException {
+            if (remaining == 0)
+                return null;
+            remaining--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (java.text.ParseException e) {
+                throw new IOException(e.getMessage());
+            }
+            return t;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
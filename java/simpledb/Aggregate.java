@@ -42,23 +42,23 @@ public class Aggregate extends Operator {
         this.aggField = afield;
         this.grpField = gfield;
 
-        Type gtype;
-        gtype = (gfield == -1 ? null : child.getTupleDesc().getFieldType(gfield));
-
         this.op = aop;
 
-        // depending on aggregate column, create aggregator constructor
-        switch (child.getTupleDesc().getFieldType(afield)){
+        agg = newAggregator();
+        this.td = computeTupleDesc();
+    }
+
+    // depending on aggregate column, create aggregator constructor
+    private Aggregator newAggregator() {
+        Type gtype = (grpField == -1 ? null : child.getTupleDesc().getFieldType(grpField));
+        switch (child.getTupleDesc().getFieldType(aggField)){
             case INT_TYPE:
-                agg = new IntegerAggregator(grpField,gtype,aggField, op);
-                break;
+                return new IntegerAggregator(grpField,gtype,aggField, op);
             case STRING_TYPE:
-                agg = new StringAggregator(grpField,gtype,aggField, op);
-                break;
+                return new StringAggregator(grpField,gtype,aggField, op);
             default:
                 throw new IllegalArgumentException("Invalid Field Type! ");
         }
-        this.td = getTupleDesc();
     }
 
     /**
@@ -117,6 +117,8 @@ public class Aggregate extends Operator {
 	// some code goes here
         child.open();
         super.open();
+        // start from empty groups, so the aggregate can be closed and opened again
+        agg = newAggregator();
         while (child.hasNext()) {
             Tuple tup = child.next();
             agg.mergeTupleIntoGroup(tup);
@@ -160,6 +162,10 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
 	// some code goes here
+        return td;
+    }
+
+    private TupleDesc computeTupleDesc() {
         Type[] typeArr = null;
         String[] fieldArr = null;
 
@@ -201,6 +207,7 @@ public class Aggregate extends Operator {
     public void setChildren(DbIterator[] children) {
 	// some code goes here
         child = children[0];
+        td = computeTupleDesc();
     }
     
 }
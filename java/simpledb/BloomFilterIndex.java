@@ -0,0 +1,328 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BloomFilterIndex keeps one Bloom filter per page of a HeapFile for each
+ * column it has been asked to cover. A scan looking for a specific key can
+ * skip every page whose filter says the key is definitely absent.
+ * <p>
+ * Each column has its own target false-positive rate; its filter is sized
+ * for a page holding the maximum number of tuples. As with ZoneMap, filters
+ * only ever gain keys (deletes leave them alone), a page whose filter is
+ * unknown is always read, and an entry is written before its page.
+ * <p>
+ * The sidecar format is an int giving the number of covered columns, then
+ * for each column its field index (int), false-positive rate (double),
+ * number of bits (int) and number of hash functions (int). After that there
+ * is one entry per page: a byte that is 1 if the entry is known, then the
+ * bits of each column's filter.
+ *
+ * @see HeapFile#addBloomFilter(int, double)
+ * @see ZoneMap
+ */
+public class BloomFilterIndex {
+
+    /** Scans give up on probing with more keys than this; reading the page is cheaper. */
+    public static final int MAX_PROBE_KEYS = 1024;
+
+    private final File file;
+    private final int tuplesPerPage;
+    private int[] fields = new int[0];
+    private double[] fpps = new double[0];
+    private int[] numBits = new int[0];
+    private int[] numHashes = new int[0];
+    private int entrySize = 1;
+    private int headerSize = Type.INT_TYPE.getLen();
+    // entries.get(pageNo) holds one bit array per covered column, or null if unknown
+    private final ArrayList<byte[][]> entries = new ArrayList<byte[][]>();
+
+    /**
+     * Open the Bloom filters stored in the specified sidecar file, for a
+     * heap file whose pages hold up to tuplesPerPage tuples. A missing or
+     * unreadable sidecar means no column is covered.
+     */
+    public BloomFilterIndex(File f, int tuplesPerPage) {
+        this.file = f;
+        this.tuplesPerPage = Math.max(1, tuplesPerPage);
+        load();
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                int n = dis.readInt();
+                int[] fs = new int[n];
+                double[] ps = new double[n];
+                int[] ms = new int[n];
+                int[] ks = new int[n];
+                for (int i = 0; i < n; i++) {
+                    fs[i] = dis.readInt();
+                    ps[i] = dis.readDouble();
+                    ms[i] = dis.readInt();
+                    ks[i] = dis.readInt();
+                }
+                setColumns(fs, ps, ms, ks);
+                long numEntries = (file.length() - headerSize) / entrySize;
+                for (long p = 0; p < numEntries; p++) {
+                    boolean known = dis.readByte() == 1;
+                    byte[][] e = newEntry();
+                    for (int i = 0; i < e.length; i++)
+                        dis.readFully(e[i]);
+                    entries.add(known ? e : null);
+                }
+            } finally {
+                dis.close();
+            }
+        } catch (IOException e) {
+            setColumns(new int[0], new double[0], new int[0], new int[0]);
+            entries.clear();
+        }
+    }
+
+    private void setColumns(int[] fs, double[] ps, int[] ms, int[] ks) {
+        fields = fs;
+        fpps = ps;
+        numBits = ms;
+        numHashes = ks;
+        entrySize = 1;
+        headerSize = Type.INT_TYPE.getLen();
+        for (int i = 0; i < fs.length; i++) {
+            entrySize += ms[i] / 8;
+            headerSize += 3 * Type.INT_TYPE.getLen() + 8;
+        }
+    }
+
+    private byte[][] newEntry() {
+        byte[][] e = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++)
+            e[i] = new byte[numBits[i] / 8];
+        return e;
+    }
+
+    private int columnOf(int field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == field)
+                return i;
+        }
+        return -1;
+    }
+
+    /** @return true if no column is covered */
+    public boolean isEmpty() {
+        return fields.length == 0;
+    }
+
+    /** @return true if the specified field has a Bloom filter */
+    public boolean covers(int field) {
+        return columnOf(field) >= 0;
+    }
+
+    /**
+     * Start covering a column with the given false-positive rate. Every page
+     * becomes unknown again, since the entries change size; they are filled
+     * in as pages are written or scanned.
+     *
+     * @throws IllegalArgumentException if fpp is not strictly between 0 and 1
+     */
+    public synchronized void addColumn(int field, double fpp) throws IOException {
+        if (!(fpp > 0 && fpp < 1))
+            throw new IllegalArgumentException("false-positive rate must be in (0, 1): " + fpp);
+        int c = columnOf(field);
+        int[] fs = fields.clone();
+        double[] ps = fpps.clone();
+        int[] ms = numBits.clone();
+        int[] ks = numHashes.clone();
+        if (c < 0) {
+            c = fs.length;
+            fs = Arrays.copyOf(fs, c + 1);
+            ps = Arrays.copyOf(ps, c + 1);
+            ms = Arrays.copyOf(ms, c + 1);
+            ks = Arrays.copyOf(ks, c + 1);
+        }
+        // m = -n ln p / (ln 2)^2 bits and k = m/n ln 2 hashes, m rounded up to whole bytes
+        int m = (int) Math.ceil(-tuplesPerPage * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        m = Math.max(8, (m + 7) / 8 * 8);
+        fs[c] = field;
+        ps[c] = fpp;
+        ms[c] = m;
+        ks[c] = Math.max(1, (int) Math.round((double) m / tuplesPerPage * Math.log(2)));
+        setColumns(fs, ps, ms, ks);
+        entries.clear();
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            dos.writeInt(fields.length);
+            for (int i = 0; i < fields.length; i++) {
+                dos.writeInt(fields[i]);
+                dos.writeDouble(fpps[i]);
+                dos.writeInt(numBits[i]);
+                dos.writeInt(numHashes[i]);
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Hash a key to the 64 bits from which all of a filter's bit positions
+     * are derived (two independent 32-bit hashes, combined as h1 + i*h2).
+     */
+    static long hash(Field key) {
+        long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        return h;
+    }
+
+    private static boolean test(byte[] bits, int m, int k, long h) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < k; i++) {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % m;
+            if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static void set(byte[] bits, int m, int k, long h) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < k; i++) {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % m;
+            bits[bit >>> 3] |= (1 << (bit & 7));
+        }
+    }
+
+    private void add(byte[][] e, Tuple t) {
+        for (int i = 0; i < fields.length; i++)
+            set(e[i], numBits[i], numHashes[i], hash(t.getField(fields[i])));
+    }
+
+    /**
+     * Add the keys of a tuple that was just inserted into a page. If nothing
+     * was known about the page, it stays unknown.
+     */
+    public synchronized void include(int pageNo, Tuple t) {
+        if (isEmpty() || pageNo >= entries.size() || entries.get(pageNo) == null)
+            return;
+        add(entries.get(pageNo), t);
+    }
+
+    /**
+     * Add the keys of every tuple on a page, and make the page known.
+     * Called with the exact contents about to be written to disk.
+     */
+    public synchronized void include(HeapPage page) {
+        if (isEmpty())
+            return;
+        int pageNo = page.getId().pageNumber();
+        while (entries.size() <= pageNo)
+            entries.add(null);
+        byte[][] e = entries.get(pageNo);
+        if (e == null) {
+            e = newEntry();
+            entries.set(pageNo, e);
+        }
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            add(e, it.next());
+    }
+
+    /**
+     * Build the filters of a page a scan just read, if nothing was known
+     * about it yet. Only clean pages are used.
+     */
+    public synchronized void learn(HeapPage page) {
+        int pageNo = page.getId().pageNumber();
+        if (isEmpty() || page.isDirty() != null
+                || (pageNo < entries.size() && entries.get(pageNo) != null))
+            return;
+        include(page);
+    }
+
+    /**
+     * @return false if the page's filters prove that no tuple on it can
+     *   satisfy one of the EQUALS predicates, true otherwise
+     */
+    public synchronized boolean mayMatch(int pageNo, List<Predicate> preds) {
+        if (preds == null || isEmpty() || pageNo >= entries.size() || entries.get(pageNo) == null)
+            return true;
+        byte[][] e = entries.get(pageNo);
+        for (Predicate p : preds) {
+            int c = columnOf(p.getField());
+            if (c >= 0 && p.getOp() == Predicate.Op.EQUALS
+                    && !test(e[c], numBits[c], numHashes[c], hash(p.getOperand())))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * A set of keys to look for in one column, hashed once up front so each
+     * page costs only bit tests.
+     *
+     * @see SeqScan#setProbeKeys(int, Collection)
+     */
+    public static class Probe {
+        final int field;
+        final long[] hashes;
+
+        public Probe(int field, Collection<? extends Field> keys) {
+            this.field = field;
+            this.hashes = new long[keys.size()];
+            int i = 0;
+            for (Field k : keys)
+                hashes[i++] = hash(k);
+        }
+    }
+
+    /**
+     * @return false if the page's filter proves that none of the probe keys
+     *   is on it, true otherwise
+     */
+    public synchronized boolean mayContainAny(int pageNo, Probe probe) {
+        if (probe == null || isEmpty() || pageNo >= entries.size() || entries.get(pageNo) == null)
+            return true;
+        int c = columnOf(probe.field);
+        if (c < 0)
+            return true;
+        byte[] bits = entries.get(pageNo)[c];
+        for (long h : probe.hashes) {
+            if (test(bits, numBits[c], numHashes[c], h))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write the filters of one page to the sidecar file.
+     */
+    public synchronized void persist(int pageNo) throws IOException {
+        if (isEmpty())
+            return;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long end = headerSize + (long) (pageNo + 1) * entrySize;
+            if (raf.length() < end)
+                raf.setLength(end); // pages we skipped over read back as unknown
+            raf.seek(end - entrySize);
+
+            byte[][] e = pageNo < entries.size() ? entries.get(pageNo) : null;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(entrySize);
+            baos.write(e == null ? 0 : 1);
+            byte[][] bits = e == null ? newEntry() : e;
+            for (int i = 0; i < bits.length; i++)
+                baos.write(bits[i]);
+            raf.write(baos.toByteArray());
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -2,10 +2,18 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.LinkedHashSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -15,6 +23,17 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * A background writer thread trickles dirty pages to disk, coldest first,
+ * so that evictions usually find a clean page. Each round it logs the
+ * pages' changes and snapshots them under the buffer pool lock, then
+ * forces the log once and writes the snapshots outside the lock, sorted
+ * by table and page number, with runs of adjacent pages written together.
+ * A page is only marked clean if it did not change while it was being
+ * written. Pages are only modified under the buffer pool lock (see
+ * insertTuple and deleteTuple), so a snapshot never sees half an update.
+ * The thread starts when a page is dirtied and exits once there has been
+ * nothing to write for a while.
  * 
  * @Threadsafe, all fields are final
  */
@@ -32,6 +51,27 @@ public class BufferPool {
     private int numPages=16;
     private ConcurrentHashMap<PageId, Page> pageMap;
     private LRUCache lruCache;
+    /** For each cached page with logged changes that are not on disk yet,
+        the LSN of the first such change (its recLSN) */
+    private final ConcurrentHashMap<PageId, Long> recLSNs = new ConcurrentHashMap<PageId, Long>();
+
+    /** The background writer runs every WRITER_INTERVAL_MS and exits after
+        WRITER_IDLE_MS without dirty pages. */
+    private static final long WRITER_INTERVAL_MS = 50;
+    private static final long WRITER_IDLE_MS = 1000;
+    private volatile Thread writer = null; // protected by this
+    private volatile boolean stopped = false; // no writer runs once set
+    /** Pages the background writer is writing, with their recLSNs (or
+        LogFile.NO_LSN); protected by this */
+    private final HashMap<PageId, Long> writing = new HashMap<PageId, Long>();
+    /** For each transaction, the pages it has dirtied. A page may since
+        have been written or dirtied by another transaction, so users
+        check isDirty() before acting on it. */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> dirtiedBy = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+
+    // modification counters of tables; static so that they keep counting
+    // up when the pool is replaced by resetBufferPool
+    private static final ConcurrentHashMap<Integer, AtomicLong> tableVersions = new ConcurrentHashMap<Integer, AtomicLong>();
     
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -151,14 +191,22 @@ public class BufferPool {
         throws TransactionAbortedException, DbException {
         // some code goes here
     	if (!pageMap.containsKey(pid)) {
-            if (pageMap.size() == numPages)
-                evictPage();
-            pageMap.put(pid, Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
-            lruCache.put(pid);
-            pageMap.get(pid).setBeforeImage();
+            // the background writer walks lruCache under the pool's lock
+            synchronized (this) {
+                if (!pageMap.containsKey(pid)) {
+                    if (pageMap.size() == numPages)
+                        evictPage();
+                    pageMap.put(pid, Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
+                    lruCache.put(pid);
+                    pageMap.get(pid).setBeforeImage();
+                }
+            }
          }
-    	if (perm==Permissions.READ_WRITE)
+    	if (perm==Permissions.READ_WRITE) {
     		pageMap.get(pid).markDirty(true, tid);
+    		noteDirty(tid, pid);
+    		ensureWriter();
+    	}
     	return pageMap.get(pid);
     }
 
@@ -186,6 +234,47 @@ public class BufferPool {
         // not necessary for lab1|lab2
     }
 
+    /**
+     * Return the modification counter of a table. It changes whenever a
+     * tuple is inserted into or deleted from the table, when a transaction
+     * that did so commits or aborts, and when the table is added to the
+     * catalog, so anything computed from the table while the counter had a
+     * given value is still valid while it has that value.
+     *
+     * @see ResultCache
+     */
+    public static long getTableVersion(int tableId) {
+        AtomicLong v = tableVersions.get(tableId);
+        return v == null ? 0 : v.get();
+    }
+
+    /** Advance the modification counter of a table. */
+    static void tableChanged(int tableId) {
+        AtomicLong v = tableVersions.get(tableId);
+        if (v == null) {
+            AtomicLong fresh = new AtomicLong();
+            v = tableVersions.putIfAbsent(tableId, fresh);
+            if (v == null)
+                v = fresh;
+        }
+        v.incrementAndGet();
+    }
+
+    /**
+     * Return true if the specified transaction has changes to the specified
+     * table that it has not committed yet.
+     */
+    public boolean hasUncommittedWrites(TransactionId tid, int tableId) {
+        Set<PageId> pids = dirtiedBy.get(tid);
+        if (pids != null) {
+            for (PageId pid : pids) {
+                if (pid.getTableId() == tableId)
+                    return true;
+            }
+        }
+        return false;
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
@@ -204,6 +293,127 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        LogFile log = Database.getLogFile();
+        // results computed from the transaction's uncommitted writes are now stale
+        Set<PageId> written = dirtiedBy.get(tid);
+        if (written != null) {
+            HashSet<Integer> tables = new HashSet<Integer>();
+            for (PageId pid : written)
+                tables.add(pid.getTableId());
+            for (int tableId : tables)
+                tableChanged(tableId);
+        }
+        if (!commit) {
+            log.logAbort(tid);
+            return;
+        }
+        // NO FORCE: log the transaction's changes, but leave the pages dirty
+        synchronized (this) {
+            for (Page page : dirtyPagesOf(tid)) {
+                if (logChanges(page) != LogFile.NO_LSN)
+                    page.setBeforeImage();
+            }
+            dirtiedBy.remove(tid);
+        }
+        log.logCommit(tid);
+    }
+
+    // remember that tid dirtied the specified page
+    private void noteDirty(TransactionId tid, PageId pid) {
+        Set<PageId> pids = dirtiedBy.get(tid);
+        if (pids == null) {
+            Set<PageId> fresh = ConcurrentHashMap.<PageId>newKeySet();
+            pids = dirtiedBy.putIfAbsent(tid, fresh);
+            if (pids == null)
+                pids = fresh;
+        }
+        pids.add(pid);
+    }
+
+    /**
+     * Return the cached pages the specified transaction has dirtied that
+     * are still dirty on its behalf. Costs time proportional to the
+     * transaction's write set, not to the size of the pool. Caller holds
+     * the buffer pool lock.
+     */
+    private List<Page> dirtyPagesOf(TransactionId tid) {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        Set<PageId> pids = dirtiedBy.get(tid);
+        if (pids == null)
+            return pages;
+        for (PageId pid : pids) {
+            Page page = pageMap.get(pid);
+            if (page != null && tid.equals(page.isDirty()))
+                pages.add(page);
+        }
+        return pages;
+    }
+
+    /**
+     * Write an UPDATE record for a dirty page's changes since its before
+     * image, and stamp the page with the record's LSN.
+     *
+     * @return the LSN of the record, or LogFile.NO_LSN if the page has no
+     *   unlogged changes
+     */
+    private synchronized long logChanges(Page page) throws IOException {
+        long lsn = Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
+        if (lsn != LogFile.NO_LSN) {
+            page.setLSN(lsn);
+            recLSNs.putIfAbsent(page.getId(), lsn);
+        }
+        return lsn;
+    }
+
+    /**
+     * Return a copy of the dirty page table: for each cached page whose
+     * logged changes are not all on disk, the LSN of the oldest such
+     * change. Used by LogFile.logCheckpoint.
+     */
+    synchronized Map<PageId, Long> dirtyPageTable() {
+        HashMap<PageId, Long> table = new HashMap<PageId, Long>(recLSNs);
+        for (Map.Entry<PageId, Long> e : writing.entrySet()) {
+            Long recLSN = table.get(e.getKey());
+            if (e.getValue() != LogFile.NO_LSN && (recLSN == null || e.getValue() < recLSN))
+                table.put(e.getKey(), e.getValue());
+        }
+        return table;
+    }
+
+    /**
+     * Write every page whose recLSN is older than the specified LSN. The
+     * buffer pool lock is taken for one page at a time, so transactions
+     * can run between the writes.
+     */
+    void flushPagesOlderThan(long lsn) throws IOException {
+        for (Map.Entry<PageId, Long> e : dirtyPageTable().entrySet()) {
+            if (e.getValue() < lsn)
+                flushPage(e.getKey());
+        }
+    }
+
+    /**
+     * Throw away the changes the specified transaction made to cached pages
+     * that have not been logged yet, by writing the pages' before images
+     * (which are already logged) back to disk and dropping the cached
+     * copies. Used by LogFile.rollback.
+     */
+    synchronized void discardUnloggedChanges(TransactionId tid) throws IOException {
+        List<Page> pages = dirtyPagesOf(tid);
+        // write ahead: the changes in the before images must be in the log
+        // on disk first, once for the whole batch
+        long maxLSN = LogFile.NO_LSN;
+        for (Page page : pages)
+            maxLSN = Math.max(maxLSN, page.getLSN());
+        if (maxLSN != LogFile.NO_LSN)
+            Database.getLogFile().force(maxLSN);
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page.getBeforeImage());
+            lruCache.lruRemove(pid);
+            discardPage(pid);
+        }
+        dirtiedBy.remove(tid);
     }
 
     /**
@@ -221,7 +431,7 @@ public class BufferPool {
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
      */
-    public void insertTuple(TransactionId tid, int tableId, Tuple t)
+    public synchronized void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
@@ -229,9 +439,11 @@ public class BufferPool {
     	ArrayList<Page> pageList = file.insertTuple(tid, t);
     	
     	// Now let's insert all dirty pages back to BufferPool
+        tableChanged(tableId);
         for (Page p : pageList) {
             PageId pid = p.getId();
             p.markDirty(true, tid);
+            noteDirty(tid, pid);
             if (pageMap.containsKey(pid)) {// in the buffer
             	pageMap.replace(pid,p);
             	lruCache.refer(pid);
@@ -242,6 +454,7 @@ public class BufferPool {
         	   lruCache.put(pid);
            }
         }                 
+        ensureWriter();
 //        System.out.println("Buffer pool succeeds to insert tuple: Tid is" + tid.toString() + " Insert Tuple is" + ((IntField)(t.getField(0))).getValue());
     	
     }
@@ -259,17 +472,19 @@ public class BufferPool {
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
-    public  void deleteTuple(TransactionId tid, Tuple t)
+    public synchronized void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
 
         DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId() );
     	ArrayList<Page> pageList = file.deleteTuple(tid, t);
-        
+        tableChanged(file.getId());
+
         for (Page p : pageList) {
             PageId pid = p.getId();
             p.markDirty(true, tid);
+            noteDirty(tid, pid);
             if (pageMap.containsKey(pid)) {// in the cache
             	pageMap.replace(pid,p);
             	lruCache.refer(pid);
@@ -280,6 +495,7 @@ public class BufferPool {
         	   lruCache.put(pid);
            }
         }
+        ensureWriter();
     }
 
     /**
@@ -312,6 +528,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
     	pageMap.remove(pid);
+    	recLSNs.remove(pid);
     }
 
     /**
@@ -321,33 +538,206 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes her
         // not necessary for lab1
+    	awaitWrite(pid);
     	Page page = pageMap.get(pid);
     	if (page != null && page.isDirty() != null) {
+    		// write ahead: the page's changes must be in the log on disk first
+    		long lsn = logChanges(page);
+    		if (lsn != LogFile.NO_LSN)
+    			Database.getLogFile().force(lsn);
     		Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+    		recLSNs.remove(pid);
 //    		System.out.println("bufferpool FlushPage: write to disk " + pid);
     		page.markDirty(false, null);
     		page.setBeforeImage();
     	}
     }
 
+    // wait for the background writer to finish writing the specified
+    // page; caller holds the buffer pool lock
+    private void awaitWrite(PageId pid) throws IOException {
+        while (writing.containsKey(pid))
+            waitForWriter();
+    }
+
+    /**
+     * Wait for the background writer to finish every write in progress.
+     * No new write can start until the caller releases the buffer pool
+     * lock, so recovery can write pages directly without a background
+     * write landing after it. Callers must not hold the LogFile lock,
+     * which the writer needs to log pages.
+     */
+    synchronized void awaitWrites() throws IOException {
+        while (!writing.isEmpty())
+            waitForWriter();
+    }
+
+    private void waitForWriter() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for background write");
+        }
+    }
+
+    private void ensureWriter() {
+        if (writer != null || stopped)
+            return;
+        synchronized (this) {
+            if (writer == null && !stopped) {
+                writer = new Thread(new Runnable() {
+                        public void run() {
+                            writerLoop();
+                        }
+                    }, "BufferPool writer");
+                writer.setDaemon(true);
+                writer.start();
+            }
+        }
+    }
+
+    /**
+     * Stop the background writer for good, waiting for a batch it is
+     * writing to finish. Used when the pool is replaced, since the
+     * writer's pages are decoded against whatever catalog is current.
+     */
+    void stopWriter() {
+        stopped = true;
+        Thread w = writer;
+        if (w == null || w == Thread.currentThread())
+            return;
+        try {
+            w.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Body of the background writer thread. */
+    private void writerLoop() {
+        long idleSince = System.currentTimeMillis();
+        while (true) {
+            try {
+                Thread.sleep(WRITER_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    writer = null;
+                }
+                return;
+            }
+            // a pool replaced by Database.reset or resetBufferPool stops
+            // writing, so it cannot overwrite pages the new pool owns
+            if (stopped || Database.getBufferPool() != this) {
+                synchronized (this) {
+                    writer = null;
+                }
+                return;
+            }
+            try {
+                if (writeBackDirtyPages() > 0)
+                    idleSince = System.currentTimeMillis();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                if (System.currentTimeMillis() - idleSince > WRITER_IDLE_MS) {
+                    writer = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write up to an eighth of the pool's dirty pages to disk, least
+     * recently used first, as described in the class comment.
+     *
+     * @return the number of pages written
+     */
+    int writeBackDirtyPages() throws IOException {
+        ArrayList<Page> images = new ArrayList<Page>();
+        long maxLSN = LogFile.NO_LSN;
+        synchronized (this) {
+            int limit = Math.max(1, numPages / 8);
+            LinkedHashSet<PageId> coldestFirst = new LinkedHashSet<PageId>(lruCache.cache);
+            coldestFirst.addAll(pageMap.keySet());
+            for (PageId pid : coldestFirst) {
+                if (images.size() >= limit)
+                    break;
+                Page page = pageMap.get(pid);
+                if (page == null || page.isDirty() == null || writing.containsKey(pid))
+                    continue;
+                logChanges(page);
+                maxLSN = Math.max(maxLSN, page.getLSN());
+                page.setBeforeImage();
+                Long recLSN = recLSNs.remove(pid);
+                writing.put(pid, recLSN == null ? LogFile.NO_LSN : recLSN);
+                images.add(page.getBeforeImage());
+            }
+        }
+        if (images.isEmpty())
+            return 0;
+
+        boolean written = false;
+        try {
+            // write ahead, once for the whole batch
+            if (maxLSN != LogFile.NO_LSN)
+                Database.getLogFile().force(maxLSN);
+            Collections.sort(images, new Comparator<Page>() {
+                    public int compare(Page a, Page b) {
+                        PageId x = a.getId(), y = b.getId();
+                        if (x.getTableId() != y.getTableId())
+                            return x.getTableId() < y.getTableId() ? -1 : 1;
+                        return Integer.compare(x.pageNumber(), y.pageNumber());
+                    }
+                });
+            int start = 0;
+            for (int i = 1; i <= images.size(); i++) {
+                if (i < images.size() && adjacent(images.get(i - 1).getId(), images.get(i).getId()))
+                    continue;
+                List<Page> run = images.subList(start, i);
+                Database.getCatalog().getDatabaseFile(run.get(0).getId().getTableId()).writePages(run);
+                start = i;
+            }
+            written = true;
+        } finally {
+            synchronized (this) {
+                for (Page image : images) {
+                    PageId pid = image.getId();
+                    Long recLSN = writing.remove(pid);
+                    Page page = pageMap.get(pid);
+                    if (!written) {
+                        if (recLSN != LogFile.NO_LSN) {
+                            Long newer = recLSNs.get(pid);
+                            if (newer == null || recLSN < newer)
+                                recLSNs.put(pid, recLSN);
+                        }
+                    } else if (page != null && page.isDirty() != null
+                            && Arrays.equals(page.getPageData(), image.getPageData())) {
+                        page.markDirty(false, null);
+                    }
+                }
+                notifyAll();
+            }
+        }
+        return images.size();
+    }
+
+    private static boolean adjacent(PageId a, PageId b) {
+        return a.getTableId() == b.getTableId() && a.getClass() == b.getClass()
+                && a.pageNumber() + 1 == b.pageNumber();
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    	ConcurrentHashMap.KeySetView<PageId, Page> keySetView = pageMap.keySet();
-        Iterator<PageId> iterator = keySetView.iterator();
-        
-        while (iterator.hasNext()) {
-            PageId pid = iterator.next();
-            Page page = pageMap.get(pid);
-           //  output += key + "=>" + value + "; ";
-
-            if ((page.isDirty() != null) && (page.isDirty().equals(tid)))
-            	flushPage(pid);
-            
-        }
-
+        // the pages stay in the transaction's write set: their changes are
+        // still uncommitted
+        for (Page page : dirtyPagesOf(tid))
+            flushPage(page.getId());
     }
 
     /**
@@ -68,6 +68,8 @@ public class Catalog {
             pkeyFieldlist.set(tableNameList.indexOf(name), pkeyField);
             dbfileList.set(tableNameList.indexOf(name), file);
         }
+        // the file may hold different contents than one added before with this id
+        BufferPool.tableChanged(tableID);
     }
 
     public void addTable(DbFile file, String name) {
@@ -150,6 +152,10 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line has the form "name (field type [pk] [dict], ...) [storage]",
+     * where the optional storage word "columnar" stores the table in a
+     * ColumnarHeapFile instead of a HeapFile. In a columnar table, string
+     * fields annotated "dict" are dictionary-encoded.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -167,6 +173,7 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<Integer> encoded = new ArrayList<Integer>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -178,11 +185,13 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[i].trim().equals("dict") && types.get(types.size() - 1) == Type.STRING_TYPE)
+                            encoded.add(names.size() - 1);
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -190,7 +199,25 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String storage = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                File dataFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf;
+                if (storage.equals("") && encoded.isEmpty())
+                    tabHf = new HeapFile(dataFile, t);
+                else if (storage.equals("columnar")) {
+                    int[] encodedAr = new int[encoded.size()];
+                    for (int i = 0; i < encodedAr.length; i++)
+                        encodedAr[i] = encoded.get(i);
+                    tabHf = new ColumnarHeapFile(dataFile, t, encodedAr);
+                } else if (storage.equals("")) {
+                    System.out.println("Dictionary encoding needs columnar storage: " + name);
+                    System.exit(0);
+                    return;
+                } else {
+                    System.out.println("Unknown storage " + storage);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,287 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ColumnarHeapFile is a DbFile that, like HeapFile, stores an unordered
+ * collection of tuples on fixed-size pages, but uses the column-grouped
+ * PaxPage layout for each page. Its pages are identified by HeapPageIds.
+ * <p>
+ * Besides the usual full-tuple iterator, it can return just a subset of
+ * the fields, evaluating pushed-down predicates one column at a time, which
+ * is where the layout pays off for wide tables.
+ * <p>
+ * STRING_TYPE fields can be dictionary-encoded: each such field has a
+ * StringDictionary in a sidecar file ("name.dat.dict3" for field 3) and
+ * pages store 4-byte codes instead of padded strings. Run-length encoding
+ * is not used, since PaxPage needs every slot at a fixed offset to update
+ * tuples in place.
+ * <p>
+ * A table is stored this way when its line in the catalog file ends with
+ * the word "columnar"; fields annotated "dict" are dictionary-encoded.
+ *
+ * @see PaxPage
+ * @see Catalog#loadSchema(String)
+ */
+public class ColumnarHeapFile implements DbFile {
+
+    private final File file;
+    private final TupleDesc td;
+    private final int tableID;
+    private final StringDictionary[] dicts;
+
+    /**
+     * Constructs a columnar heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            heap file.
+     */
+    public ColumnarHeapFile(File f, TupleDesc td) {
+        this.file = f;
+        this.td = td;
+        this.tableID = getId();
+        this.dicts = new StringDictionary[td.numFields()];
+    }
+
+    /**
+     * Constructs a columnar heap file whose specified STRING_TYPE fields are
+     * dictionary-encoded. A file must always be opened with the same set of
+     * encoded fields, since they determine its page layout.
+     *
+     * @param encodedFields indexes of the fields to dictionary-encode
+     * @throws IllegalArgumentException if one of them is not a STRING_TYPE field
+     * @throws IOException if a dictionary cannot be read
+     */
+    public ColumnarHeapFile(File f, TupleDesc td, int[] encodedFields) throws IOException {
+        this(f, td);
+        for (int j : encodedFields) {
+            if (td.getFieldType(j) != Type.STRING_TYPE)
+                throw new IllegalArgumentException("only STRING_TYPE fields can be dictionary-encoded: " + j);
+            dicts[j] = new StringDictionary(new File(f.getPath() + ".dict" + j));
+        }
+    }
+
+    /**
+     * @return for each field, its dictionary, or null if it is not encoded
+     */
+    StringDictionary[] getDictionaries() {
+        return dicts;
+    }
+
+    /**
+     * Returns the File backing this ColumnarHeapFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this file, computed the same way
+     * as HeapFile's.
+     */
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pageSize = BufferPool.getPageSize();
+        if (this.getId() != pid.getTableId())
+            throw new IllegalArgumentException();
+        if (pid.pageNumber() < 0 || pid.pageNumber() >= this.numPages())
+            throw new IllegalArgumentException();
+
+        byte[] byteStream = new byte[pageSize];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek((long) pageSize * pid.pageNumber());
+                raf.readFully(byteStream);
+            } finally {
+                raf.close();
+            }
+            return new PaxPage((HeapPageId) pid, byteStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek((long) BufferPool.getPageSize() * page.getId().pageNumber());
+            raf.write(page.getPageData());
+        } finally {
+            raf.close();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        int pageSize = BufferPool.getPageSize();
+        byte[] run = new byte[pageSize * pages.size()];
+        for (int i = 0; i < pages.size(); i++)
+            System.arraycopy(pages.get(i).getPageData(), 0, run, i * pageSize, pageSize);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek((long) pageSize * pages.get(0).getId().pageNumber());
+            raf.write(run);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    public int numPages() {
+        return (int) (file.length() / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("Tuple Desc not match!");
+
+        HeapPageId pid = null;
+        int pageNo;
+        for (pageNo = 0; pageNo < numPages(); pageNo++) {
+            pid = new HeapPageId(tableID, pageNo);
+            PaxPage p = (PaxPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            if (p.getNumEmptySlots() > 0)
+                break;
+        }
+
+        // if all pages are full, then create a new page
+        if (pageNo == numPages()) {
+            pid = new HeapPageId(tableID, pageNo);
+            writePage(new PaxPage(pid, PaxPage.createEmptyPageData()));
+        }
+
+        PaxPage p = (PaxPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        p.insertTuple(t);
+        p.markDirty(true, tid);
+        ArrayList<Page> pageArr = new ArrayList<Page>();
+        pageArr.add(p);
+        return pageArr;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        if (t.getRecordId() == null)
+            throw new DbException("RecordID not set");
+        PageId pid = t.getRecordId().getPageId();
+        if (pid.getTableId() != tableID)
+            throw new DbException("Table ID not match!");
+        if (pid.pageNumber() < 0 || pid.pageNumber() >= numPages())
+            throw new DbException("Page number illegal!");
+
+        PaxPage p = (PaxPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        p.deleteTuple(t);
+        ArrayList<Page> pageArr = new ArrayList<Page>();
+        pageArr.add(p);
+        return pageArr;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] all = new int[td.numFields()];
+        for (int j = 0; j < all.length; j++)
+            all[j] = j;
+        return new ColumnarFileIterator(this, tid, all, td, null);
+    }
+
+    /**
+     * Returns an iterator over the given fields of the tuples of this file
+     * that satisfy all of the given predicates. Predicates are evaluated on
+     * the page bytes, one column at a time, before any tuple is built; only
+     * the requested fields are ever decoded.
+     *
+     * @param tid the transaction reading the file
+     * @param columns indexes of the fields to return, in output order
+     * @param preds predicates over this file's fields (which need not be
+     *   among the returned ones), or null for none
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] columns, List<Predicate> preds) {
+        return new ColumnarFileIterator(this, tid, columns, project(td, columns), preds);
+    }
+
+    /**
+     * @return the TupleDesc of the given fields of td, in the given order
+     */
+    static TupleDesc project(TupleDesc td, int[] columns) {
+        Type[] types = new Type[columns.length];
+        String[] names = new String[columns.length];
+        for (int k = 0; k < columns.length; k++) {
+            types[k] = td.getFieldType(columns[k]);
+            names[k] = td.getFieldName(columns[k]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    private class ColumnarFileIterator extends AbstractDbFileIterator {
+
+        private final ColumnarHeapFile f;
+        private final TransactionId tid;
+        private final int[] columns;
+        private final TupleDesc projected;
+        private final List<Predicate> preds;
+
+        private Iterator<Tuple> pageIter;
+        private int curPageNo = -1;
+        private boolean open = false;
+
+        public ColumnarFileIterator(ColumnarHeapFile f, TransactionId tid, int[] columns,
+                TupleDesc projected, List<Predicate> preds) {
+            this.f = f;
+            this.tid = tid;
+            this.columns = columns;
+            this.projected = projected;
+            this.preds = preds;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            curPageNo = -1;
+            pageIter = null;
+            open = true;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (!open)
+                return null;
+            while (pageIter == null || !pageIter.hasNext()) {
+                if (++curPageNo >= f.numPages())
+                    return null;
+                PaxPage page = (PaxPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(f.tableID, curPageNo), Permissions.READ_ONLY);
+                pageIter = page.iterator(columns, projected, preds);
+            }
+            return pageIter.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            pageIter = null;
+            curPageNo = -1;
+            open = false;
+        }
+    }
+}
@@ -17,6 +17,7 @@ public class Database {
     private static AtomicReference<Database> _instance = new AtomicReference<Database>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final ResultCache _resultcache;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
@@ -24,6 +25,7 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _resultcache = new ResultCache();
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -50,6 +52,11 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the query result cache of the static Database instance */
+    public static ResultCache getResultCache() {
+        return _instance.get()._resultcache;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
@@ -59,6 +66,7 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            _instance.get()._bufferpool.stopWriter();
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
@@ -75,6 +83,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        _instance.get()._bufferpool.stopWriter();
         _instance.set(new Database());
     }
 
@@ -28,6 +28,20 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push a run of pages with consecutive page numbers to disk. Files that
+     * store page n at offset n * page size override this to write the run
+     * with a single call; by default the pages are written one at a time.
+     *
+     * @param pages The pages to write, in increasing page number order,
+     *              with no gaps.
+     * @throws IOException if the write fails
+     */
+    public default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -88,4 +102,10 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Returns the number of pages in this DbFile, e.g. to estimate the cost
+     * of scanning it.
+     */
+    public int numPages();
 }
@@ -0,0 +1,336 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Distinct implements SELECT DISTINCT: it returns the distinct combinations
+ * of values of some fields of its child's tuples, each once.
+ * <p>
+ * Each tuple's values of those fields are encoded into a compact byte key,
+ * and keys are kept in a hash set whose size is bounded by a memory budget.
+ * A key not in the set is output as soon as it is seen. Once the budget is
+ * used up, keys not in the set are instead appended to one of
+ * SPILL_PARTITIONS temporary files, chosen by the key's hash. A spilled key
+ * cannot equal any key in the set (those are dropped as duplicates), so
+ * when the input is exhausted each partition can be deduplicated on its
+ * own, in the same way, with a new set and the next bits of the hash
+ * choosing sub-partitions. Memory use therefore stays near the budget
+ * however many distinct keys there are.
+ */
+public class Distinct extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default bound on the memory held by keys, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 32L << 20;
+    /** Number of partitions keys spill to. */
+    static final int SPILL_PARTITIONS = 16;
+    private static final int PARTITION_BITS = 4;
+    /** Estimated bytes of overhead per key held in the set. */
+    private static final int KEY_OVERHEAD = 80;
+
+    private DbIterator child;
+    private final int[] fields;
+    private final TupleDesc td;
+    private final long budget;
+
+    // the current pass: over the child at level 0, or over one spilled
+    // partition at a deeper level
+    private transient HashSet<Key> seen;
+    private transient long used;
+    private transient int level;
+    private transient DataInputStream partitionIn;
+    private transient File partitionFile;
+    private transient File[] spillFiles;
+    private transient DataOutputStream[] spillOut;
+    private transient ArrayDeque<File> pending; // partitions not processed yet
+    private transient ArrayDeque<Integer> pendingLevels;
+    private transient long spilled;
+
+    /**
+     * Constructor.
+     *
+     * @param fields
+     *            the fields of the child's tuples to return distinct
+     *            combinations of, in output order
+     * @param memoryBudget
+     *            roughly how many bytes of keys to hold in memory
+     * @param child
+     *            the child operator
+     */
+    public Distinct(int[] fields, long memoryBudget, DbIterator child) {
+        this.fields = fields.clone();
+        this.budget = memoryBudget;
+        this.child = child;
+        this.td = ColumnarHeapFile.project(child.getTupleDesc(), fields);
+    }
+
+    /** Distinct combinations of the given fields, with the default memory budget. */
+    public Distinct(int[] fields, DbIterator child) {
+        this(fields, DEFAULT_MEMORY_BUDGET, child);
+    }
+
+    /** Distinct tuples of the child, with the default memory budget. */
+    public Distinct(DbIterator child) {
+        this(allFields(child.getTupleDesc()), DEFAULT_MEMORY_BUDGET, child);
+    }
+
+    private static int[] allFields(TupleDesc td) {
+        int[] all = new int[td.numFields()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = i;
+        return all;
+    }
+
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    /** @return the number of keys written to spill files since the operator was opened */
+    public long spilledKeys() {
+        return spilled;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        discardSpills();
+        seen = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        discardSpills();
+        reset();
+    }
+
+    private void reset() {
+        seen = new HashSet<Key>();
+        used = 0;
+        level = 0;
+        spilled = 0;
+        pending = new ArrayDeque<File>();
+        pendingLevels = new ArrayDeque<Integer>();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        try {
+            while (true) {
+                byte[] k;
+                while ((k = nextKey()) != null) {
+                    Key key = new Key(k);
+                    if (seen.contains(key))
+                        continue;
+                    // past the last level there are no hash bits left to split on
+                    if (used + k.length + KEY_OVERHEAD <= budget || level * PARTITION_BITS >= 32) {
+                        seen.add(key);
+                        used += k.length + KEY_OVERHEAD;
+                        return decode(k);
+                    }
+                    spill(key);
+                }
+                if (!nextPass())
+                    return null;
+            }
+        } catch (IOException e) {
+            throw new DbException("distinct spill failed: " + e.getMessage());
+        }
+    }
+
+    // the next key of the current pass, or null at its end
+    private byte[] nextKey() throws IOException, DbException, TransactionAbortedException {
+        if (partitionIn == null)
+            return child.hasNext() ? encode(child.next()) : null;
+        int len;
+        try {
+            len = partitionIn.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] k = new byte[len];
+        partitionIn.readFully(k);
+        return k;
+    }
+
+    private void spill(Key key) throws IOException {
+        if (spillOut == null) {
+            spillFiles = new File[SPILL_PARTITIONS];
+            spillOut = new DataOutputStream[SPILL_PARTITIONS];
+        }
+        // partitions take the hash's high bits; HashSet mostly uses the low ones
+        int p = (key.hash >>> (32 - (level + 1) * PARTITION_BITS)) & (SPILL_PARTITIONS - 1);
+        if (spillOut[p] == null) {
+            spillFiles[p] = File.createTempFile("distinct", ".spill");
+            spillFiles[p].deleteOnExit();
+            spillOut[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFiles[p])));
+        }
+        spillOut[p].writeInt(key.bytes.length);
+        spillOut[p].write(key.bytes);
+        spilled++;
+    }
+
+    // finish the current pass and start on the next spilled partition, if any
+    private boolean nextPass() throws IOException {
+        if (spillOut != null) {
+            for (int p = 0; p < SPILL_PARTITIONS; p++) {
+                if (spillOut[p] != null) {
+                    spillOut[p].close();
+                    pending.push(spillFiles[p]);
+                    pendingLevels.push(level + 1);
+                }
+            }
+            spillOut = null;
+            spillFiles = null;
+        }
+        closePartition();
+        seen = new HashSet<Key>();
+        used = 0;
+        if (pending.isEmpty())
+            return false;
+        partitionFile = pending.pop();
+        level = pendingLevels.pop();
+        partitionIn = new DataInputStream(new BufferedInputStream(new FileInputStream(partitionFile)));
+        return true;
+    }
+
+    private void closePartition() {
+        if (partitionIn != null) {
+            try {
+                partitionIn.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            partitionFile.delete();
+        }
+        partitionIn = null;
+        partitionFile = null;
+    }
+
+    private void discardSpills() {
+        closePartition();
+        if (spillOut != null) {
+            for (int p = 0; p < SPILL_PARTITIONS; p++) {
+                if (spillOut[p] != null) {
+                    try {
+                        spillOut[p].close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    spillFiles[p].delete();
+                }
+            }
+        }
+        spillOut = null;
+        spillFiles = null;
+        if (pending != null) {
+            for (File f : pending)
+                f.delete();
+            pending.clear();
+            pendingLevels.clear();
+        }
+    }
+
+    // INT_TYPE fields take 4 bytes, STRING_TYPE fields a 4-byte length and
+    // their UTF-8 bytes
+    private byte[] encode(Tuple t) {
+        int len = 0;
+        byte[][] strings = null;
+        for (int i = 0; i < fields.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                len += 4;
+            } else {
+                if (strings == null)
+                    strings = new byte[fields.length][];
+                strings[i] = ((StringField) t.getField(fields[i])).getValue().getBytes(StandardCharsets.UTF_8);
+                len += 4 + strings[i].length;
+            }
+        }
+        byte[] k = new byte[len];
+        int off = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                off = putInt(k, off, ((IntField) t.getField(fields[i])).getValue());
+            } else {
+                off = putInt(k, off, strings[i].length);
+                System.arraycopy(strings[i], 0, k, off, strings[i].length);
+                off += strings[i].length;
+            }
+        }
+        return k;
+    }
+
+    private static int putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+        return off + 4;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+                | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private Tuple decode(byte[] k) {
+        Tuple t = new Tuple(td);
+        int off = 0;
+        for (int i = 0; i < fields.length; i++) {
+            int v = getInt(k, off);
+            off += 4;
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                t.setField(i, new IntField(v));
+            } else {
+                t.setField(i, new StringField(new String(k, off, v, StandardCharsets.UTF_8), Type.STRING_LEN));
+                off += v;
+            }
+        }
+        return t;
+    }
+
+    /** An encoded key, with a well-mixed hash whose bits choose partitions. */
+    private static final class Key {
+        final byte[] bytes;
+        final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            long h = Arrays.hashCode(bytes) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+            h *= 0xBF58476D1CE4E5B9L;
+            this.hash = (int) (h ^ (h >>> 32));
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+}
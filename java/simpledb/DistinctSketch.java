@@ -0,0 +1,74 @@
+package simpledb;
+
+/**
+ * DistinctSketch estimates the number of distinct values added to it in a
+ * fixed 4KB of memory, using the HyperLogLog algorithm (Flajolet et al.):
+ * each value is hashed, the hash picks one of 4096 registers, and each
+ * register remembers the longest run of leading zero bits seen among the
+ * hashes that picked it. The standard error of the estimate is about 1.6%.
+ * <p>
+ * Adding a value that was already added never changes the sketch, so the
+ * estimate does not depend on how often each value occurs.
+ *
+ * @see TableStats
+ */
+public class DistinctSketch {
+
+    private static final int P = 12;
+    private static final int M = 1 << P;
+
+    private final byte[] registers = new byte[M];
+
+    /** Add a value to the sketch. */
+    public void add(Field f) {
+        if (f instanceof IntField)
+            addHash(mix(((IntField) f).getValue()));
+        else if (f instanceof StringField)
+            addHash(mix(((StringField) f).getValue().hashCode()));
+        else
+            addHash(mix(f.hashCode()));
+    }
+
+    private void addHash(long h) {
+        int idx = (int) (h >>> (64 - P));
+        int rank = Long.numberOfLeadingZeros((h << P) | (1L << (P - 1))) + 1;
+        if (rank > registers[idx])
+            registers[idx] = (byte) rank;
+    }
+
+    // spread the bits of a 32-bit value over a 64-bit hash (the finalizer
+    // of MurmurHash3)
+    private static long mix(int v) {
+        long h = v;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** @return the estimated number of distinct values added */
+    public double estimate() {
+        double sum = 0.0;
+        int zeros = 0;
+        for (int i = 0; i < M; i++) {
+            sum += Math.pow(2.0, -registers[i]);
+            if (registers[i] == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1.0 + 1.079 / M);
+        double e = alpha * M * M / sum;
+        if (e <= 2.5 * M && zeros > 0)
+            e = M * Math.log((double) M / zeros); // few values: count empty registers
+        return e;
+    }
+
+    /** Add every value added to another sketch to this one. */
+    public void merge(DistinctSketch other) {
+        for (int i = 0; i < M; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+}
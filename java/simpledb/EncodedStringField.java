@@ -0,0 +1,75 @@
+package simpledb;
+
+/**
+ * A StringField read from a dictionary-encoded column. It only carries the
+ * value's code; the string itself is looked up the first time it is needed,
+ * typically when the field is printed or serialized for output.
+ * <p>
+ * Two EncodedStringFields from the same dictionary are compared for
+ * equality by code, and hash like the equivalent StringField using a hash
+ * the dictionary computed once per distinct value, so hash joins and
+ * GROUP BY over an encoded column never decode it.
+ *
+ * @see StringDictionary
+ */
+public class EncodedStringField extends StringField {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient StringDictionary dict;
+	private final int code;
+	private final int maxSize;
+	private String value;
+
+	public EncodedStringField(StringDictionary dict, int code, int maxSize) {
+		super(maxSize);
+		this.dict = dict;
+		this.code = code;
+		this.maxSize = maxSize;
+	}
+
+	/** @return the dictionary code of this value */
+	public int getCode() {
+		return code;
+	}
+
+	/** @return the dictionary this value's code belongs to */
+	public StringDictionary getDictionary() {
+		return dict;
+	}
+
+	@Override
+	public String getValue() {
+		if (value == null)
+			value = dict.decode(code);
+		return value;
+	}
+
+	@Override
+	public int hashCode() {
+		return dict.hashOf(code);
+	}
+
+	@Override
+	public boolean equals(Object field) {
+		if (field instanceof EncodedStringField && ((EncodedStringField) field).dict == dict)
+			return ((EncodedStringField) field).code == code;
+		return super.equals(field);
+	}
+
+	@Override
+	public boolean compare(Predicate.Op op, Field val) {
+		if (val instanceof EncodedStringField && ((EncodedStringField) val).dict == dict) {
+			if (op == Predicate.Op.EQUALS)
+				return ((EncodedStringField) val).code == code;
+			if (op == Predicate.Op.NOT_EQUALS)
+				return ((EncodedStringField) val).code != code;
+		}
+		return super.compare(op, val);
+	}
+
+	// codes mean nothing without the dictionary, so ship the plain string
+	private Object writeReplace() {
+		return new StringField(getValue(), maxSize);
+	}
+}
@@ -0,0 +1,459 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+
+/**
+ * Expression is a boolean condition on a tuple, built from comparisons of a
+ * field with a constant or with another field, combined with AND, OR and
+ * NOT; e.g. <tt>a &gt; 5 AND b = 'x' OR c &lt; d</tt> is
+ * <pre>
+ *     Expression.or(Expression.and(Expression.compare(0, Op.GREATER_THAN, new IntField(5)),
+ *                                  Expression.compare(1, Op.EQUALS, new StringField("x", Type.STRING_LEN))),
+ *                   Expression.compare(2, Op.LESS_THAN, 3))
+ * </pre>
+ * <p>
+ * An expression is evaluated by compiling it, for the TupleDesc of the
+ * tuples it will see. Compiling builds a tree of MethodHandles specialized
+ * for each node's operator and field types (an INT_TYPE comparison with a
+ * constant compares raw ints, and never goes through Field.compare's
+ * switch), then defines a hidden class whose eval invokes that tree from a
+ * static final field. Every compiled expression has a class of its own, so
+ * the JIT treats its tree as a constant and inlines all of it into eval;
+ * no call site is shared with another expression. Filter compiles both
+ * Expressions and single Predicates this way.
+ *
+ * @see Filter
+ */
+public abstract class Expression implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** A compiled expression. */
+    public interface Evaluator {
+        /** @return true if t satisfies the expression */
+        boolean eval(Tuple t);
+    }
+
+    /**
+     * Compile this expression for tuples with the specified TupleDesc.
+     *
+     * @throws IllegalArgumentException
+     *             if the expression refers to a field td does not have, or
+     *             compares values of different types
+     */
+    public Evaluator compile(TupleDesc td) {
+        return define(handle(td));
+    }
+
+    /** @return a handle of type (Tuple)boolean that evaluates this expression */
+    abstract MethodHandle handle(TupleDesc td);
+
+    /** @return the conjunction of the terms; true if there are none */
+    public static Expression and(Expression... terms) {
+        return new Junction(true, terms);
+    }
+
+    /** @return the disjunction of the terms; false if there are none */
+    public static Expression or(Expression... terms) {
+        return new Junction(false, terms);
+    }
+
+    /** @return the negation of e */
+    public static Expression not(Expression e) {
+        return new Not(e);
+    }
+
+    /** @return the comparison <tt>field op constant</tt> */
+    public static Expression compare(int field, Predicate.Op op, Field constant) {
+        return new Compare(field, op, constant, -1);
+    }
+
+    /** @return the comparison <tt>field1 op field2</tt> of two fields of a tuple */
+    public static Expression compare(int field1, Predicate.Op op, int field2) {
+        return new Compare(field1, op, null, field2);
+    }
+
+    /**
+     * @return the expression equivalent to p; if p's operand is a Parameter,
+     *         the expression sees the value bound to it when it is evaluated
+     */
+    public static Expression of(Predicate p) {
+        Parameter param = p.getParameter();
+        return compare(p.getField(), p.getOp(), param != null ? param : p.getOperand());
+    }
+
+    private static final class Junction extends Expression {
+        private static final long serialVersionUID = 1L;
+        private final boolean and;
+        private final Expression[] terms;
+
+        Junction(boolean and, Expression[] terms) {
+            // flatten nested junctions of the same kind
+            ArrayList<Expression> flat = new ArrayList<Expression>();
+            for (Expression e : terms) {
+                if (e instanceof Junction && ((Junction) e).and == and)
+                    flat.addAll(Arrays.asList(((Junction) e).terms));
+                else
+                    flat.add(e);
+            }
+            this.and = and;
+            this.terms = flat.toArray(new Expression[flat.size()]);
+        }
+
+        MethodHandle handle(TupleDesc td) {
+            if (terms.length == 0)
+                return and ? TRUE : FALSE;
+            // a chain of tests from the last term back, each short-circuiting
+            MethodHandle h = terms[terms.length - 1].handle(td);
+            for (int i = terms.length - 2; i >= 0; i--) {
+                MethodHandle term = terms[i].handle(td);
+                h = and ? MethodHandles.guardWithTest(term, h, FALSE) : MethodHandles.guardWithTest(term, TRUE, h);
+            }
+            return h;
+        }
+
+        public String toString() {
+            if (terms.length == 0)
+                return and ? "TRUE" : "FALSE";
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < terms.length; i++) {
+                if (i > 0)
+                    sb.append(and ? " AND " : " OR ");
+                sb.append(terms[i]);
+            }
+            return sb.append(")").toString();
+        }
+    }
+
+    private static final class Not extends Expression {
+        private static final long serialVersionUID = 1L;
+        private final Expression e;
+
+        Not(Expression e) {
+            this.e = e;
+        }
+
+        MethodHandle handle(TupleDesc td) {
+            MethodHandle child = e.handle(td);
+            if (child == TRUE)
+                return FALSE;
+            if (child == FALSE)
+                return TRUE;
+            return MethodHandles.filterReturnValue(child, NOT);
+        }
+
+        public String toString() {
+            return "NOT " + e;
+        }
+    }
+
+    private static final class Compare extends Expression {
+        private static final long serialVersionUID = 1L;
+        private final int field;
+        private final Predicate.Op op;
+        private final Field constant; // null for a comparison of two fields
+        private final int field2;
+
+        Compare(int field, Predicate.Op op, Field constant, int field2) {
+            this.field = field;
+            this.op = op;
+            this.constant = constant;
+            this.field2 = field2;
+        }
+
+        MethodHandle handle(TupleDesc td) {
+            if (field < 0 || field >= td.numFields() || (constant == null && (field2 < 0 || field2 >= td.numFields())))
+                throw new IllegalArgumentException("no such field in " + this);
+            Type type = td.getFieldType(field);
+            Type other = constant == null ? td.getFieldType(field2) : constant.getType();
+            if (type != other)
+                throw new IllegalArgumentException("cannot compare " + type + " with " + other + " in " + this);
+
+            if (constant == null) {
+                if (type != Type.INT_TYPE)
+                    return MethodHandles.insertArguments(FIELD_COMPARE, 1, field, op, field2);
+                // (Tuple, Tuple) -> op(intAt(t, field), intAt(t, field2)), with t passed to both
+                MethodHandle h = MethodHandles.filterArguments(intOp(op), 0, intAt(field), intAt(field2));
+                return MethodHandles.permuteArguments(h, EVAL_TYPE, 0, 0);
+            }
+            if (constant instanceof Parameter) // rebindable, so read each time
+                return MethodHandles.insertArguments(PARAMETER_COMPARE, 1, field, op, constant);
+            if (type == Type.INT_TYPE) {
+                MethodHandle h = MethodHandles.insertArguments(intOp(op), 1, ((IntField) constant).getValue());
+                return MethodHandles.filterArguments(h, 0, intAt(field));
+            }
+            String c = ((StringField) constant).getValue();
+            MethodHandle s = MethodHandles.insertArguments(STRING_AT, 1, field);
+            MethodHandle equals = MethodHandles.filterArguments(STRING_EQUALS.bindTo(c), 0, s);
+            switch (op) {
+            case EQUALS:
+                return equals;
+            case NOT_EQUALS:
+                return MethodHandles.filterReturnValue(equals, NOT);
+            case LIKE:
+                return MethodHandles.filterArguments(MethodHandles.insertArguments(STRING_CONTAINS, 1, c), 0, s);
+            default:
+                // string range comparisons, which gain little from specializing
+                return MethodHandles.insertArguments(CONSTANT_COMPARE, 1, field, op, constant);
+            }
+        }
+
+        public String toString() {
+            return "#" + field + " " + op + " " + (constant == null ? "#" + field2 : constant.toString());
+        }
+    }
+
+
+    // ---- the pieces compiled handles are built from
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType EVAL_TYPE = MethodType.methodType(boolean.class, Tuple.class);
+    private static final MethodHandle TRUE = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true), 0,
+            Tuple.class);
+    private static final MethodHandle FALSE = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false),
+            0, Tuple.class);
+    private static final MethodHandle NOT, INT_AT, STRING_AT, STRING_EQUALS, STRING_CONTAINS;
+    private static final MethodHandle CONSTANT_COMPARE, PARAMETER_COMPARE, FIELD_COMPARE;
+    private static final MethodHandle EQ, NE, LT, LE, GT, GE;
+
+    static {
+        try {
+            MethodType intCompare = MethodType.methodType(boolean.class, int.class, int.class);
+            NOT = LOOKUP.findStatic(Expression.class, "not", MethodType.methodType(boolean.class, boolean.class));
+            INT_AT = LOOKUP.findStatic(Expression.class, "intAt",
+                    MethodType.methodType(int.class, Tuple.class, int.class));
+            STRING_AT = LOOKUP.findStatic(Expression.class, "stringAt",
+                    MethodType.methodType(String.class, Tuple.class, int.class));
+            STRING_EQUALS = LOOKUP.findVirtual(String.class, "equals",
+                    MethodType.methodType(boolean.class, Object.class))
+                    .asType(MethodType.methodType(boolean.class, String.class, String.class));
+            STRING_CONTAINS = LOOKUP.findVirtual(String.class, "contains",
+                    MethodType.methodType(boolean.class, CharSequence.class))
+                    .asType(MethodType.methodType(boolean.class, String.class, String.class));
+            CONSTANT_COMPARE = LOOKUP.findStatic(Expression.class, "compare",
+                    MethodType.methodType(boolean.class, Tuple.class, int.class, Predicate.Op.class, Field.class));
+            PARAMETER_COMPARE = LOOKUP.findStatic(Expression.class, "compare",
+                    MethodType.methodType(boolean.class, Tuple.class, int.class, Predicate.Op.class, Parameter.class));
+            FIELD_COMPARE = LOOKUP.findStatic(Expression.class, "compare",
+                    MethodType.methodType(boolean.class, Tuple.class, int.class, Predicate.Op.class, int.class));
+            EQ = LOOKUP.findStatic(Expression.class, "eq", intCompare);
+            NE = LOOKUP.findStatic(Expression.class, "ne", intCompare);
+            LT = LOOKUP.findStatic(Expression.class, "lt", intCompare);
+            LE = LOOKUP.findStatic(Expression.class, "le", intCompare);
+            GT = LOOKUP.findStatic(Expression.class, "gt", intCompare);
+            GE = LOOKUP.findStatic(Expression.class, "ge", intCompare);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle intOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LIKE: // as in IntField.compare
+            return EQ;
+        case NOT_EQUALS:
+            return NE;
+        case LESS_THAN:
+            return LT;
+        case LESS_THAN_OR_EQ:
+            return LE;
+        case GREATER_THAN:
+            return GT;
+        case GREATER_THAN_OR_EQ:
+            return GE;
+        default:
+            throw new IllegalArgumentException("unknown operator " + op);
+        }
+    }
+
+    /** @return a handle of type (Tuple)int reading an INT_TYPE field */
+    private static MethodHandle intAt(int field) {
+        return MethodHandles.insertArguments(INT_AT, 1, field);
+    }
+
+    private static boolean not(boolean b) {
+        return !b;
+    }
+
+    private static boolean eq(int a, int b) {
+        return a == b;
+    }
+
+    private static boolean ne(int a, int b) {
+        return a != b;
+    }
+
+    private static boolean lt(int a, int b) {
+        return a < b;
+    }
+
+    private static boolean le(int a, int b) {
+        return a <= b;
+    }
+
+    private static boolean gt(int a, int b) {
+        return a > b;
+    }
+
+    private static boolean ge(int a, int b) {
+        return a >= b;
+    }
+
+    private static int intAt(Tuple t, int field) {
+        return ((IntField) t.getField(field)).getValue();
+    }
+
+    private static String stringAt(Tuple t, int field) {
+        return ((StringField) t.getField(field)).getValue();
+    }
+
+    private static boolean compare(Tuple t, int field, Predicate.Op op, Field c) {
+        return t.getField(field).compare(op, c);
+    }
+
+    private static boolean compare(Tuple t, int field, Predicate.Op op, Parameter c) {
+        return t.getField(field).compare(op, c.get());
+    }
+
+    private static boolean compare(Tuple t, int field1, Predicate.Op op, int field2) {
+        return t.getField(field1).compare(op, t.getField(field2));
+    }
+
+    // ---- the class each compiled expression gets
+
+    /**
+     * The class file of an Evaluator that calls the handle it is defined
+     * with, which it keeps in a static final field:
+     * <pre>
+     *     final class CompiledExpression implements Expression.Evaluator {
+     *         private static final MethodHandle h =
+     *             MethodHandles.classData(MethodHandles.lookup(), "_", MethodHandle.class);
+     *         public boolean eval(Tuple t) { return (boolean) h.invokeExact(t); }
+     *     }
+     * </pre>
+     * Its methods have no branches, so it needs no stack map frames.
+     */
+    private static final byte[] EVALUATOR_CLASS = evaluatorClass();
+
+    private static byte[] evaluatorClass() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0); // minor version
+            out.writeShort(61); // Java 17
+
+            String[] utf8 = { "simpledb/CompiledExpression", "java/lang/Object", "simpledb/Expression$Evaluator",
+                    "h", "Ljava/lang/invoke/MethodHandle;", "<init>", "()V", "eval", "(Lsimpledb/Tuple;)Z",
+                    "java/lang/invoke/MethodHandle", "invokeExact", "Code", "<clinit>",
+                    "java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", "_",
+                    "classData",
+                    "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;" };
+            // constants 1 to 19 are utf8[0..18]; the rest refer to them
+            final int THIS = 20, OBJECT = 21, EVALUATOR = 22, HANDLE = 23, HANDLES = 24, DEFAULT_NAME = 25,
+                    FIELD = 26, OBJECT_INIT = 27, INVOKE_EXACT = 28, LOOKUP_METHOD = 29, CLASS_DATA = 30;
+            out.writeShort(CLASS_DATA + 5 + 1); // the constants below, counted from 1
+            for (String u : utf8) {
+                out.writeByte(1); // CONSTANT_Utf8
+                out.writeUTF(u);
+            }
+            classRef(out, 1); // THIS
+            classRef(out, 2); // OBJECT
+            classRef(out, 3); // EVALUATOR
+            classRef(out, 10); // HANDLE
+            classRef(out, 14); // HANDLES
+            out.writeByte(8); // CONSTANT_String
+            out.writeShort(17); // DEFAULT_NAME
+            memberRef(out, 9, THIS, 31); // FIELD: h
+            memberRef(out, 10, OBJECT, 32); // OBJECT_INIT
+            memberRef(out, 10, HANDLE, 33); // INVOKE_EXACT
+            memberRef(out, 10, HANDLES, 34); // LOOKUP_METHOD
+            memberRef(out, 10, HANDLES, 35); // CLASS_DATA
+            nameAndType(out, 4, 5); // 31: h
+            nameAndType(out, 6, 7); // 32: <init>()V
+            nameAndType(out, 11, 9); // 33: invokeExact(Tuple)Z
+            nameAndType(out, 15, 16); // 34: lookup()
+            nameAndType(out, 18, 19); // 35: classData(...)
+
+            out.writeShort(0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+            out.writeShort(THIS);
+            out.writeShort(OBJECT);
+            out.writeShort(1);
+            out.writeShort(EVALUATOR);
+
+            out.writeShort(1); // fields
+            out.writeShort(0x001A); // ACC_PRIVATE | ACC_STATIC | ACC_FINAL
+            out.writeShort(4);
+            out.writeShort(5);
+            out.writeShort(0);
+
+            out.writeShort(3); // methods
+            method(out, 0x0001, 6, 7, 1, 1, new byte[] { 0x2A, // aload_0
+                    (byte) 0xB7, 0, OBJECT_INIT, // invokespecial Object.<init>
+                    (byte) 0xB1 }); // return
+            method(out, 0x0001, 8, 9, 2, 2, new byte[] { (byte) 0xB2, 0, FIELD, // getstatic h
+                    0x2B, // aload_1
+                    (byte) 0xB6, 0, INVOKE_EXACT, // invokevirtual MethodHandle.invokeExact
+                    (byte) 0xAC }); // ireturn
+            method(out, 0x0008, 13, 7, 3, 0, new byte[] { (byte) 0xB8, 0, LOOKUP_METHOD, // invokestatic lookup
+                    0x12, DEFAULT_NAME, // ldc "_"
+                    0x12, HANDLE, // ldc MethodHandle.class
+                    (byte) 0xB8, 0, CLASS_DATA, // invokestatic classData
+                    (byte) 0xC0, 0, HANDLE, // checkcast MethodHandle
+                    (byte) 0xB3, 0, FIELD, // putstatic h
+                    (byte) 0xB1 }); // return
+
+            out.writeShort(0); // class attributes
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // cannot happen in memory
+        }
+    }
+
+    private static void classRef(DataOutputStream out, int name) throws IOException {
+        out.writeByte(7); // CONSTANT_Class
+        out.writeShort(name);
+    }
+
+    private static void memberRef(DataOutputStream out, int tag, int owner, int nameAndType) throws IOException {
+        out.writeByte(tag); // CONSTANT_Fieldref or CONSTANT_Methodref
+        out.writeShort(owner);
+        out.writeShort(nameAndType);
+    }
+
+    private static void nameAndType(DataOutputStream out, int name, int descriptor) throws IOException {
+        out.writeByte(12); // CONSTANT_NameAndType
+        out.writeShort(name);
+        out.writeShort(descriptor);
+    }
+
+    private static void method(DataOutputStream out, int access, int name, int descriptor, int maxStack,
+            int maxLocals, byte[] code) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1); // attributes
+        out.writeShort(12); // "Code"
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    /** @return an Evaluator of a hidden class of its own that calls h */
+    private static Evaluator define(MethodHandle h) {
+        try {
+            MethodHandles.Lookup c = LOOKUP.defineHiddenClassWithClassData(EVALUATOR_CLASS, h.asType(EVAL_TYPE), true);
+            return (Evaluator) c.findConstructor(c.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new RuntimeException("cannot define an evaluator", e);
+        }
+    }
+}
@@ -3,12 +3,16 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select. The condition
+ * is a single Predicate or an Expression; either way it is compiled into an
+ * Expression.Evaluator for the child's TupleDesc when the filter is built.
  */
 public class Filter extends Operator {
 
     private static final long serialVersionUID = 1L;
     private Predicate predicate;
+    private Expression expression;
+    private transient Expression.Evaluator evaluator;
     private DbIterator child;
     private TupleDesc td;
 
@@ -23,16 +27,42 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, DbIterator child) {
         // some code goes here
+        this(Expression.of(p), child);
         this.predicate = p;
+    }
+
+    /**
+     * Constructor accepts an expression to apply and a child operator to
+     * read tuples to filter from.
+     *
+     * @param e
+     *            The expression to filter tuples with, over the child's
+     *            fields
+     * @param child
+     *            The child operator
+     * @throws IllegalArgumentException
+     *             if the expression does not fit the child's TupleDesc
+     */
+    public Filter(Expression e, DbIterator child) {
+        this.expression = e;
         this.child = child;
         td = child.getTupleDesc();
+        evaluator = e.compile(td);
     }
 
+    /**
+     * @return the predicate this filter was built with, or null if it was
+     *         built with an Expression
+     */
     public Predicate getPredicate() {
         // some code goes here
         return predicate;
     }
 
+    public Expression getExpression() {
+        return expression;
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
         return td;
@@ -43,6 +73,8 @@ public class Filter extends Operator {
         // some code goes here
         child.open();
         super.open();
+        if (evaluator == null) // deserialized
+            evaluator = expression.compile(td);
     }
 
     public void close() {
@@ -64,13 +96,14 @@ public class Filter extends Operator {
      * @return The next tuple that passes the filter, or null if there are no
      *         more tuples
      * @see Predicate#filter
+     * @see Expression#compile
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
         while (child.hasNext()){
             Tuple t = child.next();
-            if(predicate.filter(t)){
+            if(evaluator.eval(t)){
                 return t;
             }
         }
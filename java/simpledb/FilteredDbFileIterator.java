@@ -0,0 +1,75 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Wraps a DbFileIterator and only returns the tuples that satisfy all of a
+ * list of predicates, optionally keeping only some of their fields. Used to
+ * push predicates and projections into scans of DbFiles that cannot
+ * evaluate them any more cleverly themselves.
+ */
+public class FilteredDbFileIterator extends AbstractDbFileIterator {
+
+    private final DbFileIterator child;
+    private final List<Predicate> preds;
+    private final int[] columns;
+    private final TupleDesc projected;
+
+    public FilteredDbFileIterator(DbFileIterator child, List<Predicate> preds) {
+        this(child, preds, null, null);
+    }
+
+    /**
+     * @param preds predicates over the child's fields, or null for none
+     * @param columns the fields of the child's tuples to return, in output
+     *   order, or null for all of them
+     * @param projected the TupleDesc of the returned tuples, if columns is
+     *   not null
+     */
+    public FilteredDbFileIterator(DbFileIterator child, List<Predicate> preds, int[] columns,
+            TupleDesc projected) {
+        this.child = child;
+        this.preds = preds;
+        this.columns = columns;
+        this.projected = projected;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            boolean ok = true;
+            for (Predicate p : preds == null ? Collections.<Predicate>emptyList() : preds) {
+                if (!p.filter(t)) {
+                    ok = false;
+                    break;
+                }
+            }
+            if (!ok)
+                continue;
+            if (columns == null)
+                return t;
+            Tuple out = new Tuple(projected);
+            out.setRecordId(t.getRecordId());
+            for (int k = 0; k < columns.length; k++)
+                out.setField(k, t.getField(columns[k]));
+            return out;
+        }
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.close();
+        child.rewind();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+}
@@ -0,0 +1,323 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one bucket of a
+ * HashIndexFile, plus the local depth of the bucket and a pointer to an
+ * overflow page for buckets whose keys cannot be separated by splitting.
+ *
+ * @see HashIndexFile
+ * @see HashDirectoryPage
+ */
+public class HashBucketPage implements Page {
+
+	private final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+	private final static int HEADER_INTS = 2; // local depth, overflow page
+
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final byte header[];
+	private final Tuple tuples[];
+	private final int numSlots;
+
+	private long lsn;
+	private int localDepth;
+	private int overflowPageNo;
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is an 8-byte page LSN, a 4-byte local
+	 * depth, a 4-byte overflow page number (0 if there is none), a bitmap of
+	 * used slots and then the tuple slots, laid out as in a HeapPage. The
+	 * number of slots is
+	 * <p>
+	 *          floor(((BufferPool.getPageSize() - 16)*8) / (tuple size * 8 + 1))
+	 *
+	 * @see HeapPage#HeapPage
+	 * @see BufferPool#getPageSize()
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		lsn = dis.readLong();
+		localDepth = dis.readInt();
+		overflowPageNo = dis.readInt();
+
+		header = new byte[getHeaderSize()];
+		for (int i = 0; i < header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try {
+			for (int i = 0; i < tuples.length; i++)
+				tuples[i] = readNextTuple(dis, i);
+		} catch (NoSuchElementException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of tuples a bucket page of the given schema can hold
+	 */
+	public static int getMaxTuples(TupleDesc td) {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		int extraBits = (HeapPage.LSN_SIZE + HEADER_INTS * INDEX_SIZE) * 8;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerTupleIncludingHeader;
+	}
+
+	private int getHeaderSize() {
+		return (numSlots + 7) / 8;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
+	/**
+	 * @return the number of low-order hash bits shared by every key in this bucket
+	 */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	public void setLocalDepth(int localDepth) {
+		this.localDepth = localDepth;
+	}
+
+	/**
+	 * @return the page number of the next page in this bucket's overflow
+	 *   chain, or 0 if there is none
+	 */
+	public int getOverflowPageNo() {
+		return overflowPageNo;
+	}
+
+	public void setOverflowPageNo(int overflowPageNo) {
+		this.overflowPageNo = overflowPageNo;
+	}
+
+	/**
+	 * Suck up tuples from the source file.
+	 */
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		// if associated bit is not set, read forward to the next tuple, and
+		// return null.
+		if (!isSlotUsed(slotId)) {
+			try {
+				dis.skipBytes(td.getSize());
+			} catch (IOException e) {
+				throw new NoSuchElementException("error reading empty tuple");
+			}
+			return null;
+		}
+
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		try {
+			for (int j = 0; j < td.numFields(); j++)
+				t.setField(j, td.getFieldType(j).parse(dis));
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @see #HashBucketPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		try {
+			dos.writeLong(lsn);
+			dos.writeInt(localDepth);
+			dos.writeInt(overflowPageNo);
+			dos.write(header);
+
+			for (int i = 0; i < tuples.length; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++)
+					tuples[i].getField(j).serialize(dos);
+			}
+
+			// padding
+			dos.write(new byte[len - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage with local depth 0.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	/**
+	 * Delete the specified tuple from the page; the tuple should be updated to reflect
+	 *   that it is no longer stored on any page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 * @param t The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null)
+			throw new DbException("RecordID not set");
+		if (!pid.equals(rid.getPageId()))
+			throw new DbException("Tuple not on this Page");
+		if (!isSlotUsed(rid.tupleno()))
+			throw new DbException("Tuple slot is already empty " + rid.tupleno());
+
+		markSlotUsed(rid.tupleno(), false);
+		tuples[rid.tupleno()] = null;
+	}
+
+	/**
+	 * Adds the specified tuple to the page; the tuple should be updated to reflect
+	 *  that it is now stored on this page.
+	 * @throws DbException if the page is full (no empty slots) or tupledesc
+	 *         is mismatch.
+	 * @param t The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("Tuple Desc not match!");
+
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				tuples[i] = t;
+				t.setRecordId(new RecordId(pid, i));
+				return;
+			}
+		}
+		throw new DbException("Page full!");
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int empty = 0;
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i))
+				empty++;
+		}
+		return empty;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return ((header[i / 8] >> (i % 8)) & 1) == 1;
+	}
+
+	/**
+	 * Abstraction to fill or clear a slot on this page.
+	 */
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= (1 << (i % 8));
+		else
+			header[i / 8] &= ~(1 << (i % 8));
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i))
+				tupleList.add(tuples[i]);
+		}
+		return Collections.unmodifiableList(tupleList).iterator();
+	}
+}
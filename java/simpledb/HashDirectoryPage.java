@@ -0,0 +1,197 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * Each HashIndexFile has exactly one HashDirectoryPage, stored as page 0 of
+ * the file. It holds the global depth of the extendible hash table and, for
+ * each of the 2^globalDepth directory slots, the page number of the bucket
+ * that slot points to. Several slots may share a bucket whose local depth is
+ * smaller than the global depth.
+ *
+ * @see HashIndexFile
+ * @see HashBucketPage
+ */
+public class HashDirectoryPage implements Page {
+
+	private final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private long lsn;
+	private int globalDepth;
+	private int[] buckets;
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashDirectoryPage from a set of bytes of data read from disk.
+	 * The format of a HashDirectoryPage is an 8-byte page LSN and a 4-byte
+	 * global depth followed by 2^globalDepth 4-byte bucket page numbers; the
+	 * rest of the page is padding. An all-zero page is a directory of depth 0 whose only slot
+	 * has not been assigned a bucket yet.
+	 *
+	 * @see BufferPool#getPageSize()
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		lsn = dis.readLong();
+		globalDepth = dis.readInt();
+		if (globalDepth < 0 || globalDepth > getMaxGlobalDepth())
+			throw new IOException("corrupt hash directory: global depth " + globalDepth);
+		buckets = new int[1 << globalDepth];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = dis.readInt();
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the deepest directory that still fits on a single page
+	 */
+	public static int getMaxGlobalDepth() {
+		int maxEntries = (BufferPool.getPageSize() - HeapPage.LSN_SIZE - INDEX_SIZE) / INDEX_SIZE;
+		return 31 - Integer.numberOfLeadingZeros(maxEntries);
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
+	/**
+	 * @return the number of low-order hash bits used to select a slot
+	 */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	/**
+	 * @return the page number of the bucket that the given hash maps to, or
+	 *   0 if the slot has not been assigned a bucket yet
+	 */
+	public int getBucket(int hash) {
+		return buckets[hash & ((1 << globalDepth) - 1)];
+	}
+
+	/**
+	 * Point every directory slot whose low-order localDepth bits equal
+	 * those of hash at bucket pageNo.
+	 */
+	public void setBucket(int hash, int localDepth, int pageNo) {
+		int mask = (1 << localDepth) - 1;
+		for (int i = 0; i < buckets.length; i++) {
+			if ((i & mask) == (hash & mask))
+				buckets[i] = pageNo;
+		}
+	}
+
+	/**
+	 * Double the directory. Slot i and slot i + 2^globalDepth point to the
+	 * same bucket afterwards, so no bucket is touched.
+	 *
+	 * @throws DbException if the directory is already as deep as a page allows
+	 */
+	public void doubleDirectory() throws DbException {
+		if (globalDepth >= getMaxGlobalDepth())
+			throw new DbException("hash directory is full");
+		int[] newBuckets = new int[buckets.length * 2];
+		System.arraycopy(buckets, 0, newBuckets, 0, buckets.length);
+		System.arraycopy(buckets, 0, newBuckets, buckets.length, buckets.length);
+		buckets = newBuckets;
+		globalDepth++;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashDirectoryPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new HashDirectoryPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @see #HashDirectoryPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeLong(lsn);
+			dos.writeInt(globalDepth);
+			for (int i = 0; i < buckets.length; i++)
+				dos.writeInt(buckets[i]);
+			dos.write(new byte[len - HeapPage.LSN_SIZE - INDEX_SIZE * (buckets.length + 1)]);
+			dos.flush();
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashDirectoryPage.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+}
@@ -17,7 +17,7 @@ public class HashEquiJoin extends Operator {
     transient private Tuple t2 = null;
 
 
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+    HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -69,7 +69,8 @@ public class HashEquiJoin extends Operator {
         child1.open();
         child2.open();
         super.open();
-        loadMap();
+        if (loadMap())
+            pruneProbeSide();
     }
 
     public void close() {
@@ -86,7 +87,13 @@ public class HashEquiJoin extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
-        child2.rewind();
+        this.t1=null;
+        this.t2=null;
+        this.listIt=null;
+        if (loadMap())
+            pruneProbeSide();
+        else
+            child2.rewind();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -119,6 +126,15 @@ public class HashEquiJoin extends Operator {
 
     }
 
+    // tell a sequential scan on the probe side which keys are in the current
+    // hash map, so it can skip pages whose Bloom filter holds none of them,
+    // and restart it
+    private void pruneProbeSide() throws DbException, TransactionAbortedException {
+        if (child2 instanceof SeqScan)
+            ((SeqScan) child2).setProbeKeys(predicate.getField2(), map.keySet());
+        child2.rewind();
+    }
+
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -174,8 +190,8 @@ public class HashEquiJoin extends Operator {
         }
 
         // child2 is done: advance child1 ie. load another MAX_SIZE hash map
-        child2.rewind();
         if (loadMap()) {
+            pruneProbeSide();
             return fetchNext();
         }
 
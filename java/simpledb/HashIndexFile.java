@@ -0,0 +1,491 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashIndexFile is an implementation of a DbFile that stores tuples in an
+ * extendible hash table keyed on a single field. Page 0 of the file is a
+ * HashDirectoryPage mapping the low-order bits of a key's hash to a bucket;
+ * every other page is a HashBucketPage. A point lookup therefore costs one
+ * directory read and one bucket read, instead of a full root-to-leaf descent.
+ * <p>
+ * When a bucket fills up it is split in two and only the directory slots
+ * that pointed to it are updated; the directory doubles (without touching any
+ * bucket) when the bucket's local depth already equals the global depth.
+ * Buckets whose keys all hash identically, or that would need a directory
+ * larger than one page, grow an overflow chain instead.
+ * <p>
+ * Buckets are never merged on delete and freed pages are not reused.
+ *
+ * @see simpledb.HashDirectoryPage#HashDirectoryPage
+ * @see simpledb.HashBucketPage#HashBucketPage
+ */
+public class HashIndexFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * Constructs a hash index file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this index
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashIndexFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this HashIndexFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashIndexFile, the hash of the
+	 * absolute file name of the underlying file.
+	 *
+	 * @return an ID uniquely identifying this HashIndexFile.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 *
+	 * @return TupleDesc of this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this hash index is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Returns the number of pages in this HashIndexFile, including the
+	 * directory page.
+	 */
+	public int numPages() {
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		if (id.getTableId() != tableid || id.pageNumber() < 0 || id.pageNumber() >= numPages())
+			throw new IllegalArgumentException("page " + id + " does not exist in this file");
+
+		byte pageBuf[] = new byte[BufferPool.getPageSize()];
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "r");
+			raf.seek((long) id.pageNumber() * BufferPool.getPageSize());
+			raf.readFully(pageBuf);
+			Debug.log(1, "HashIndexFile.readPage: read page %d", id.pageNumber());
+			if (id.pgcateg() == HashPageId.DIRECTORY)
+				return new HashDirectoryPage(id, pageBuf);
+			else
+				return new HashBucketPage(id, pageBuf);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException ioe) {
+				// Ignore failures closing the file
+			}
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		rf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+		rf.write(page.getPageData());
+		rf.close();
+	}
+
+	/**
+	 * Mix the bits of a key's hashCode so that sequential keys spread over
+	 * the low-order bits the directory uses.
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
+	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
+	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
+	 * presumably they will soon be dirtied by this transaction.
+	 *
+	 * @see BTreeFile#getPage(TransactionId, HashMap, BTreePageId, Permissions)
+	 */
+	Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if (dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		else {
+			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			if (perm == Permissions.READ_WRITE) {
+				dirtypages.put(pid, p);
+			}
+			return p;
+		}
+	}
+
+	/**
+	 * Get the directory page of this file, creating it on disk first if the
+	 * file is empty.
+	 */
+	HashDirectoryPage getDirectoryPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm)
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized (this) {
+			if (f.length() == 0) {
+				BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
+				bw.write(HashDirectoryPage.createEmptyPageData());
+				bw.close();
+			}
+		}
+		return (HashDirectoryPage) getPage(tid, dirtypages, new HashPageId(tableid, 0, HashPageId.DIRECTORY), perm);
+	}
+
+	/**
+	 * Append a new, empty bucket page to the end of the file and return it
+	 * locked with read-write permission.
+	 */
+	private HashBucketPage getEmptyBucketPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int localDepth)
+			throws DbException, IOException, TransactionAbortedException {
+		int emptyPageNo;
+		synchronized (this) {
+			emptyPageNo = numPages();
+			BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
+			bw.write(HashBucketPage.createEmptyPageData());
+			bw.close();
+		}
+		HashPageId newPageId = new HashPageId(tableid, emptyPageNo, HashPageId.BUCKET);
+
+		// make sure the page is not in the buffer pool or in the local cache
+		Database.getBufferPool().discardPage(newPageId);
+		dirtypages.remove(newPageId);
+
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+		page.setLocalDepth(localDepth);
+		return page;
+	}
+
+	/**
+	 * @return true if splitting the bucket could separate key from at least
+	 *   one of the tuples already in it
+	 */
+	private boolean canSplit(HashBucketPage bucket, int h) {
+		Iterator<Tuple> it = bucket.iterator();
+		while (it.hasNext()) {
+			if (hash(it.next().getField(keyField)) != h)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Split a full bucket of local depth d into itself and a new bucket, both
+	 * of depth d+1, moving the tuples whose hash has bit d set and pointing
+	 * the matching directory slots at the new bucket. Only this bucket's
+	 * tuples are rehashed.
+	 *
+	 * @param h - the hash of a key that maps to the bucket
+	 */
+	private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashDirectoryPage dir,
+			HashBucketPage bucket, int h)
+					throws DbException, IOException, TransactionAbortedException {
+		int d = bucket.getLocalDepth();
+		HashBucketPage newBucket = getEmptyBucketPage(tid, dirtypages, d + 1);
+		bucket.setLocalDepth(d + 1);
+
+		Iterator<Tuple> it = bucket.iterator();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (((hash(t.getField(keyField)) >>> d) & 1) == 1) {
+				bucket.deleteTuple(t);
+				newBucket.insertTuple(t);
+			}
+		}
+
+		int newBits = (h & ((1 << d) - 1)) | (1 << d);
+		dir.setBucket(newBits, d + 1, newBucket.getId().pageNumber());
+	}
+
+	/**
+	 * Insert t into the first page of the bucket's overflow chain that has
+	 * room, extending the chain if every page is full.
+	 */
+	private void insertIntoOverflow(TransactionId tid, HashMap<PageId, Page> dirtypages, HashBucketPage bucket, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashBucketPage page = bucket;
+		while (page.getNumEmptySlots() == 0) {
+			if (page.getOverflowPageNo() == 0) {
+				HashBucketPage next = getEmptyBucketPage(tid, dirtypages, page.getLocalDepth());
+				page.setOverflowPageNo(next.getId().pageNumber());
+				page = next;
+			}
+			else {
+				page = (HashBucketPage) getPage(tid, dirtypages,
+						new HashPageId(tableid, page.getOverflowPageNo(), HashPageId.BUCKET), Permissions.READ_WRITE);
+			}
+		}
+		page.insertTuple(t);
+	}
+
+	/**
+	 * Insert a tuple into this HashIndexFile, splitting its bucket (and
+	 * doubling the directory) as needed.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("Tuple Desc not match!");
+
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		int h = hash(t.getField(keyField));
+
+		HashDirectoryPage dir = getDirectoryPage(tid, dirtypages, Permissions.READ_ONLY);
+		if (dir.getBucket(h) == 0) { // brand new file: create the first bucket
+			dir = getDirectoryPage(tid, dirtypages, Permissions.READ_WRITE);
+			HashBucketPage first = getEmptyBucketPage(tid, dirtypages, 0);
+			dir.setBucket(h, 0, first.getId().pageNumber());
+		}
+
+		while (true) {
+			HashPageId bucketId = new HashPageId(tableid, dir.getBucket(h), HashPageId.BUCKET);
+			HashBucketPage bucket = (HashBucketPage) getPage(tid, dirtypages, bucketId, Permissions.READ_WRITE);
+
+			if (bucket.getNumEmptySlots() > 0) {
+				bucket.insertTuple(t);
+				break;
+			}
+			if (bucket.getOverflowPageNo() != 0 || !canSplit(bucket, h)) {
+				insertIntoOverflow(tid, dirtypages, bucket, t);
+				break;
+			}
+			if (bucket.getLocalDepth() == dir.getGlobalDepth()) {
+				if (dir.getGlobalDepth() == HashDirectoryPage.getMaxGlobalDepth()) {
+					insertIntoOverflow(tid, dirtypages, bucket, t);
+					break;
+				}
+				dir = getDirectoryPage(tid, dirtypages, Permissions.READ_WRITE);
+				dir.doubleDirectory();
+			}
+			dir = getDirectoryPage(tid, dirtypages, Permissions.READ_WRITE);
+			splitBucket(tid, dirtypages, dir, bucket, h);
+		}
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Delete a tuple from this HashIndexFile.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !(rid.getPageId() instanceof HashPageId))
+			throw new DbException("tuple is not stored in a hash index");
+		HashPageId pid = (HashPageId) rid.getPageId();
+		if (pid.getTableId() != tableid || pid.pgcateg() != HashPageId.BUCKET)
+			throw new DbException("tuple is not stored in this hash index");
+
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		page.deleteTuple(t);
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Get the tuples whose key equals the value in the IndexPredicate on
+	 * behalf of the specified transaction. Only the directory page and the
+	 * matching bucket (and its overflow chain) are read.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on; must be EQUALS
+	 * @return an iterator for the filtered tuples
+	 * @throws UnsupportedOperationException if the predicate is not an equality
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if (ipred.getOp() != Predicate.Op.EQUALS)
+			throw new UnsupportedOperationException("HashIndexFile only supports equality lookups, not "
+					+ ipred.getOp());
+		return new HashSearchIterator(this, tid, ipred.getField());
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash index, in no particular order.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid);
+	}
+
+}
+
+/**
+ * Helper class that implements the DbFileIterator for all tuples of a
+ * HashIndexFile, reading every bucket page in page order
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	int curPageNo = 0;
+
+	TransactionId tid;
+	HashIndexFile f;
+
+	public HashFileIterator(HashIndexFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		curPageNo = 0;
+		it = null;
+	}
+
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it == null || !it.hasNext()) {
+			if (curPageNo + 1 >= f.numPages())
+				return null;
+			curPageNo++;
+			HashBucketPage p = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					new HashPageId(f.getId(), curPageNo, HashPageId.BUCKET), Permissions.READ_ONLY);
+			it = p.iterator();
+		}
+		return it.next();
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it = null;
+		curPageNo = 0;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for an equality lookup on
+ * a HashIndexFile
+ */
+class HashSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	HashBucketPage curp = null;
+
+	TransactionId tid;
+	HashIndexFile f;
+	Field key;
+
+	public HashSearchIterator(HashIndexFile f, TransactionId tid, Field key) {
+		this.f = f;
+		this.tid = tid;
+		this.key = key;
+	}
+
+	/**
+	 * Open this iterator by reading the directory and the bucket the key maps to
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		curp = null;
+		it = null;
+		if (f.numPages() == 0)
+			return;
+		HashDirectoryPage dir = (HashDirectoryPage) Database.getBufferPool().getPage(tid,
+				new HashPageId(f.getId(), 0, HashPageId.DIRECTORY), Permissions.READ_ONLY);
+		int bucketNo = dir.getBucket(HashIndexFile.hash(key));
+		if (bucketNo != 0)
+			fetch(bucketNo);
+	}
+
+	private void fetch(int pageNo) throws DbException, TransactionAbortedException {
+		curp = (HashBucketPage) Database.getBufferPool().getPage(tid,
+				new HashPageId(f.getId(), pageNo, HashPageId.BUCKET), Permissions.READ_ONLY);
+		it = curp.iterator();
+	}
+
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(f.keyField()).equals(key))
+					return t;
+			}
+			if (curp.getOverflowPageNo() == 0)
+				it = null;
+			else
+				fetch(curp.getOverflowPageNo());
+		}
+		return null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
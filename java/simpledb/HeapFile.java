@@ -18,6 +18,8 @@ public class HeapFile implements DbFile {
     private TupleDesc TDesc;
     private File file;
     private int tableID;
+    private ZoneMap zoneMap;
+    private BloomFilterIndex bloomFilters;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -43,6 +45,48 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * Returns the per-page min/max summaries of this file's INT_TYPE columns,
+     * loading them from the sidecar file on first use.
+     *
+     * @see ZoneMap
+     */
+    public synchronized ZoneMap getZoneMap() {
+        if (zoneMap == null)
+            zoneMap = new ZoneMap(new File(file.getPath() + ".zmap"), TDesc);
+        return zoneMap;
+    }
+
+    /**
+     * Returns the per-page Bloom filters of this file, loading them from the
+     * sidecar file on first use. No column is covered until
+     * {@link #addBloomFilter} is called for it.
+     *
+     * @see BloomFilterIndex
+     */
+    public synchronized BloomFilterIndex getBloomFilters() {
+        if (bloomFilters == null) {
+            int tuplesPerPage = ((BufferPool.getPageSize() - HeapPage.LSN_SIZE) * 8) / (TDesc.getSize() * 8 + 1);
+            bloomFilters = new BloomFilterIndex(new File(file.getPath() + ".bloom"), tuplesPerPage);
+        }
+        return bloomFilters;
+    }
+
+    /**
+     * Maintain per-page Bloom filters on the specified field, so that
+     * equality lookups and join probes can skip pages that definitely do not
+     * contain a key. Existing pages are covered as they are written or
+     * scanned.
+     *
+     * @param field the field to cover
+     * @param fpp the target false-positive rate of each page's filter
+     */
+    public void addBloomFilter(int field, double fpp) throws IOException {
+        if (field < 0 || field >= TDesc.numFields())
+            throw new IllegalArgumentException("no field " + field + " in " + TDesc);
+        getBloomFilters().addColumn(field, fpp);
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere ensure that each
@@ -95,12 +139,43 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
+        // the zone map entry goes out first so it never understates the page on disk
+        ZoneMap zm = getZoneMap();
+        zm.include((HeapPage) page);
+        zm.persist(page.getId().pageNumber());
+        BloomFilterIndex bf = getBloomFilters();
+        bf.include((HeapPage) page);
+        bf.persist(page.getId().pageNumber());
+
         RandomAccessFile raf = new RandomAccessFile(file, "rw");
         raf.seek(BufferPool.getPageSize() * page.getId().pageNumber());
         raf.write(page.getPageData());
         raf.close();
     }
 
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        int pageSize = BufferPool.getPageSize();
+        ZoneMap zm = getZoneMap();
+        BloomFilterIndex bf = getBloomFilters();
+        byte[] run = new byte[pageSize * pages.size()];
+        for (int i = 0; i < pages.size(); i++) {
+            HeapPage page = (HeapPage) pages.get(i);
+            zm.include(page);
+            zm.persist(page.getId().pageNumber());
+            bf.include(page);
+            bf.persist(page.getId().pageNumber());
+            System.arraycopy(page.getPageData(), 0, run, i * pageSize, pageSize);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek((long) pageSize * pages.get(0).getId().pageNumber());
+        raf.write(run);
+        raf.close();
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -147,6 +222,8 @@ public class HeapFile implements DbFile {
         // call heapPage.insertTuple to insert
         heapPg.insertTuple(t);
         heapPg.markDirty(true, tid);
+        getZoneMap().include(curPageNo, t);
+        getBloomFilters().include(curPageNo, t);
         // add page to array to return
         pageArr.add(heapPg);
         return pageArr;
@@ -180,93 +257,125 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this,tid);
+        return new HeapFileIterator(this, tid, null, null, null);
     }
 
-    private class HeapFileIterator implements DbFileIterator {
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * the given predicates. Pages whose zone map entry or Bloom filters rule
+     * out a match are skipped without being fetched from the BufferPool, and
+     * on the pages that are read the predicates are evaluated on the page
+     * bytes (see HeapPage#select), so tuples that fail them are never built.
+     *
+     * @param tid the transaction reading the file
+     * @param preds predicates over this file's fields, or null for none
+     * @see ZoneMap
+     * @see BloomFilterIndex
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> preds) {
+        return new HeapFileIterator(this, tid, null, preds, null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, List)}, but also skips pages
+     * whose Bloom filter shows they hold none of the probe's keys. The
+     * tuples on pages that are read are not checked against the probe.
+     *
+     * @param probe keys a join is looking for, or null
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> preds, BloomFilterIndex.Probe probe) {
+        return new HeapFileIterator(this, tid, null, preds, probe);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, List, BloomFilterIndex.Probe)},
+     * but only returns the given fields of each matching tuple. The tuples
+     * returned are built from the page bytes with just those fields; the
+     * rest are never decoded.
+     *
+     * @param columns indexes of the fields to return, in output order, or
+     *   null for all of them
+     * @see ColumnarHeapFile#iterator(TransactionId, int[], List)
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] columns, List<Predicate> preds,
+            BloomFilterIndex.Probe probe) {
+        return new HeapFileIterator(this, tid, columns, preds, probe);
+    }
+
+    private class HeapFileIterator extends AbstractDbFileIterator {
 
         private TransactionId tid;
         private HeapFile heapfile;
+        private int[] columns;
+        private TupleDesc projected;
+        private List<Predicate> preds;
+        private BloomFilterIndex.Probe probe;
 
-        private Page page;
-        private HeapPageId pid;
         private Iterator<Tuple> pageIter;
         private int curPageNo = -1;
+        private boolean open = false;
 
-        public HeapFileIterator(HeapFile hf, TransactionId tid) {
+        public HeapFileIterator(HeapFile hf, TransactionId tid, int[] columns, List<Predicate> preds,
+                BloomFilterIndex.Probe probe) {
             this.tid = tid;
             this.heapfile = hf;
+            this.columns = columns;
+            this.projected = columns == null ? null : ColumnarHeapFile.project(hf.getTupleDesc(), columns);
+            this.preds = preds;
+            this.probe = probe;
         }
 
-
         public void open() throws
                 DbException, TransactionAbortedException {
-            try {
-                if (tid.toString() == "simpledb.TransactionId@33")
-                    System.out.println("Open call: curPage = " + curPageNo + " numPages = " + numPages());
-                curPageNo = 0;
-                pid = new HeapPageId(heapfile.tableID, curPageNo);
-                page = (HeapPage) Database.getBufferPool().getPage(tid, pid,
-                        Permissions.READ_ONLY);
-                pageIter = ((HeapPage) page).iterator();
-                return;
-            } catch (TransactionAbortedException e) {
-                e.printStackTrace();
-                throw new TransactionAbortedException();
-            } catch (DbException e) {
-                e.printStackTrace();
-                throw new DbException("DbException in HeapFileIterater open");
-            }
+            curPageNo = -1;
+            pageIter = null;
+            open = true;
         }
 
-        public Tuple next() throws TransactionAbortedException,
-                DbException, NoSuchElementException
-        {
-            if (pageIter == null) {
-                throw new NoSuchElementException();
+        @Override
+        protected Tuple readNext() throws TransactionAbortedException, DbException {
+            if (!open)
+                return null;
+            while (true) {
+                if (pageIter != null && pageIter.hasNext())
+                    return pageIter.next();
+                if (!advancePage())
+                    return null;
             }
-            Tuple t = (hasNext()) ? (Tuple) pageIter.next(): null;
-            if (!pageIter.hasNext())  {
-                // advance the page
-                while (curPageNo + 1 < numPages()) {
-                    curPageNo ++;
-//        			System.out.println("Next Tuple call: curPage = " + curPageNo + " numPages = " + numPages());
-                    pid = new HeapPageId(heapfile.tableID, curPageNo);
-                    page = (HeapPage) Database.getBufferPool().getPage(tid, pid,
-                            Permissions.READ_ONLY);
-                    pageIter = ((HeapPage) page).iterator();
-                    if (!hasNext()) continue;
-                    break;
-                }
-            }
-            return t;
         }
 
-        public boolean hasNext() throws DbException, TransactionAbortedException {
-            return (pageIter != null) && (pageIter.hasNext());
+        // move to the next page that neither the zone map nor the Bloom filters rule out
+        private boolean advancePage() throws TransactionAbortedException, DbException {
+            ZoneMap zm = heapfile.getZoneMap();
+            BloomFilterIndex bf = heapfile.getBloomFilters();
+            while (++curPageNo < numPages()) {
+                if (!zm.mayMatch(curPageNo, preds) || !bf.mayMatch(curPageNo, preds)
+                        || !bf.mayContainAny(curPageNo, probe))
+                    continue;
+                HeapPageId pid = new HeapPageId(heapfile.tableID, curPageNo);
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid,
+                        Permissions.READ_ONLY);
+                zm.learn(page);
+                bf.learn(page);
+                pageIter = page.iterator(columns, projected, preds);
+                return true;
+            }
+            pageIter = null;
+            return false;
         }
 
         public void rewind() throws DbException,
                 TransactionAbortedException {
-            try {
-                close();
-                open();
-            }
-            catch (TransactionAbortedException e)
-            {
-                e.printStackTrace();
-                throw new TransactionAbortedException();
-            }
-
+            close();
+            open();
         }
 
         public void close() {
-            page = null;
-            pid = null;
+            super.close();
             pageIter = null;
             curPageNo = -1;
+            open = false;
         }
     }
 
 }
-
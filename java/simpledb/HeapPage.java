@@ -6,6 +6,12 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the bytes it was read from and only decodes a slot's
+ * tuple the first time it is asked for. Scans that push predicates down
+ * (see {@link #select(List)}) evaluate them on the page bytes, so tuples
+ * that do not match are never built, and scans that only need some fields
+ * get fresh tuples holding just those fields.
  *
  * @see HeapFile
  * @see BufferPool
@@ -13,24 +19,31 @@ import java.io.*;
  */
 public class HeapPage implements Page {
 
+    /** Bytes at the start of every page holding its LSN. */
+    static final int LSN_SIZE = 8;
+
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
+    final Tuple tuples[]; // null for an empty slot or one not decoded yet
     final int numSlots;
+    final byte[] data; // as read; still current for used slots not decoded
+    final int[] fieldOffset; // offset of each field within a tuple
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
     private TransactionId tid = null; // to mark page dirty
     boolean dirty = false;
+    private long lsn;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
-     * The format of a HeapPage is a set of header bytes indicating
-     * the slots of the page that are in use, some number of tuple slots.
+     * The format of a HeapPage is an 8-byte page LSN, a set of header bytes
+     * indicating the slots of the page that are in use, some number of tuple
+     * slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor(((BufferPool.getPageSize() - 8)*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
@@ -47,19 +60,19 @@ public class HeapPage implements Page {
         this.numSlots = getNumTuples();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+        lsn = dis.readLong();
+
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
             header[i] = dis.readByte();
         
+        // tuples are decoded from data when first asked for
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
+        this.data = data;
+        fieldOffset = new int[td.numFields()];
+        for (int j = 1; j < fieldOffset.length; j++)
+            fieldOffset[j] = fieldOffset[j - 1] + td.getFieldType(j - 1).getLen();
         dis.close();
 
         setBeforeImage();
@@ -70,7 +83,7 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-        int ret = (int) Math.floor(((BufferPool.getPageSize()*8) / (td.getSize() * 8 + 1)));
+        int ret = (int) Math.floor((((BufferPool.getPageSize() - LSN_SIZE)*8) / (td.getSize() * 8 + 1)));
         return ret;
 
     }
@@ -120,38 +133,65 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
+    // the offset in data of field j of slot i
+    private int offset(int i, int j) {
+        return LSN_SIZE + header.length + i * td.getSize() + fieldOffset[j];
+    }
+
+    private int readInt(int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+                | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * The tuple in used slot i, decoded from the page bytes the first time
+     * it is asked for.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    Tuple tuple(int i) {
+        Tuple t = tuples[i];
+        if (t == null) {
+            t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, i));
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, getField(i, j));
+            tuples[i] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
+    /**
+     * Field j of used slot i, decoded straight from the page bytes unless
+     * the slot's tuple has been decoded already.
+     */
+    public Field getField(int i, int j) {
+        Tuple t = tuples[i];
+        if (t != null)
+            return t.getField(j);
+        int off = offset(i, j);
+        if (td.getFieldType(j) == Type.INT_TYPE)
+            return new IntField(readInt(off));
+        return new StringField(new String(data, off + 4, readInt(off)), Type.STRING_LEN);
+    }
 
-        return t;
+    // whether the string stored at off equals s, without decoding it; s is
+    // compared as StringField.serialize would store it
+    private boolean bytesEqual(int off, String s) {
+        int len = Math.min(s.length(), Type.STRING_LEN);
+        if (readInt(off) != len)
+            return false;
+        for (int k = 0; k < len; k++) {
+            if (data[off + 4 + k] != (byte) s.charAt(k))
+                return false;
+        }
+        return true;
     }
 
     /**
@@ -170,6 +210,13 @@ public class HeapPage implements Page {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
+        try {
+            dos.writeLong(lsn);
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+
         // create the header of the page
         for (int i=0; i<header.length; i++) {
             try {
@@ -196,6 +243,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot, never decoded: its bytes have not changed
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, offset(i, 0), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -209,7 +266,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (LSN_SIZE + header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -376,10 +433,82 @@ public class HeapPage implements Page {
     public Iterator<Tuple> iterator() {
         ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
         for (int i = 0; i < numSlots; i ++) {
-            if (isSlotUsed(i)) tupleList.add(tuples[i]);
+            if (isSlotUsed(i)) tupleList.add(tuple(i));
         }
         return tupleList.iterator();
     }
 
+    /**
+     * Find the used slots whose tuples satisfy all of the predicates,
+     * evaluating them on the page bytes for slots not decoded yet: INT_TYPE
+     * fields are compared as raw ints, and EQUALS and NOT_EQUALS on
+     * STRING_TYPE fields compare bytes. Each predicate is only evaluated
+     * over the slots that survived the previous ones.
+     *
+     * @param preds predicates over this page's fields, or null for none
+     * @return the matching slot numbers
+     * @see PaxPage#select(List)
+     */
+    public BitSet select(List<Predicate> preds) {
+        BitSet sel = new BitSet(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i))
+                sel.set(i);
+        }
+        if (preds == null)
+            return sel;
+        for (Predicate p : preds) {
+            int j = p.getField();
+            Predicate.Op op = p.getOp();
+            Field operand = p.getOperand();
+            boolean rawInt = td.getFieldType(j) == Type.INT_TYPE && operand instanceof IntField;
+            boolean rawString = td.getFieldType(j) == Type.STRING_TYPE && operand instanceof StringField
+                    && (op == Predicate.Op.EQUALS || op == Predicate.Op.NOT_EQUALS);
+            for (int i = sel.nextSetBit(0); i >= 0; i = sel.nextSetBit(i + 1)) {
+                boolean ok;
+                if (tuples[i] == null && rawInt)
+                    ok = IntField.compare(op, readInt(offset(i, j)), ((IntField) operand).getValue());
+                else if (tuples[i] == null && rawString)
+                    ok = bytesEqual(offset(i, j), ((StringField) operand).getValue())
+                            == (op == Predicate.Op.EQUALS);
+                else
+                    ok = getField(i, j).compare(op, operand);
+                if (!ok)
+                    sel.clear(i);
+            }
+        }
+        return sel;
+    }
+
+    /**
+     * Build a tuple holding only the given fields of used slot i; the slot's
+     * tuple is not decoded.
+     *
+     * @param columns the fields to keep, in the order they should appear
+     * @param projected the TupleDesc of the result
+     */
+    public Tuple project(int i, int[] columns, TupleDesc projected) {
+        Tuple t = new Tuple(projected);
+        t.setRecordId(new RecordId(pid, i));
+        for (int k = 0; k < columns.length; k++)
+            t.setField(k, getField(i, columns[k]));
+        return t;
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     *   the predicates: the page's own tuples if columns is null, otherwise
+     *   fresh tuples holding the given fields
+     * @see #select(List)
+     * @see #project(int, int[], TupleDesc)
+     */
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected, List<Predicate> preds) {
+        BitSet sel = select(preds);
+        ArrayList<Tuple> tupleList = new ArrayList<Tuple>(sel.cardinality());
+        for (int i = sel.nextSetBit(0); i >= 0; i = sel.nextSetBit(i + 1))
+            tupleList.add(columns == null ? tuple(i) : project(i, columns, projected));
+        return Collections.unmodifiableList(tupleList).iterator();
+    }
+
 }
 
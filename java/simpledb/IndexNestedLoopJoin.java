@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins its child with a table stored as an index (a
+ * HashIndexFile or a BTreeFile) by looking up, for each tuple of the
+ * child, the matching tuples of the table through the index, instead of
+ * scanning the whole table once per outer tuple as Join does.
+ * <p>
+ * The join predicate compares a field of the child's tuples with the
+ * table's key field. A HashIndexFile can only answer equality; a BTreeFile
+ * can also answer range comparisons. Only INT_TYPE keys can be looked up
+ * (see IndexPredicate.) Output tuples are the child's fields followed by
+ * the table's, named alias.fieldName as SeqScan names them.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate predicate;
+    private DbIterator outer;
+    private TransactionId tid;
+    private final int innerTableId;
+    private final String innerAlias;
+    private final List<Predicate> innerFilters;
+    private final TupleDesc comboTD;
+    private final int outerFields;
+    transient private Tuple outerTuple = null;
+    transient private DbFileIterator matches = null;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate: field1 is a field of the child's tuples, and
+     *            field2 the key field of the inner table
+     * @param outer
+     *            The child operator, whose tuples drive the lookups
+     * @param tid
+     *            The transaction the lookups run in
+     * @param innerTableId
+     *            The table to look tuples up in
+     * @param innerAlias
+     *            The alias of that table, used to name its fields
+     * @param innerFilters
+     *            Predicates on the inner table's fields that matching tuples
+     *            must also satisfy, or null
+     * @throws IllegalArgumentException if the inner table cannot answer the
+     *             lookups (see canProbe)
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator outer, TransactionId tid,
+                               int innerTableId, String innerAlias, List<Predicate> innerFilters) {
+        DbFile file = Database.getCatalog().getDatabaseFile(innerTableId);
+        if (!canProbe(file, p.getField2(), p.getOperator().swap()))
+            throw new IllegalArgumentException("table " + innerAlias + " cannot look up field "
+                    + p.getField2() + " with " + p.getOperator());
+        this.predicate = p;
+        this.outer = outer;
+        this.tid = tid;
+        this.innerTableId = innerTableId;
+        this.innerAlias = innerAlias;
+        this.innerFilters = innerFilters == null ? new ArrayList<Predicate>() : innerFilters;
+
+        TupleDesc td = file.getTupleDesc();
+        Type[] types = new Type[td.numFields()];
+        String[] names = new String[td.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(i);
+            names[i] = innerAlias + "." + td.getFieldName(i);
+        }
+        outerFields = outer.getTupleDesc().numFields();
+        comboTD = TupleDesc.merge(outer.getTupleDesc(), new TupleDesc(types, names));
+    }
+
+    /**
+     * @return true if the specified file can return the tuples whose field
+     *         compares to a value with op through an index lookup
+     */
+    public static boolean canProbe(DbFile file, int field, Predicate.Op op) {
+        if (op == null || file.getTupleDesc().getFieldType(field) != Type.INT_TYPE)
+            return false;
+        if (file instanceof HashIndexFile)
+            return ((HashIndexFile) file).keyField() == field && op == Predicate.Op.EQUALS;
+        if (file instanceof BTreeFile)
+            return ((BTreeFile) file).keyField() == field && op != Predicate.Op.NOT_EQUALS
+                    && op != Predicate.Op.LIKE;
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return predicate;
+    }
+
+    public String getInnerAlias() {
+        return innerAlias;
+    }
+
+    /** @return the id of the table whose index is probed */
+    public int getInnerTableId() {
+        return innerTableId;
+    }
+
+    /**
+     * Set the transaction the index lookups run as a part of; takes effect
+     * from the next lookup.
+     *
+     * @see PreparedPlan#execute(TransactionId)
+     */
+    public void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        outer.open();
+        super.open();
+        outerTuple = null;
+    }
+
+    public void close() {
+        super.close();
+        closeMatches();
+        outer.close();
+        outerTuple = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeMatches();
+        outerTuple = null;
+        outer.rewind();
+    }
+
+    private void closeMatches() {
+        if (matches != null)
+            matches.close();
+        matches = null;
+    }
+
+    // look up the inner tuples matching the current outer tuple: the ones
+    // whose key k satisfies outer op k, i.e. k op.swap() outer
+    private DbFileIterator lookup(Field key) {
+        IndexPredicate ipred = new IndexPredicate(predicate.getOperator().swap(), key);
+        DbFile file = Database.getCatalog().getDatabaseFile(innerTableId);
+        if (file instanceof HashIndexFile)
+            return ((HashIndexFile) file).indexIterator(tid, ipred);
+        return ((BTreeFile) file).indexIterator(tid, ipred);
+    }
+
+    private boolean passes(Tuple inner) {
+        if (!predicate.filter(outerTuple, inner))
+            return false;
+        for (Predicate p : innerFilters) {
+            if (!p.filter(inner))
+                return false;
+        }
+        return true;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            while (matches != null && matches.hasNext()) {
+                Tuple inner = matches.next();
+                if (!passes(inner))
+                    continue;
+                Tuple t = new Tuple(comboTD);
+                for (int i = 0; i < outerFields; i++)
+                    t.setField(i, outerTuple.getField(i));
+                for (int i = 0; i < comboTD.numFields() - outerFields; i++)
+                    t.setField(outerFields + i, inner.getField(i));
+                return t;
+            }
+            closeMatches();
+            if (!outer.hasNext())
+                return null;
+            outerTuple = outer.next();
+            matches = lookup(outerTuple.getField(predicate.getField1()));
+            matches.open();
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { outer };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        outer = children[0];
+    }
+}
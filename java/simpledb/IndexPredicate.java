@@ -11,7 +11,7 @@ public class IndexPredicate implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private Predicate.Op op;
-    private IntField fieldValue;
+    private Field fieldValue; // an IntField or a Parameter
 
     /**
      * Constructor.
@@ -25,12 +25,16 @@ public class IndexPredicate implements Serializable {
     public IndexPredicate(Predicate.Op op, Field fvalue) {
         // some code goes here
         this.op = op;
-        this.fieldValue = (IntField)fvalue;
+        this.fieldValue = fvalue instanceof Parameter ? fvalue : (IntField)fvalue;
     }
 
+    /**
+     * @return the value compared against; if it is a Parameter, the value
+     *         bound to it
+     */
     public Field getField() {
         // some code goes here
-        return fieldValue;
+        return Parameter.resolve(fieldValue);
     }
 
     public Predicate.Op getOp() {
@@ -46,6 +50,6 @@ public class IndexPredicate implements Serializable {
     public boolean equals(IndexPredicate ipd) {
         // some code goes here
         IntField f = (IntField) ipd.getField();
-        return f.compare(op, fieldValue);
+        return f.compare(op, getField());
     }
 }
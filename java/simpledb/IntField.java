@@ -50,27 +50,34 @@ public class IntField implements Field {
     public boolean compare(Predicate.Op op, Field val) {
 
         IntField iVal = (IntField) val;
+        return compare(op, value, iVal.value);
+    }
 
+    /**
+     * Compare two raw int values with the semantics of IntField.compare,
+     * for callers that read ints straight out of page bytes.
+     */
+    public static boolean compare(Predicate.Op op, int value, int operand) {
         switch (op) {
         case EQUALS:
-            return value == iVal.value;
+            return value == operand;
         case NOT_EQUALS:
-            return value != iVal.value;
+            return value != operand;
 
         case GREATER_THAN:
-            return value > iVal.value;
+            return value > operand;
 
         case GREATER_THAN_OR_EQ:
-            return value >= iVal.value;
+            return value >= operand;
 
         case LESS_THAN:
-            return value < iVal.value;
+            return value < operand;
 
         case LESS_THAN_OR_EQ:
-            return value <= iVal.value;
+            return value <= operand;
 
     case LIKE:
-        return value == iVal.value;
+        return value == operand;
         }
 
         return false;
@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * An equi-depth histogram over a sample of the values of an INT_TYPE column,
+ * used by TableStats to estimate predicate selectivities.
+ * <p>
+ * Every bucket holds about the same number of sampled values, so buckets are
+ * narrow where values are dense and wide where they are sparse. A value is
+ * never split between two buckets; a value that makes up more than a
+ * bucket's share of the sample gets a bucket of its own, which keeps
+ * equality estimates for heavy hitters accurate. Within a bucket values are
+ * assumed to be spread uniformly over its range.
+ *
+ * @see TableStats
+ */
+public class IntHistogram {
+
+    private final int[] lo, hi; // bucket b holds values in [lo[b], hi[b]]
+    private final double[] frac; // the share of all values in bucket b
+    private final double[] distinct; // estimated distinct values in bucket b
+
+    /**
+     * Build a histogram from sampled values.
+     *
+     * @param values the sample; the first n entries are sorted in place
+     * @param n the number of sampled values
+     * @param buckets the number of buckets to aim for; heavy hitters may
+     *   make for fewer
+     * @param ndv the estimated number of distinct values in the whole
+     *   column, used to scale up the distinct values seen in each bucket
+     */
+    public IntHistogram(int[] values, int n, int buckets, double ndv) {
+        Arrays.sort(values, 0, n);
+        int seen = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || values[i] != values[i - 1])
+                seen++;
+        }
+        double scale = seen == 0 ? 1.0 : Math.max(1.0, ndv / seen);
+
+        int depth = Math.max(1, (n + buckets - 1) / buckets);
+        int[] los = new int[buckets], his = new int[buckets];
+        double[] fracs = new double[buckets], ds = new double[buckets];
+        int b = 0;
+        for (int i = 0; i < n; b++) {
+            if (b == los.length) {
+                los = Arrays.copyOf(los, 2 * b);
+                his = Arrays.copyOf(his, 2 * b);
+                fracs = Arrays.copyOf(fracs, 2 * b);
+                ds = Arrays.copyOf(ds, 2 * b);
+            }
+            int start = i, d = 0;
+            do {
+                int run = 1;
+                while (i + run < n && values[i + run] == values[i])
+                    run++;
+                if (i > start && run >= depth)
+                    break; // a heavy hitter gets a bucket of its own
+                d++;
+                i += run;
+            } while (i < n && i - start < depth);
+            los[b] = values[start];
+            his[b] = values[i - 1];
+            fracs[b] = (double) (i - start) / n;
+            ds[b] = Math.min(d * scale, (double) his[b] - los[b] + 1);
+        }
+        lo = Arrays.copyOf(los, b);
+        hi = Arrays.copyOf(his, b);
+        frac = Arrays.copyOf(fracs, b);
+        distinct = Arrays.copyOf(ds, b);
+    }
+
+    // the bucket whose range holds v, or -1
+    private int find(int v) {
+        int l = 0, h = lo.length - 1;
+        while (l <= h) {
+            int m = (l + h) >>> 1;
+            if (v < lo[m])
+                h = m - 1;
+            else if (v > hi[m])
+                l = m + 1;
+            else
+                return m;
+        }
+        return -1;
+    }
+
+    private double equal(int v) {
+        int b = find(v);
+        return b < 0 ? 0.0 : frac[b] / distinct[b];
+    }
+
+    private double less(int v) {
+        double sel = 0.0;
+        for (int b = 0; b < lo.length && lo[b] < v; b++) {
+            if (hi[b] < v)
+                sel += frac[b];
+            else
+                sel += frac[b] * ((double) v - lo[b]) / ((double) hi[b] - lo[b] + 1);
+        }
+        return sel;
+    }
+
+    /**
+     * Estimate the selectivity of a predicate with the specified operator
+     * and constant on this column. LIKE on an int means equality, as in
+     * IntField.compare.
+     *
+     * @return the estimated fraction of the column's values that satisfy
+     *   the predicate, between 0 and 1
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        double sel;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            sel = equal(v);
+            break;
+        case NOT_EQUALS:
+            sel = 1.0 - equal(v);
+            break;
+        case LESS_THAN:
+            sel = less(v);
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = less(v) + equal(v);
+            break;
+        case GREATER_THAN:
+            sel = 1.0 - less(v) - equal(v);
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1.0 - less(v);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown operator " + op);
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /**
+     * @return the chance that two values drawn from the column are equal,
+     *   i.e. the selectivity of an equality predicate with an unknown
+     *   constant drawn from the column
+     */
+    public double avgSelectivity() {
+        double sel = 0.0;
+        for (int b = 0; b < lo.length; b++)
+            sel += frac[b] * frac[b] / distinct[b];
+        return sel;
+    }
+
+    /** @return the number of buckets */
+    public int numBuckets() {
+        return lo.length;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("IntHistogram(");
+        for (int b = 0; b < lo.length; b++) {
+            if (b > 0)
+                sb.append(", ");
+            sb.append("[").append(lo[b]).append(",").append(hi[b]).append("]:")
+                .append(String.format("%.3f", frac[b]));
+        }
+        return sb.append(")").toString();
+    }
+}
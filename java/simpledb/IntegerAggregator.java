@@ -12,8 +12,8 @@ public class IntegerAggregator implements Aggregator {
     private int gbfield, afield;
     private Type gbfieldtype;
     private Op what;
-    private HashMap<String, Integer> map;
-    private HashMap<String, Integer> mapCount;
+    private HashMap<Field, Integer> map;
+    private HashMap<Field, Integer> mapCount;
     private Integer totalCount = 0;
     /**
      * Aggregate constructor
@@ -36,8 +36,8 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        map = new HashMap<String, Integer>();
-        mapCount = new HashMap<String, Integer>();
+        map = new HashMap<Field, Integer>();
+        mapCount = new HashMap<Field, Integer>();
     }
 
     /**
@@ -49,11 +49,11 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        String groupByFieldValue;
+        Field groupByFieldValue;
         Integer aggregateVal;
         Integer groupCountVal=0;
 
-        groupByFieldValue = (gbfield == NO_GROUPING ? "" : tup.getField(gbfield).toString());
+        groupByFieldValue = (gbfield == NO_GROUPING ? null : tup.getField(gbfield));
 
         Integer aValue = ((IntField) tup.getField(afield)).getValue();
 
@@ -118,7 +118,7 @@ public class IntegerAggregator implements Aggregator {
 
         // convert hash map entries to iterator of Tuples
         // map entry is <groupVal, aggregateVal> pair
-        for (String groupVal : map.keySet())
+        for (Field groupVal : map.keySet())
         {
             aggregateVal = map.get(groupVal);
             groupCount = mapCount.get(groupVal);
@@ -141,9 +141,7 @@ public class IntegerAggregator implements Aggregator {
                 tup.setField(0, new IntField(aggregateVal));
             else
             {	// tuple has a pair
-                if (gbfieldtype == Type.INT_TYPE)
-                    tup.setField(0, new IntField(new Integer(groupVal)));
-                else tup.setField(0, new StringField(groupVal, Type.STRING_LEN));
+                tup.setField(0, groupVal);
                 tup.setField(1, new IntField(aggregateVal));
             }
             tuples.add(tup);
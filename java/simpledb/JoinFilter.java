@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * JoinFilter selects the tuples of its child whose two fields satisfy a
+ * JoinPredicate, with both of the predicate's fields indexing the same
+ * tuple. JoinOptimizer uses it for the second and later predicates between
+ * two plans it joins on the first.
+ */
+public class JoinFilter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate predicate;
+    private DbIterator child;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate; both of its fields are fields of the child's
+     *            tuples
+     * @param child
+     *            The child operator
+     */
+    public JoinFilter(JoinPredicate p, DbIterator child) {
+        this.predicate = p;
+        this.child = child;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return predicate;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (predicate.filter(t, t))
+                return t;
+        }
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+}
@@ -0,0 +1,474 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * JoinOptimizer chooses the order in which the tables of a query are joined,
+ * and the algorithm of each join, from TableStats.
+ * <p>
+ * A query is given as its tables (each under an alias), the filters on each
+ * table, and the join predicates between them. Plans are enumerated by
+ * dynamic programming over sets of tables: the best plan for a set is the
+ * cheapest join of the best plans of two of its subsets that some join
+ * predicate connects (cross products are never considered, so every table
+ * must be connected to the others by join predicates.) Up to BUSHY_LIMIT
+ * tables every split is tried, giving bushy plans; up to DP_LIMIT tables one
+ * side of each join is a single table, giving left-deep plans (with either
+ * side of a join allowed to be the single table); beyond that a greedy search
+ * starts from the cheapest join of two tables and adds one table at a time.
+ * <p>
+ * Each join is costed as a Join (nested loops), a HashEquiJoin (building on
+ * its left input, MAP_SIZE tuples at a time, and scanning its right input
+ * once per batch) and, when its right input is a table stored as an index
+ * on the join field, an IndexNestedLoopJoin. Costs are in the units of
+ * TableStats: IOCOSTPERPAGE per page read, and 1 per tuple processed.
+ * Cardinalities assume predicates are independent: an equality join matches
+ * |L| |R| / max(distinct values) tuples, other joins use avgSelectivity.
+ * With setSampling, the cardinality of a join is instead estimated by
+ * running it on samples of its tables (see JoinSampler) where that gives a
+ * reliable estimate within the time budget.
+ * <p>
+ * With setAdaptive, equi-joins costed as hash joins are built as
+ * AdaptiveJoins, which pick their algorithm from the actual size of their
+ * build side; explain then reports what each one chose once it has run.
+ */
+public class JoinOptimizer {
+
+    /** Bushy plans are enumerated for up to this many tables. */
+    static final int BUSHY_LIMIT = 10;
+    /** Left-deep plans are enumerated for up to this many tables; larger queries are planned greedily. */
+    static final int DP_LIMIT = 16;
+    /** The most tables a query may join; sets of tables are bitmasks in a long. */
+    static final int MAX_TABLES = Long.SIZE;
+    /** Pages read by each index lookup before the pages holding its matches. */
+    static final double INDEX_PROBE_PAGES = 2.0;
+
+    /** A join predicate between fields of two tables, named by alias. */
+    static class JoinEdge {
+        final String alias1, alias2;
+        final int field1, field2;
+        final Predicate.Op op;
+
+        JoinEdge(String alias1, int field1, Predicate.Op op, String alias2, int field2) {
+            this.alias1 = alias1;
+            this.field1 = field1;
+            this.op = op;
+            this.alias2 = alias2;
+            this.field2 = field2;
+        }
+
+        /** @return the same predicate with its sides swapped, or null for LIKE */
+        JoinEdge swap() {
+            Predicate.Op swapped = op.swap();
+            return swapped == null ? null : new JoinEdge(alias2, field2, swapped, alias1, field1);
+        }
+    }
+
+    /** A plan for a set of tables: a scan of one table, or a join of two plans. */
+    private class Plan {
+        final long tables; // bit i set if the plan includes aliases.get(i)
+        final List<String> order; // aliases in the order their fields are output
+        final String method;
+        final Plan left, right;
+        final JoinEdge edge; // the join predicate, with alias1 in left
+        final List<JoinEdge> extra; // further predicates between left and right
+        final double card, cost;
+        Operator built; // the operator last built for this plan, if a join
+
+        Plan(int i, double card, double cost) {
+            this.tables = 1L << i;
+            this.order = Collections.singletonList(aliases.get(i));
+            this.method = "SeqScan";
+            this.left = this.right = null;
+            this.edge = null;
+            this.extra = Collections.emptyList();
+            this.card = card;
+            this.cost = cost;
+        }
+
+        Plan(String method, Plan left, Plan right, JoinEdge edge, List<JoinEdge> extra, double card,
+             double cost) {
+            this.tables = left.tables | right.tables;
+            this.order = new ArrayList<String>(left.order);
+            this.order.addAll(right.order);
+            this.method = method;
+            this.left = left;
+            this.right = right;
+            this.edge = edge;
+            this.extra = extra;
+            this.card = card;
+            this.cost = cost;
+        }
+
+        // the index of the first field of alias in this plan's output
+        int offset(String alias) {
+            int off = 0;
+            for (String a : order) {
+                if (a.equals(alias))
+                    return off;
+                off += Database.getCatalog().getTupleDesc(tables(a)).numFields();
+            }
+            throw new NoSuchElementException(alias);
+        }
+
+        DbIterator build() {
+            Operator op;
+            if (left == null) {
+                String alias = order.get(0);
+                List<Predicate> preds = filters.get(alias);
+                return new SeqScan(tid, tables(alias), alias, preds.isEmpty() ? null : preds);
+            }
+            DbIterator l = left.build();
+            if (method.equals("IndexNestedLoopJoin")) {
+                JoinPredicate p = new JoinPredicate(left.offset(edge.alias1) + edge.field1, edge.op, edge.field2);
+                List<Predicate> preds = filters.get(edge.alias2);
+                op = new IndexNestedLoopJoin(p, l, tid, tables(edge.alias2), edge.alias2,
+                        preds.isEmpty() ? null : preds);
+            } else {
+                JoinPredicate p = new JoinPredicate(left.offset(edge.alias1) + edge.field1, edge.op,
+                        right.offset(edge.alias2) + edge.field2);
+                if (method.equals("HashEquiJoin") && adaptive)
+                    op = new AdaptiveJoin(p, l, right.build());
+                else if (method.equals("HashEquiJoin"))
+                    op = new HashEquiJoin(p, l, right.build());
+                else
+                    op = new Join(p, l, right.build());
+            }
+            built = op;
+            for (JoinEdge e : extra) {
+                op.setEstimatedCardinality((int) card);
+                op = new JoinFilter(new JoinPredicate(offset(e.alias1) + e.field1, e.op,
+                        offset(e.alias2) + e.field2), op);
+            }
+            op.setEstimatedCardinality((int) card);
+            return op;
+        }
+
+        void describe(StringBuilder sb, String indent) {
+            sb.append(indent).append(built instanceof AdaptiveJoin ? "AdaptiveJoin" : method).append(" ");
+            if (left == null) {
+                String alias = order.get(0);
+                sb.append(Database.getCatalog().getTableName(tables(alias))).append(" ").append(alias);
+                for (Predicate p : filters.get(alias))
+                    sb.append(" ").append(name(alias, p.getField())).append(" ").append(p.getOp())
+                        .append(" ").append(p.getParameter() != null ? p.getParameter() : p.getOperand());
+            } else {
+                sb.append(name(edge));
+                for (JoinEdge e : extra)
+                    sb.append(" AND ").append(name(e));
+            }
+            sb.append(String.format("  (card %.0f, cost %.0f)", card, cost));
+            if (built instanceof AdaptiveJoin && ((AdaptiveJoin) built).getDecision() != null)
+                sb.append("  ran as ").append(((AdaptiveJoin) built).getDecision());
+            sb.append(String.format("%n"));
+            if (left != null) {
+                left.describe(sb, indent + "  ");
+                right.describe(sb, indent + "  ");
+            }
+        }
+    }
+
+    private final TransactionId tid;
+    private final List<String> aliases = new ArrayList<String>();
+    private final Map<String, Integer> tableIds = new HashMap<String, Integer>();
+    private final Map<String, List<Predicate>> filters = new HashMap<String, List<Predicate>>();
+    private final List<JoinEdge> joins = new ArrayList<JoinEdge>();
+    private final Map<String, TableStats> stats = new HashMap<String, TableStats>();
+    private Plan chosen = null;
+    private boolean adaptive = false;
+    private long samplingBudgetMs = 0;
+    private JoinSampler sampler = null;
+
+    /**
+     * Constructor.
+     *
+     * @param tid
+     *            The transaction the plans built will run in
+     */
+    public JoinOptimizer(TransactionId tid) {
+        this.tid = tid;
+    }
+
+    /**
+     * Add a table to the query.
+     *
+     * @param alias
+     *            The name the table goes by in the query; each table added
+     *            must have a different one
+     * @param tableId
+     *            The table
+     */
+    public void addTable(String alias, int tableId) {
+        if (tableIds.containsKey(alias))
+            throw new IllegalArgumentException("duplicate alias " + alias);
+        aliases.add(alias);
+        tableIds.put(alias, tableId);
+        filters.put(alias, new ArrayList<Predicate>());
+    }
+
+    /**
+     * Add a filter on one table; it is applied when the table is scanned.
+     *
+     * @param alias
+     *            The table's alias
+     * @param p
+     *            The filter, on a field of the table
+     */
+    public void addFilter(String alias, Predicate p) {
+        filters(alias).add(p);
+    }
+
+    /**
+     * Add a join predicate <tt>alias1.field1 op alias2.field2</tt>. Field
+     * numbers are those of each table's own TupleDesc.
+     */
+    public void addJoin(String alias1, int field1, Predicate.Op op, String alias2, int field2) {
+        filters(alias1);
+        filters(alias2);
+        if (alias1.equals(alias2))
+            throw new IllegalArgumentException("join predicate on a single table " + alias1);
+        joins.add(new JoinEdge(alias1, field1, op, alias2, field2));
+    }
+
+    /**
+     * Build equi-joins that would be HashEquiJoins as AdaptiveJoins instead.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Estimate join cardinalities from samples of the tables, spending at
+     * most the specified time on it per call to optimize.
+     *
+     * @param timeBudgetMs
+     *            the time budget, e.g. JoinSampler.DEFAULT_TIME_BUDGET_MS;
+     *            0 to use TableStats only
+     */
+    public void setSampling(long timeBudgetMs) {
+        this.samplingBudgetMs = timeBudgetMs;
+    }
+
+    private List<Predicate> filters(String alias) {
+        List<Predicate> preds = filters.get(alias);
+        if (preds == null)
+            throw new NoSuchElementException("no table with alias " + alias);
+        return preds;
+    }
+
+    private int tables(String alias) {
+        return tableIds.get(alias);
+    }
+
+    private TableStats stats(String alias) {
+        TableStats s = stats.get(alias);
+        if (s == null) {
+            String name = Database.getCatalog().getTableName(tables(alias));
+            s = TableStats.getTableStats(name);
+            if (s == null) {
+                s = new TableStats(tables(alias), TableStats.IOCOSTPERPAGE);
+                TableStats.setTableStats(name, s);
+            }
+            stats.put(alias, s);
+        }
+        return s;
+    }
+
+    private String name(String alias, int field) {
+        String name = Database.getCatalog().getTupleDesc(tables(alias)).getFieldName(field);
+        return alias + "." + (name == null || name.isEmpty() ? "#" + field : name);
+    }
+
+    private String name(JoinEdge e) {
+        return name(e.alias1, e.field1) + " " + e.op + " " + name(e.alias2, e.field2);
+    }
+
+    /**
+     * Choose the cheapest plan for the query and build it.
+     *
+     * @return an iterator over the joined tuples, whose fields are those of
+     *         each table in turn, in the order the plan joins them; each
+     *         field is named alias.fieldName
+     * @throws DbException
+     *             if the query has no tables or more than MAX_TABLES, or its
+     *             join predicates do not connect all of them
+     */
+    public DbIterator optimize() throws DbException {
+        int n = aliases.size();
+        if (n == 0)
+            throw new DbException("no tables to join");
+        if (n > MAX_TABLES)
+            throw new DbException("cannot join " + n + " tables; at most " + MAX_TABLES + " are supported");
+        Plan[] scans = new Plan[n];
+        for (int i = 0; i < n; i++) {
+            TableStats s = stats(aliases.get(i));
+            double card = s.estimateTableCardinality(s.estimateSelectivity(filters.get(aliases.get(i))));
+            scans[i] = new Plan(i, card, s.estimateScanCost() + s.totalTuples());
+        }
+        sampler = samplingBudgetMs > 0
+                ? new JoinSampler(tid, aliases, tableIds, filters, joins, samplingBudgetMs) : null;
+        Plan best = n <= DP_LIMIT ? enumerate(scans, n <= BUSHY_LIMIT) : greedy(scans);
+        sampler = null;
+        if (best == null)
+            throw new DbException("join predicates do not connect all of the tables " + aliases);
+        chosen = best;
+        return best.build();
+    }
+
+    /**
+     * @return a description of the plan the last call to optimize chose,
+     *         one operator per line with its estimated cardinality and cost
+     *         (and, for an AdaptiveJoin that has run, the algorithm it
+     *         chose), or null if optimize has not been called
+     */
+    public String explain() {
+        if (chosen == null)
+            return null;
+        StringBuilder sb = new StringBuilder();
+        chosen.describe(sb, "");
+        return sb.toString();
+    }
+
+    public String toString() {
+        String plan = explain();
+        return plan == null ? "JoinOptimizer" + aliases : plan;
+    }
+
+    /** @return the estimated cost of the plan the last call to optimize chose */
+    public double estimatedCost() {
+        return chosen == null ? 0.0 : chosen.cost;
+    }
+
+    // dynamic programming over the sets of tables; a set's plans only
+    // depend on those of its subsets, which are smaller numbers
+    private Plan enumerate(Plan[] scans, boolean bushy) {
+        int n = scans.length;
+        Plan[] best = new Plan[1 << n];
+        for (int i = 0; i < n; i++)
+            best[1 << i] = scans[i];
+        for (int s = 1; s < best.length; s++) {
+            if (Integer.bitCount(s) < 2)
+                continue;
+            if (bushy) {
+                for (int l = (s - 1) & s; l > 0; l = (l - 1) & s)
+                    best[s] = cheaper(best[s], best[l], best[s & ~l]);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    if ((s & (1 << i)) == 0)
+                        continue;
+                    best[s] = cheaper(best[s], best[s & ~(1 << i)], scans[i]);
+                    best[s] = cheaper(best[s], scans[i], best[s & ~(1 << i)]);
+                }
+            }
+        }
+        return best[best.length - 1];
+    }
+
+    // start from the cheapest join of two tables, then join in whichever
+    // table makes the cheapest plan, until every table is joined
+    private Plan greedy(Plan[] scans) {
+        Plan cur = null;
+        for (JoinEdge e : joins) {
+            Plan a = scans[aliases.indexOf(e.alias1)], b = scans[aliases.indexOf(e.alias2)];
+            cur = cheaper(cheaper(cur, a, b), b, a);
+        }
+        long all = -1L >>> (Long.SIZE - scans.length);
+        while (cur != null && cur.tables != all) {
+            Plan next = null;
+            for (Plan scan : scans) {
+                if ((cur.tables & scan.tables) == 0)
+                    next = cheaper(cheaper(next, cur, scan), scan, cur);
+            }
+            cur = next;
+        }
+        return cur;
+    }
+
+    private Plan cheaper(Plan best, Plan left, Plan right) {
+        if (left == null || right == null)
+            return best;
+        Plan p = join(left, right);
+        return p != null && (best == null || p.cost < best.cost) ? p : best;
+    }
+
+    // the cheapest way to join left with right, or null if no join
+    // predicate connects them
+    private Plan join(Plan left, Plan right) {
+        List<JoinEdge> edges = new ArrayList<JoinEdge>(); // oriented from left to right where possible
+        double card = left.card * right.card;
+        for (JoinEdge e : joins) {
+            long a1 = 1L << aliases.indexOf(e.alias1), a2 = 1L << aliases.indexOf(e.alias2);
+            JoinEdge oriented;
+            if ((left.tables & a1) != 0 && (right.tables & a2) != 0)
+                oriented = e;
+            else if ((left.tables & a2) != 0 && (right.tables & a1) != 0)
+                oriented = e.swap() == null ? e : e.swap();
+            else
+                continue;
+            edges.add(oriented);
+            card *= selectivity(oriented, left, right);
+        }
+        if (edges.isEmpty())
+            return null;
+        if (sampler != null) {
+            double sampled = sampler.estimate(left.tables | right.tables);
+            if (sampled >= 0)
+                card = sampled;
+        }
+
+        Plan best = null;
+        for (JoinEdge e : edges) {
+            if ((left.tables & (1L << aliases.indexOf(e.alias1))) == 0)
+                continue; // a LIKE that only runs right to left; a JoinFilter can still apply it
+            List<JoinEdge> extra = new ArrayList<JoinEdge>(edges);
+            extra.remove(e);
+
+            double nl = left.cost + left.card * right.cost + left.card * right.card;
+            best = min(best, new Plan("Join", left, right, e, extra, card, nl));
+
+            if (e.op == Predicate.Op.EQUALS) {
+                double hash = left.cost + Math.ceil(left.card / HashEquiJoin.MAP_SIZE) * right.cost
+                        + left.card + right.card + card;
+                best = min(best, new Plan("HashEquiJoin", left, right, e, extra, card, hash));
+            }
+
+            DbFile inner = right.left == null ? Database.getCatalog().getDatabaseFile(tables(e.alias2)) : null;
+            if (inner != null && IndexNestedLoopJoin.canProbe(inner, e.field2, e.op.swap())) {
+                TableStats s = stats(e.alias2);
+                double perLookup = s.totalTuples() * selectivity(e, left, scanOf(e.alias2));
+                double perPage = s.numPages() == 0 ? 1.0 : Math.max(1.0, (double) s.totalTuples() / s.numPages());
+                double lookup = TableStats.IOCOSTPERPAGE * (INDEX_PROBE_PAGES + perLookup / perPage) + perLookup;
+                double inl = left.cost + left.card * lookup + card;
+                best = min(best, new Plan("IndexNestedLoopJoin", left, right, e, extra, card, inl));
+            }
+        }
+        return best;
+    }
+
+    private static Plan min(Plan a, Plan b) {
+        return a == null || b.cost < a.cost ? b : a;
+    }
+
+    // a stand-in for an unfiltered scan of a table, for cardinalities
+    private Plan scanOf(String alias) {
+        int i = aliases.indexOf(alias);
+        return new Plan(i, stats(alias).totalTuples(), 0.0);
+    }
+
+    // the fraction of pairs of tuples from the two plans that satisfy e
+    private double selectivity(JoinEdge e, Plan left, Plan right) {
+        Plan p1 = (left.tables & (1L << aliases.indexOf(e.alias1))) != 0 ? left : right;
+        Plan p2 = p1 == left ? right : left;
+        TableStats s1 = stats(e.alias1), s2 = stats(e.alias2);
+        double ndv = Math.max(Math.min(s1.numDistinct(e.field1), Math.max(p1.card, 1.0)),
+                Math.min(s2.numDistinct(e.field2), Math.max(p2.card, 1.0)));
+        switch (e.op) {
+        case EQUALS:
+            return 1.0 / ndv;
+        case NOT_EQUALS:
+            return 1.0 - 1.0 / ndv;
+        default:
+            return s1.avgSelectivity(e.field1, e.op);
+        }
+    }
+}
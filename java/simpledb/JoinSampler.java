@@ -0,0 +1,399 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JoinSampler estimates the cardinalities of joins by running them on
+ * samples of their tables, for JoinOptimizer. Unlike the estimates from
+ * TableStats, which assume predicates are independent, this sees
+ * correlations between filters and join columns, and between the joins of
+ * a multi-way join.
+ * <p>
+ * The sample of a table is every tuple on SAMPLE_PAGES of its pages, chosen
+ * at random and read through the BufferPool (all of them, if the table has
+ * no more pages than that). The join of a set of tables is computed on their
+ * filtered samples, one table at a time, hashing on an equality predicate
+ * where there is one; its size, times numPages / sampledPages for each
+ * table, estimates the join's cardinality. Estimates from fewer than
+ * MIN_MATCHES sample tuples are too noisy to use, unless every sample is
+ * the whole table.
+ * <p>
+ * Sampling is bounded by a time budget per optimization; once it is spent,
+ * no further estimates are made and the optimizer falls back to TableStats.
+ * Each set's sample join keeps a uniform sample of at most MAX_SAMPLE_ROWS
+ * of its rows (joins of larger sets extrapolate from those), and all of
+ * them together at most MAX_TOTAL_ROWS.
+ * Table samples are cached across optimizations until the table's
+ * modification counter changes. Tables that are not HeapFiles are not
+ * sampled.
+ */
+public class JoinSampler {
+
+    /** Default time budget for sampling, per optimization. */
+    public static final long DEFAULT_TIME_BUDGET_MS = 50;
+    /** Pages sampled per table. */
+    static final int SAMPLE_PAGES = 32;
+    /** Fewest sample join tuples an estimate is made from. */
+    static final int MIN_MATCHES = 10;
+    /** Rows of one set's sample join that are kept. */
+    static final int MAX_SAMPLE_ROWS = 4096;
+    /** Rows of all sample joins that are kept, per optimization. */
+    static final int MAX_TOTAL_ROWS = 1 << 20;
+
+    /** The sample of a table, valid while the table's counter is unchanged. */
+    private static final class Sample {
+        final long version;
+        final List<Tuple> tuples;
+        final double scale; // numPages / sampled pages
+        final boolean complete;
+
+        Sample(long version, List<Tuple> tuples, double scale, boolean complete) {
+            this.version = version;
+            this.tuples = tuples;
+            this.scale = scale;
+            this.complete = complete;
+        }
+    }
+
+    // keyed by table id and, for a table that appears more than once in a
+    // query, which appearance, so that a self join joins independent samples
+    private static final ConcurrentHashMap<String, Sample> samples = new ConcurrentHashMap<String, Sample>();
+
+    /** The sample join of a set of tables. */
+    private static final class Result {
+        final List<Tuple[]> rows; // indexed by alias
+        final double matches; // estimated size of the full sample join
+        final boolean exact; // every sample complete, nothing dropped
+
+        Result(List<Tuple[]> rows, double matches, boolean exact) {
+            this.rows = rows;
+            this.matches = matches;
+            this.exact = exact;
+        }
+    }
+
+    private final TransactionId tid;
+    private final List<String> aliases;
+    private final Map<String, Integer> tableIds;
+    private final Map<String, List<Predicate>> filters;
+    private final List<JoinOptimizer.JoinEdge> joins;
+    private final long deadline;
+
+    private final Sample[] tableSamples;
+    private final HashMap<Long, Result> results = new HashMap<Long, Result>();
+    private final HashSet<Long> failed = new HashSet<Long>();
+    private long totalRows;
+    private boolean outOfTime;
+
+    /**
+     * @param budgetMs
+     *            how long estimates may take in all, from now
+     */
+    JoinSampler(TransactionId tid, List<String> aliases, Map<String, Integer> tableIds,
+            Map<String, List<Predicate>> filters, List<JoinOptimizer.JoinEdge> joins, long budgetMs) {
+        this.tid = tid;
+        this.aliases = aliases;
+        this.tableIds = tableIds;
+        this.filters = filters;
+        this.joins = joins;
+        this.deadline = System.nanoTime() + budgetMs * 1000000L;
+        this.tableSamples = new Sample[aliases.size()];
+    }
+
+    /**
+     * @param tables
+     *            a set of tables, as a bitmask over the aliases
+     * @return the estimated cardinality of the join of the tables, with
+     *         their filters, or -1 if there is no reliable estimate
+     */
+    double estimate(long tables) {
+        Result r = result(tables);
+        if (r == null || (r.matches < MIN_MATCHES && !r.exact))
+            return -1;
+        double card = r.matches;
+        for (int i = 0; i < aliases.size(); i++) {
+            if ((tables & (1L << i)) != 0)
+                card *= tableSamples[i].scale;
+        }
+        return card;
+    }
+
+    private boolean timeUp() {
+        if (!outOfTime && System.nanoTime() > deadline) {
+            outOfTime = true;
+            Debug.log(1, "join sampling ran out of time after %d sample joins", results.size());
+        }
+        return outOfTime;
+    }
+
+    // the sample join of a set of tables, or null if it cannot be computed
+    private Result result(long tables) {
+        Result r = results.get(tables);
+        if (r != null || failed.contains(tables))
+            return r;
+        if (timeUp())
+            return null;
+        r = Long.bitCount(tables) == 1 ? scan(Long.numberOfTrailingZeros(tables)) : join(tables);
+        if (r == null)
+            failed.add(tables);
+        else
+            results.put(tables, r);
+        return r;
+    }
+
+    private Result scan(int i) {
+        Sample s = sample(i);
+        if (s == null)
+            return null;
+        List<Predicate> preds = filters.get(aliases.get(i));
+        ArrayList<Tuple[]> rows = new ArrayList<Tuple[]>();
+        for (Tuple t : s.tuples) {
+            if (passes(t, preds)) {
+                Tuple[] row = new Tuple[aliases.size()];
+                row[i] = t;
+                rows.add(row);
+            }
+        }
+        totalRows += rows.size();
+        return new Result(rows, rows.size(), s.complete);
+    }
+
+    private static boolean passes(Tuple t, List<Predicate> preds) {
+        for (Predicate p : preds) {
+            if (!p.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    // join one table of the set with the join of the others; any table
+    // whose removal leaves the others connected will do
+    private Result join(long tables) {
+        for (int i = 0; i < aliases.size(); i++) {
+            long rest = tables & ~(1L << i);
+            if ((tables & (1L << i)) == 0 || !connected(rest))
+                continue;
+            List<JoinOptimizer.JoinEdge> edges = edges(rest, i);
+            if (edges.isEmpty())
+                continue;
+            Result left = result(rest), right = result(1L << i);
+            if (left == null || right == null)
+                return null;
+            return join(left, right, i, edges);
+        }
+        return null;
+    }
+
+    private Result join(Result left, Result right, int i, List<JoinOptimizer.JoinEdge> edges) {
+        // hash the single table's sample on an equality predicate, if any
+        JoinOptimizer.JoinEdge hashed = null;
+        for (JoinOptimizer.JoinEdge e : edges) {
+            if (e.op == Predicate.Op.EQUALS) {
+                hashed = e;
+                break;
+            }
+        }
+        HashMap<Field, List<Tuple[]>> map = null;
+        int outerIdx = -1, outerField = -1, innerField = -1;
+        if (hashed != null) {
+            boolean innerFirst = aliases.indexOf(hashed.alias1) == i;
+            outerIdx = aliases.indexOf(innerFirst ? hashed.alias2 : hashed.alias1);
+            outerField = innerFirst ? hashed.field2 : hashed.field1;
+            innerField = innerFirst ? hashed.field1 : hashed.field2;
+            map = new HashMap<Field, List<Tuple[]>>();
+            for (Tuple[] row : right.rows) {
+                Field k = row[i].getField(innerField);
+                List<Tuple[]> l = map.get(k);
+                if (l == null) {
+                    l = new ArrayList<Tuple[]>();
+                    map.put(k, l);
+                }
+                l.add(row);
+            }
+        }
+
+        int cap = (int) Math.min(MAX_SAMPLE_ROWS, MAX_TOTAL_ROWS - totalRows);
+        if (cap <= 0)
+            return null;
+        Reservoir kept = new Reservoir(cap);
+        // with only the hashed predicate, every candidate matches, so matches
+        // are counted a list at a time and only the kept ones are built
+        boolean allMatch = map != null && edges.size() == 1;
+        long count = 0;
+        int steps = 0;
+        for (Tuple[] outer : left.rows) {
+            List<Tuple[]> candidates = map == null ? right.rows : map.get(outer[outerIdx].getField(outerField));
+            if (candidates == null)
+                continue;
+            if (allMatch) {
+                long end = count + candidates.size();
+                while (kept.next < end)
+                    kept.keep(combine(outer, candidates.get((int) (kept.next - count)), i));
+                count = end;
+                if ((++steps & 1023) == 0 && timeUp())
+                    return null;
+                continue;
+            }
+            for (Tuple[] inner : candidates) {
+                if ((++steps & 1023) == 0 && timeUp())
+                    return null;
+                Tuple[] row = combine(outer, inner, i);
+                if (!satisfies(row, edges))
+                    continue;
+                if (kept.next == count)
+                    kept.keep(row);
+                count++;
+            }
+        }
+        totalRows += kept.rows.size();
+        // each row of the left result stands for matches / rows.size() rows
+        double weight = left.rows.isEmpty() ? 1.0 : left.matches / left.rows.size();
+        boolean exact = left.exact && right.exact && kept.rows.size() == count;
+        return new Result(kept.rows, count * weight, exact);
+    }
+
+    private static Tuple[] combine(Tuple[] outer, Tuple[] inner, int i) {
+        Tuple[] row = outer.clone();
+        row[i] = inner[i];
+        return row;
+    }
+
+    /**
+     * A uniform sample of at most cap of a stream of rows (Li's Algorithm
+     * L): next is the index in the stream of the next row to keep, so rows
+     * that would not be kept need not be built at all.
+     */
+    private static final class Reservoir {
+        final ArrayList<Tuple[]> rows = new ArrayList<Tuple[]>();
+        final int cap;
+        final Random rand = new Random(17);
+        double w = 1.0;
+        long next = 0;
+
+        Reservoir(int cap) {
+            this.cap = cap;
+        }
+
+        void keep(Tuple[] row) {
+            if (rows.size() < cap)
+                rows.add(row);
+            else
+                rows.set(rand.nextInt(cap), row);
+            if (rows.size() < cap) {
+                next++;
+                return;
+            }
+            w *= Math.exp(Math.log(1.0 - rand.nextDouble()) / cap);
+            next += (long) Math.floor(Math.log(1.0 - rand.nextDouble()) / Math.log(1.0 - w)) + 1;
+        }
+    }
+
+    private boolean satisfies(Tuple[] row, List<JoinOptimizer.JoinEdge> edges) {
+        for (JoinOptimizer.JoinEdge e : edges) {
+            Field f1 = row[aliases.indexOf(e.alias1)].getField(e.field1);
+            Field f2 = row[aliases.indexOf(e.alias2)].getField(e.field2);
+            if (!f1.compare(e.op, f2))
+                return false;
+        }
+        return true;
+    }
+
+    // the join predicates between table i and the set of tables
+    private List<JoinOptimizer.JoinEdge> edges(long tables, int i) {
+        ArrayList<JoinOptimizer.JoinEdge> edges = new ArrayList<JoinOptimizer.JoinEdge>();
+        for (JoinOptimizer.JoinEdge e : joins) {
+            int a1 = aliases.indexOf(e.alias1), a2 = aliases.indexOf(e.alias2);
+            if ((a1 == i && (tables & (1L << a2)) != 0) || (a2 == i && (tables & (1L << a1)) != 0))
+                edges.add(e);
+        }
+        return edges;
+    }
+
+    // whether the join predicates connect all of a set of tables
+    private boolean connected(long tables) {
+        if (tables == 0)
+            return false;
+        long reached = Long.lowestOneBit(tables);
+        boolean grew = true;
+        while (grew) {
+            grew = false;
+            for (JoinOptimizer.JoinEdge e : joins) {
+                long a1 = 1L << aliases.indexOf(e.alias1), a2 = 1L << aliases.indexOf(e.alias2);
+                if ((tables & a1) == 0 || (tables & a2) == 0)
+                    continue;
+                if (((reached & a1) != 0) != ((reached & a2) != 0)) {
+                    reached |= a1 | a2;
+                    grew = true;
+                }
+            }
+        }
+        return reached == tables;
+    }
+
+    // the sample of alias i's table, from the cache if it is still valid
+    private Sample sample(int i) {
+        if (tableSamples[i] != null)
+            return tableSamples[i];
+        int tableId = tableIds.get(aliases.get(i));
+        int appearance = 0;
+        for (int j = 0; j < i; j++) {
+            if (tableIds.get(aliases.get(j)) == tableId)
+                appearance++;
+        }
+        String key = tableId + "/" + appearance;
+        Sample s = samples.get(key);
+        long version = BufferPool.getTableVersion(tableId);
+        if (s == null || s.version != version) {
+            s = read(tableId, appearance, version);
+            if (s == null)
+                return null;
+            samples.put(key, s);
+        }
+        tableSamples[i] = s;
+        return s;
+    }
+
+    private Sample read(int tableId, int appearance, long version) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof HeapFile))
+            return null;
+        int numPages = ((HeapFile) file).numPages();
+        int[] pages;
+        if (numPages <= SAMPLE_PAGES) {
+            pages = new int[numPages];
+            for (int p = 0; p < numPages; p++)
+                pages[p] = p;
+        } else {
+            // a fixed seed, so that the same table gives the same plans
+            Random rand = new Random(31L * tableId + appearance);
+            LinkedHashSet<Integer> chosen = new LinkedHashSet<Integer>();
+            while (chosen.size() < SAMPLE_PAGES)
+                chosen.add(rand.nextInt(numPages));
+            pages = new int[SAMPLE_PAGES];
+            int k = 0;
+            for (int p : chosen)
+                pages[k++] = p;
+            Arrays.sort(pages);
+        }
+
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        try {
+            for (int p : pages) {
+                if (timeUp())
+                    return null;
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(tableId, p), Permissions.READ_ONLY);
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext())
+                    tuples.add(it.next());
+            }
+        } catch (DbException e) {
+            return null;
+        } catch (TransactionAbortedException e) {
+            return null;
+        }
+        double scale = pages.length == 0 ? 1.0 : (double) numPages / pages.length;
+        return new Sample(version, tuples, scale, pages.length == numPages);
+    }
+}
@@ -2,8 +2,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.GZIPOutputStream;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +37,78 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Log buffer and group commit: </u>
+<p>
+
+Appending a record does not touch the file.  appendRecord advances the
+tail LSN and copies the record into an in-memory log buffer (a direct
+ByteBuffer).  A flusher thread writes the buffer to the file with
+FileChannel.write; there are two buffers, so appends go on into one
+while the other is being written.  force(lsn) asks the flusher to write
+and force everything up to the specified LSN and waits until it has.
+<p>
+
+logCommit appends its record while holding the LogFile lock, but waits
+for durability outside it.  Commits that arrive while a force is
+running are batched into the next one.  The buffer and flush state is
+protected by flushLock; writes to the segment files, and forcing them,
+happen under ioLock.  Neither is ever held while
+acquiring the LogFile lock, and the flusher never takes it, so a thread
+holding the LogFile lock may wait for a force.
+
+<u> Recovery: </u>
+<p>
+
+Recovery follows ARIES.  Every record has a log sequence number (LSN),
+and every page that supports it (see Page#getLSN) carries the LSN of
+the last record that describes its contents on disk.  recover() runs
+three passes:
+
+<ul>
+<li> Analysis scans forward from the last checkpoint, rebuilding the
+table of active transactions (with their last LSN) and the dirty page
+table (with, for each page, the first LSN that may not be on disk.)
+The tables saved in the checkpoint are merged in when its end record is
+reached.
+
+<li> Redo scans forward from the smallest LSN in the dirty page table
+and reapplies UPDATE and CLR records, but only to pages whose LSN is
+older than the record.  Records only depend on earlier records for the
+same page, so the scan hands each record to one of several worker
+threads chosen by the hash of its PageId; each worker applies its
+records in log order.  Undo starts once every worker is done.
+
+<li> Undo rolls back every transaction still active, newest record
+first, writing a compensation log record (CLR) for each update it
+undoes, so that a crash during recovery never undoes anything twice.
+</ul>
+
+rollback() uses the same undo logic for a single live transaction.
+
+<u> Checkpoints: </u>
+<p>
+
+Checkpoints are fuzzy: logCheckpoint writes a BEGIN_CHECKPOINT record,
+takes a copy of the buffer pool's dirty page table (for each page with
+logged changes not yet on disk, the LSN of the first such change), and
+writes an END_CHECKPOINT record holding that table and the active
+transaction table.  Transactions keep running throughout; no page is
+written while the checkpoint holds a lock.  Pages that have stayed dirty
+since the previous checkpoint are then written one at a time, so that
+the log can be truncated up to the oldest recLSN.
+
+<u> Segments and archiving: </u>
+<p>
+
+The records live in segment files next to the log file, each named
+after the LSN of its first record.  A new segment is started at the
+first record boundary after the current one reaches the segment size,
+so a record never spans two files.  The checkpoint remembers the oldest
+LSN recovery still needs; logTruncate drops every segment that ends
+before it, which only takes the LogFile lock long enough to take them
+out of the segment map.  The files are then deleted, or, if an archive
+directory is set, compressed into it first, without holding any lock.
 */
 
 /**
@@ -39,33 +116,55 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself only holds a header of two long integers:
+the LSN of the BEGIN_CHECKPOINT record of the last complete checkpoint
+(or -1 if there are no checkpoints), and the LSN the log was started at.
+
+<li> The records are in segment files named after the log file, a dot
+and the LSN of the segment's first record, zero padded to 19 digits
+(log.0000000000000000016.)  Segments are contiguous: each starts at the
+LSN where the previous one ends.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> LSNs are logical: the record starting at offset o of the segment
+that starts at LSN s has LSN s + o.  They keep increasing when segments
+are truncated and when the log is thrown away at startup, so LSNs
+stored in pages never look newer than the log.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> All data in the segments consists of log records.  Log records
+are variable length.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record begins with an integer type, a long integer
+transaction id and the long integer LSN of the previous record of the
+same transaction (or -1).
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> Each log record ends with a long integer holding its own LSN.
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+BEGIN_CHECKPOINT, END_CHECKPOINT and CLR
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li> ABORT, COMMIT, BEGIN and BEGIN_CHECKPOINT records contain no
+additional data
 
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li>UPDATE RECORDS consist of a reference to the page (a tag for its
+class, and its id as a tag for the id class plus the id's fields; see
+writePageRef() and PageCodecs)
+followed by a PageDelta holding only the byte ranges that changed, with
+their old and new contents.  A one-tuple insert costs a few dozen bytes
+rather than two full page images.  See LogFile.print() for an example.
+
+<li> CLR records consist of the long integer LSN of the next record of
+the transaction that still has to be undone, followed by a page
+reference and the delta the undo applied (the inverse of the undone
+UPDATE's.)
+
+<li> END_CHECKPOINT records consist of active transactions at the time
+the checkpoint was taken, with their first and last log records, and of
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id, a
+long integer first record LSN and a long integer last record LSN for
+each active transaction; then an integer count of dirty pages, and for
+each the page id (see writePageId())
+and a long integer recLSN.
 
 </ul>
 
@@ -74,24 +173,72 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the header
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
-    static final int CHECKPOINT_RECORD = 5;
+    static final int END_CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
+    static final int BEGIN_CHECKPOINT_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** LSN meaning "no record": the previous LSN of a transaction's first
+        record, and the LSN of a page that was never logged */
+    public static final long NO_LSN = -1;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+    final static long NO_TID = -1;
 
-    long currentOffset = -1;//protected by this
+    long baseLSN = 0; // LSN of the first record kept; protected by this
+    long truncateLSN = NO_LSN; // recovery needs no record before this; protected by this
+    long currentLSN = 0; // LSN the next record will get; protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    /** Initial size of each of the two log buffers; they grow to fit
+        any larger record. */
+    static final int LOG_BUFFER_SIZE = 1 << 20;
+    /** The flusher thread exits after this many ms without work, and is
+        restarted by the next append that needs it. */
+    private static final long FLUSHER_IDLE_MS = 1000;
+
+    private final Object flushLock = new Object();
+    // the rest of these fields are protected by flushLock
+    private ByteBuffer active = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE); // appends go here
+    private long activeStart = 0; // LSN of the first byte of active
+    private ByteBuffer spare = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE); // being written
+    private long spareStart = 0; // LSN of the first byte of spare
+    private boolean spareFull = false; // spare holds bytes the flusher has not written yet
+    private long writtenLSN = 0; // every record below this LSN is in the file
+    private long durableLSN = 0; // every record below this LSN is forced
+    private long requestedLSN = 0; // force(lsn) callers are waiting for durableLSN >= this
+    private IOException flushError = null; // the flusher failed; the log is unusable
+    private Thread flusher = null;
+
+    private final Object ioLock = new Object(); // held while writing or forcing the files
+    private final LinkedHashSet<Segment> unforced = new LinkedHashSet<Segment>(); // protected by ioLock
+
+    /** Default size at which a new segment is started. */
+    static final long SEGMENT_SIZE = 16 << 20;
+
+    // start LSN -> segment; segments are added by appends and removed by
+    // truncation and recovery, and looked up by the flusher without a lock
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+    private long tailSegment = 0; // start LSN of the segment appends go to; protected by flushLock
+    private volatile long segmentSize = SEGMENT_SIZE;
+    private volatile File archiveDir = null;
+
+    /** Records queued for each redo worker before the log scan waits. */
+    private static final int REDO_QUEUE_SIZE = 1024;
+    private int redoThreads = Runtime.getRuntime().availableProcessors();
+
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -109,6 +256,19 @@ public class LogFile {
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
 
+        String[] names = segmentDir().list();
+        String prefix = f.getName() + ".";
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (!names[i].startsWith(prefix))
+                continue;
+            try {
+                long start = Long.parseLong(names[i].substring(prefix.length()));
+                segments.put(start, new Segment(new File(segmentDir(), names[i]), start));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
                 // public void run() { shutdown(); }
@@ -127,18 +287,162 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            // start after the old log's last LSN, since pages on disk may
+            // carry LSNs from it
+            long start = HEADER_SIZE;
+            if (!segments.isEmpty()) {
+                Segment last = segments.lastEntry().getValue();
+                start = Math.max(start, last.start + last.file.length());
+            } else if (raf.length() >= HEADER_SIZE) {
+                raf.seek(LONG_SIZE);
+                start = Math.max(start, raf.readLong());
+            }
+            resetLog(start);
         }
     }
 
+    // replace the log with an empty one whose first record will get LSN
+    // start; LSNs start at HEADER_SIZE, so a page LSN of 0 is never-logged
+    private void resetLog(long start) throws IOException {
+        raf.seek(0);
+        raf.setLength(0);
+        raf.writeLong(NO_CHECKPOINT_ID);
+        raf.writeLong(start);
+        synchronized (ioLock) {
+            for (Segment seg : segments.values()) {
+                seg.close();
+                seg.file.delete();
+            }
+            unforced.clear();
+        }
+        segments.clear();
+        segments.put(start, new Segment(segmentFile(start), start));
+        baseLSN = start;
+        truncateLSN = NO_LSN;
+        resetBuffer(start);
+        tidToFirstLogRecord.clear();
+        tidToLastLogRecord.clear();
+        forceHeader();
+    }
+
+    // continue the log at the specified LSN, which everything before is
+    // already in the file and which is in the last segment; caller holds
+    // the LogFile lock
+    private void resetBuffer(long lsn) {
+        synchronized (flushLock) {
+            tailSegment = segments.lastKey();
+            currentLSN = lsn;
+            active.clear();
+            activeStart = lsn;
+            writtenLSN = lsn;
+            durableLSN = lsn;
+            requestedLSN = lsn;
+        }
+    }
+
+    // force a header update written directly to the file
+    private void forceHeader() throws IOException {
+        synchronized (ioLock) {
+            raf.getChannel().force(true);
+        }
+    }
+
+    /** One segment file of the log; see the format note above. */
+    private static class Segment {
+        final long start; // LSN of the first record
+        final File file;
+        private RandomAccessFile raf = null; // opened on first use
+
+        Segment(File file, long start) {
+            this.file = file;
+            this.start = start;
+        }
+
+        synchronized RandomAccessFile file() throws IOException {
+            if (raf == null)
+                raf = new RandomAccessFile(file, "rw");
+            return raf;
+        }
+
+        synchronized void close() throws IOException {
+            if (raf != null)
+                raf.close();
+            raf = null;
+        }
+    }
+
+    private File segmentDir() {
+        return logFile.getAbsoluteFile().getParentFile();
+    }
+
+    private File segmentFile(long start) {
+        return new File(segmentDir(), logFile.getName() + "." + String.format("%019d", start));
+    }
+
+    /** Set the size at which appends start a new segment.  Smaller
+        segments let truncation free space sooner. */
+    public void setSegmentSize(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("segment size must be positive");
+        segmentSize = bytes;
+    }
+
+    /** Set the directory truncated segments are compressed into, or null
+        (the default) to delete them. */
+    public void setArchiveDirectory(File dir) throws IOException {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create archive directory " + dir);
+        archiveDir = dir;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** Append a record to the end of the log buffer and, unless tid is
+        NO_TID, chain it to the transaction's previous record.  The record
+        reaches the file when the flusher writes the buffer out.
+        Callers hold the LogFile lock and have called preAppend().
+
+        @param type The record type
+        @param tid The transaction id to store in the record
+        @param payload The type-specific contents of the record
+        @return The LSN of the new record
+    */
+    private long appendRecord(int type, long tid, byte[] payload) throws IOException {
+        Long prev = tid == NO_TID ? null : tidToLastLogRecord.get(tid);
+        int len = INT_SIZE + 3 * LONG_SIZE + payload.length;
+        long lsn;
+
+        synchronized (flushLock) {
+            reserve(len);
+            lsn = currentLSN;
+            if (lsn - tailSegment >= segmentSize) {
+                // the flusher finds it in the map before it sees these bytes
+                segments.put(lsn, new Segment(segmentFile(lsn), lsn));
+                tailSegment = lsn;
+            }
+            active.putInt(type);
+            active.putLong(tid);
+            active.putLong(prev == null ? NO_LSN : prev);
+            active.put(payload);
+            active.putLong(lsn);
+            currentLSN = lsn + len;
+        }
+
+        if (tid != NO_TID) {
+            tidToLastLogRecord.put(tid, lsn);
+            if (!tidToFirstLogRecord.containsKey(tid))
+                tidToFirstLogRecord.put(tid, lsn);
+        }
+        return lsn;
+    }
+
+    private void endTransaction(long tid) {
+        tidToFirstLogRecord.remove(tid);
+        tidToLastLogRecord.remove(tid);
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -148,6 +452,8 @@ public class LogFile {
         // calls rollback
 
         synchronized (Database.getBufferPool()) {
+            // rollback writes pages directly
+            Database.getBufferPool().awaitWrites();
 
             synchronized(this) {
                 preAppend();
@@ -155,144 +461,302 @@ public class LogFile {
                 //should we verify that this is a live transaction?
 
                 // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
+                // live transactions (needs tidToLastLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendRecord(ABORT_RECORD, tid.getId(), new byte[0]);
                 force();
-                tidToFirstLogRecord.remove(tid.getId());
+                endTransaction(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  Returns only once the commit record
+        is durable, but shares the force with other concurrent
+        committers (see the group commit note above.)
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = appendRecord(COMMIT_RECORD, tid.getId(), new byte[0]);
+            endTransaction(tid.getId());
+        }
+        force(lsn);
+    }
+
+    // make room for len bytes in the active buffer, handing it to the
+    // flusher if it is too full; caller holds flushLock
+    private void reserve(int len) throws IOException {
+        while (active.remaining() < len) {
+            while (spareFull) {
+                checkFlushError();
+                ensureFlusher();
+                waitFlush();
+            }
+            if (active.position() == 0) {
+                // a record larger than the buffer: grow it
+                active = ByteBuffer.allocateDirect(Math.max(len, 2 * active.capacity()));
+                continue;
+            }
+            swapBuffers();
+        }
+    }
+
+    // hand the active buffer to the flusher; caller holds flushLock and
+    // has checked that spare is free
+    private void swapBuffers() {
+        ByteBuffer full = active;
+        active = spare;
+        active.clear();
+        spare = full;
+        spareStart = activeStart;
+        activeStart += full.position();
+        spareFull = true;
+        ensureFlusher();
+        flushLock.notifyAll();
+    }
+
+    // caller holds flushLock
+    private void ensureFlusher() {
+        if (flusher == null) {
+            flusher = new Thread(new Runnable() {
+                    public void run() {
+                        flushLoop();
+                    }
+                }, "LogFile flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    // caller holds flushLock
+    private void waitFlush() throws IOException {
+        try {
+            flushLock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for log flush");
+        }
+    }
+
+    // caller holds flushLock
+    private void checkFlushError() throws IOException {
+        if (flushError != null)
+            throw new IOException("log flusher failed", flushError);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Body of the flusher thread: write full buffers, and partial ones
+        when a force is waiting for them, forcing the file when asked. */
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer buf;
+            long start;
+            boolean force;
+            synchronized (flushLock) {
+                long idleSince = System.currentTimeMillis();
+                while (!spareFull && requestedLSN <= durableLSN) {
+                    long left = FLUSHER_IDLE_MS - (System.currentTimeMillis() - idleSince);
+                    if (left <= 0) {
+                        flusher = null;
+                        return;
+                    }
+                    try {
+                        flushLock.wait(left);
+                    } catch (InterruptedException e) {
+                        flusher = null;
+                        return;
+                    }
+                }
+                if (!spareFull && active.position() > 0 && requestedLSN > writtenLSN)
+                    swapBuffers();
+                buf = spareFull ? spare : null;
+                start = spareStart;
+                force = requestedLSN > durableLSN;
+            }
+
+            long end = start;
+            try {
+                synchronized (ioLock) {
+                    if (buf != null) {
+                        buf.flip();
+                        end = start + buf.limit();
+                        writeSegments(buf, start);
+                    }
+                    if (force) {
+                        for (Segment seg : unforced)
+                            seg.file().getChannel().force(true);
+                        unforced.clear();
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (flushLock) {
+                    flushError = e;
+                    flusher = null;
+                    flushLock.notifyAll();
+                }
+                return;
+            }
+
+            synchronized (flushLock) {
+                if (buf != null) {
+                    buf.clear();
+                    spareFull = false;
+                    writtenLSN = end;
+                }
+                if (force && writtenLSN > durableLSN)
+                    durableLSN = writtenLSN;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    // write buf, which holds the log from LSN start on, into the segments
+    // it spans; caller holds ioLock
+    private void writeSegments(ByteBuffer buf, long start) throws IOException {
+        int limit = buf.limit();
+        while (buf.hasRemaining()) {
+            long lsn = start + buf.position();
+            Segment seg = segments.floorEntry(lsn).getValue();
+            Long next = segments.higherKey(lsn);
+            buf.limit(next == null ? limit : (int) Math.min(limit, next - start));
+            FileChannel channel = seg.file().getChannel();
+            long off = lsn - seg.start;
+            while (buf.hasRemaining())
+                off += channel.write(buf, off);
+            unforced.add(seg);
+            buf.limit(limit);
+        }
+    }
+
+    /** Block until every record that ends at or before the specified LSN
+        is in the file and forced to disk, asking the flusher to get it
+        there.  May be called with or without the LogFile lock held. */
+    private void awaitDurable(long end) throws IOException {
+        synchronized (flushLock) {
+            while (durableLSN < end) {
+                checkFlushError();
+                if (requestedLSN < end) {
+                    requestedLSN = end;
+                    flushLock.notifyAll(); // wake an idle flusher
+                }
+                ensureFlusher();
+                waitFlush();
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Only the
+        difference between the images is logged.  The record is not
+        forced; callers that are about to write the page must call
+        force with the returned LSN first.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return The LSN of the new record, or NO_LSN if the images are
+          identical and nothing was logged
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, lsn = " + currentLSN);
+        // pages that keep an LSN keep it in their first bytes; recovery
+        // sets it itself, so it is not part of the delta
+        int skip = after.getLSN() == NO_LSN ? 0 : HeapPage.LSN_SIZE;
+        PageDelta delta = PageDelta.diff(before.getPageData(), after.getPageData(), skip);
+        if (delta.isEmpty())
+            return NO_LSN;
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
+           previous LSN
+           page reference (see writePageRef)
+           page delta
+           start LSN
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        writePageRef(dos, after);
+        delta.serialize(dos);
+        dos.flush();
+        long lsn = appendRecord(UPDATE_RECORD, tid.getId(), baos.toByteArray());
+
+        Debug.log("WRITE LSN = " + lsn);
+        return lsn;
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    // write a CLR for tid applying the specified delta to a page
+    private long logCLR(long tid, Class<?> pageClass, PageId pid, PageDelta delta,
+                        long undoNextLSN) throws IOException {
+        preAppend();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeLong(undoNextLSN);
+        writePageRef(dos, pageClass, pid);
+        delta.serialize(dos);
+        dos.flush();
+        return appendRecord(CLR_RECORD, tid, baos.toByteArray());
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    void writePageRef(DataOutput raf, Page p) throws IOException {
+        writePageRef(raf, p.getClass(), p.getId());
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    void writePageRef(DataOutput raf, Class<?> pageClass, PageId pid) throws IOException {
+        //page reference is:
+        // page class tag (see PageCodecs)
+        // page id (see writePageId)
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
+        PageCodecs.writePageClass(raf, pageClass);
+        writePageId(raf, pid);
+    }
+
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        //page id is:
+        // id class tag (see PageCodecs)
         // id class data
-        // page class bytes
-        // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        PageCodecs.writePageId(raf, pid);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        //page data is:
+        // page reference (see writePageRef)
+        // page class bytes
+        // page class data
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        writePageRef(raf, p);
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    Page readPageData(DataInput raf) throws IOException {
+        Class<?> pageClass = PageCodecs.readPageClass(raf);
+        PageId pid = readPageId(raf);
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
+        return PageCodecs.newPage(pageClass, pid, pageData);
+    }
 
+    // read a page id written by writePageId
+    PageId readPageId(DataInput raf) throws IOException {
+        return PageCodecs.readPageId(raf);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +771,437 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = appendRecord(BEGIN_RECORD, tid.getId(), new byte[0]);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy (see the note above): it never holds a lock while pages
+        are written. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long prevBeginLSN, beginLSN;
+        synchronized (this) {
+            preAppend();
+            raf.seek(0);
+            prevBeginLSN = raf.readLong();
+            beginLSN = appendRecord(BEGIN_CHECKPOINT_RECORD, NO_TID, new byte[0]);
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        // only takes the buffer pool lock long enough to copy the table
+        Map<PageId, Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
+
+        long endLSN, needed = beginLSN;
+        synchronized (this) {
+            //write list of outstanding transactions and dirty pages
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                dos.writeLong(e.getKey());
+                dos.writeLong(e.getValue());
+                dos.writeLong(tidToLastLogRecord.get(e.getKey()));
+                needed = Math.min(needed, e.getValue());
             }
+            dos.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                writePageId(dos, e.getKey());
+                dos.writeLong(e.getValue());
+                needed = Math.min(needed, e.getValue());
+            }
+            dos.flush();
+            endLSN = appendRecord(END_CHECKPOINT_RECORD, NO_TID, baos.toByteArray());
+        }
+        force(endLSN);
+
+        synchronized (this) {
+            //once the CP is durable, make sure the CP location at the
+            // beginning of the log file is updated
+            raf.seek(0);
+            raf.writeLong(beginLSN);
+            forceHeader();
+            truncateLSN = needed;
         }
 
+        // write pages that were already dirty at the previous checkpoint,
+        // so the part of the log that must be kept stays bounded
+        if (prevBeginLSN != NO_CHECKPOINT_ID)
+            Database.getBufferPool().flushPagesOlderThan(prevBeginLSN);
+
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        consumption.  Everything before the last checkpoint, before the
+        first record of every transaction active at that checkpoint and
+        before the recLSN of every page dirty at that checkpoint can go.
+        Whole segments are dropped, so LSNs do not change and the cost
+        does not depend on the size of the log; appends are only blocked
+        while the segments are taken out of the map.  The files are
+        deleted or archived after that, without any lock held. */
+    public void logTruncate() throws IOException {
+        List<Segment> dropped = new ArrayList<Segment>();
+        synchronized (this) {
+            preAppend();
+            if (truncateLSN == NO_LSN)
+                return;
+            // the segment holding truncateLSN stays, as does the tail
+            Long keep = segments.floorKey(truncateLSN);
+            if (keep == null)
+                return;
+            Map<Long, Segment> old = segments.headMap(keep);
+            dropped.addAll(old.values());
+            old.clear();
+            baseLSN = keep;
+        }
+        if (dropped.isEmpty())
+            return;
+        Debug.log("TRUNCATING LOG; DROPPING " + dropped.size() + " SEGMENTS; NEW START : " + baseLSN);
+
+        File dir = archiveDir;
+        for (Segment seg : dropped) {
+            synchronized (ioLock) {
+                unforced.remove(seg);
+                seg.close();
+            }
+            if (dir != null)
+                archive(seg.file, new File(dir, seg.file.getName() + ".gz"));
+            seg.file.delete();
+        }
+    }
 
-        long minLogRecord = cpLoc;
+    // compress a dropped segment into the archive directory, forcing it
+    // before the segment is deleted
+    private static void archive(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream fos = new FileOutputStream(to);
+            try {
+                GZIPOutputStream out = new GZIPOutputStream(new BufferedOutputStream(fos));
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buf)) > 0)
+                    out.write(buf, 0, n);
+                out.finish();
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** A log record read back from the file. */
+    static class LogRecord {
+        int type;
+        long tid;
+        long lsn;
+        long prevLSN;
+        long nextLSN; // LSN of the record that follows this one
+        Class<?> pageClass; // UPDATE and CLR only
+        PageId pid; // UPDATE and CLR only
+        PageDelta delta; // UPDATE, and the change a CLR applied
+        long undoNextLSN = NO_LSN; // CLR only
+        long[] activeTids, activeFirst, activeLast; // END_CHECKPOINT only
+        PageId[] dirtyPids; // END_CHECKPOINT only
+        long[] dirtyRecLSNs; // END_CHECKPOINT only
+
+        PageId pageId() {
+            return pid;
+        }
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+    /** Read the record with the specified LSN.
 
-            int numOutstanding = raf.readInt();
+        @return the record, or null if there is no complete record there
+          (the end of the log, or a record torn by a crash)
+        @throws IOException if the record cannot be decoded (e.g. it names
+          a page class that is not registered) but the log goes on after it
+    */
+    LogRecord readRecord(long lsn) throws IOException {
+        try {
+            return decodeRecord(lsn);
+        } catch (StreamCorruptedException e) {
+            // garbage from a torn record can only be at the end of the log;
+            // anywhere else, truncating there would throw away good records
+            if (recordFollows(lsn))
+                throw new IOException("log record at LSN " + lsn + " cannot be decoded: " + e.getMessage(), e);
+            return null;
+        }
+    }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+    // readRecord, except that it throws StreamCorruptedException for a
+    // record that names an unknown page type tag or class
+    private LogRecord decodeRecord(long lsn) throws IOException {
+        Map.Entry<Long, Segment> seg = segments.floorEntry(lsn);
+        if (seg == null)
+            return null;
+        RandomAccessFile in = seg.getValue().file();
+        long off = lsn - seg.getKey();
+        if (off + INT_SIZE + 3 * LONG_SIZE > in.length())
+            return null;
+        in.seek(off);
+        LogRecord r = new LogRecord();
+        r.lsn = lsn;
+        try {
+            r.type = in.readInt();
+            r.tid = in.readLong();
+            r.prevLSN = in.readLong();
+            switch (r.type) {
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+            case BEGIN_CHECKPOINT_RECORD:
+                break;
+            case CLR_RECORD:
+                r.undoNextLSN = in.readLong();
+                // fall through
+            case UPDATE_RECORD:
+                r.pageClass = PageCodecs.readPageClass(in);
+                r.pid = readPageId(in);
+                r.delta = PageDelta.deserialize(in, BufferPool.getPageSize());
+                break;
+            case END_CHECKPOINT_RECORD:
+                int n = in.readInt();
+                if (n < 0 || n > (in.length() - in.getFilePointer()) / (3 * LONG_SIZE))
+                    return null;
+                r.activeTids = new long[n];
+                r.activeFirst = new long[n];
+                r.activeLast = new long[n];
+                for (int i = 0; i < n; i++) {
+                    r.activeTids[i] = in.readLong();
+                    r.activeFirst[i] = in.readLong();
+                    r.activeLast[i] = in.readLong();
                 }
+                n = in.readInt();
+                if (n < 0 || n > (in.length() - in.getFilePointer()) / LONG_SIZE)
+                    return null;
+                r.dirtyPids = new PageId[n];
+                r.dirtyRecLSNs = new long[n];
+                for (int i = 0; i < n; i++) {
+                    r.dirtyPids[i] = readPageId(in);
+                    r.dirtyRecLSNs[i] = in.readLong();
+                }
+                break;
+            default:
+                return null;
             }
+            if (in.readLong() != lsn)
+                return null;
+        } catch (EOFException e) {
+            return null;
+        } catch (UTFDataFormatException e) {
+            return null;
         }
+        r.nextLSN = lsn + (in.getFilePointer() - off);
+        return r;
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+    // whether a complete record starts somewhere after the undecodable one
+    // at lsn: the first record of a later segment, or a record right after
+    // a copy of lsn (which ends every record) further on in its segment
+    private boolean recordFollows(long lsn) throws IOException {
+        Long next = segments.higherKey(lsn);
+        if (next != null && decodes(next))
+            return true;
+        Map.Entry<Long, Segment> seg = segments.floorEntry(lsn);
+        RandomAccessFile in = seg.getValue().file();
+        long end = in.length();
+        byte[] buf = new byte[8192];
+        long pos = lsn - seg.getKey() + INT_SIZE + 3 * LONG_SIZE;
+        while (pos + 2 * LONG_SIZE <= end) {
+            int n = (int) Math.min(buf.length, end - pos);
+            in.seek(pos);
+            in.readFully(buf, 0, n);
+            for (int i = 0; i + LONG_SIZE <= n; i++) {
+                long v = 0;
+                for (int j = 0; j < LONG_SIZE; j++)
+                    v = (v << 8) | (buf[i + j] & 0xff);
+                if (v == lsn && decodes(seg.getKey() + pos + i + LONG_SIZE))
+                    return true;
+            }
+            pos += n - LONG_SIZE + 1;
+        }
+        return false;
+    }
 
-        raf.seek(minLogRecord);
+    private boolean decodes(long lsn) throws IOException {
+        try {
+            return decodeRecord(lsn) != null;
+        } catch (StreamCorruptedException e) {
+            return false;
+        }
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+    /** Apply a logged delta (or, if undo is set, its reverse) to a page
+        on disk as of the record with the specified LSN.  Pages whose LSN
+        shows they already include the record are left alone unless force
+        is set.  A page that was never written starts out as zeros, like
+        every empty page.  Does not touch the buffer pool; callers drop
+        any cached copy of the page.
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        @return true if the page was written
+    */
+    private boolean installDelta(Class<?> pageClass, PageId pid, PageDelta delta,
+                                 boolean undo, long lsn, boolean force) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page onDisk = null;
+        try {
+            onDisk = file.readPage(pid);
+        } catch (IllegalArgumentException e) {
+            // the page was never written before the crash
+        }
+        if (!force && onDisk != null && onDisk.getLSN() != NO_LSN && onDisk.getLSN() >= lsn)
+            return false;
+        byte[] data = onDisk == null ? new byte[BufferPool.getPageSize()] : onDisk.getPageData();
+        Page image = PageCodecs.newPage(pageClass, pid, undo ? delta.undo(data) : delta.redo(data));
+        image.setLSN(lsn);
+        file.writePage(image);
+        return true;
+    }
 
-            } catch (EOFException e) {
-                break;
+    /** Set the number of threads recovery uses to redo updates; 1 redoes
+        them in the recovering thread.  Defaults to the number of
+        processors. */
+    public synchronized void setRedoThreads(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("need at least one redo thread");
+        redoThreads = n;
+    }
+
+    /** Redo pass of recovery: reapply every UPDATE and CLR record from the
+        oldest recLSN on to the pages that may be missing it.  Caller holds
+        the buffer pool and LogFile locks; the workers take neither.
+
+        @param dirty the dirty page table built by analysis
+    */
+    private void redo(Map<PageId, Long> dirty) throws IOException {
+        long lsn = Collections.min(dirty.values());
+        LogRecord r;
+        if (redoThreads == 1) {
+            for (; (r = readRecord(lsn)) != null; lsn = r.nextLSN) {
+                if (needsRedo(r, dirty))
+                    installDelta(r.pageClass, r.pid, r.delta, false, r.lsn, false);
             }
+            return;
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        final LogRecord done = new LogRecord();
+        final IOException[] failure = new IOException[1];
+        List<BlockingQueue<LogRecord>> queues = new ArrayList<BlockingQueue<LogRecord>>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < redoThreads; i++) {
+            final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<LogRecord>(REDO_QUEUE_SIZE);
+            Thread worker = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            LogRecord rec;
+                            while ((rec = queue.take()) != done) {
+                                synchronized (failure) {
+                                    if (failure[0] != null)
+                                        continue; // drain the queue
+                                }
+                                try {
+                                    installDelta(rec.pageClass, rec.pid, rec.delta, false, rec.lsn, false);
+                                } catch (IOException e) {
+                                    synchronized (failure) {
+                                        failure[0] = e;
+                                    }
+                                } catch (RuntimeException e) {
+                                    synchronized (failure) {
+                                        failure[0] = new IOException("redo failed at LSN " + rec.lsn, e);
+                                    }
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, "LogFile redo " + i);
+            queues.add(queue);
+            workers.add(worker);
+            worker.start();
+        }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        try {
+            // records of one page always go to the same worker, in log order
+            for (; (r = readRecord(lsn)) != null; lsn = r.nextLSN) {
+                if (needsRedo(r, dirty))
+                    queues.get((r.pid.hashCode() & Integer.MAX_VALUE) % redoThreads).put(r);
+            }
+            for (BlockingQueue<LogRecord> queue : queues)
+                queue.put(done);
+            for (Thread worker : workers)
+                worker.join(); // undo must not start before every page is redone
+        } catch (InterruptedException e) {
+            for (Thread worker : workers)
+                worker.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during redo");
+        }
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw failure[0];
+        }
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    private static boolean needsRedo(LogRecord r, Map<PageId, Long> dirty) {
+        if (r.type != UPDATE_RECORD && r.type != CLR_RECORD)
+            return false;
+        Long recLSN = dirty.get(r.pageId());
+        return recLSN != null && r.lsn >= recLSN;
+    }
+
+    /** Undo the logged updates of the specified transactions, newest
+        record first, writing a CLR for each.  Caller holds the buffer
+        pool and LogFile locks.
+
+        @param lastLSNs for each transaction, the LSN of its last record
+        @param logAborts whether to write an ABORT record (and forget the
+          transaction) once a transaction has been completely rolled back
+    */
+    private void undo(Map<Long, Long> lastLSNs, boolean logAborts) throws IOException {
+        force(); // the records to undo may still be in the log buffer
+        TreeMap<Long, Long> toUndo = new TreeMap<Long, Long>(); // lsn -> tid
+        for (Map.Entry<Long, Long> e : lastLSNs.entrySet()) {
+            tidToLastLogRecord.put(e.getKey(), e.getValue());
+            if (e.getValue() != NO_LSN)
+                toUndo.put(e.getValue(), e.getKey());
+        }
+
+        while (!toUndo.isEmpty()) {
+            Map.Entry<Long, Long> e = toUndo.pollLastEntry();
+            long tid = e.getValue();
+            LogRecord r = readRecord(e.getKey());
+            if (r == null)
+                throw new IOException("broken undo chain at LSN " + e.getKey());
+
+            long next;
+            if (r.type == UPDATE_RECORD) {
+                long clr = logCLR(tid, r.pageClass, r.pid, r.delta.inverse(), r.prevLSN);
+                force(); // write ahead
+                installDelta(r.pageClass, r.pid, r.delta, true, clr, true);
+                Database.getBufferPool().discardPage(r.pid);
+                next = r.prevLSN;
+            } else if (r.type == CLR_RECORD) {
+                next = r.undoNextLSN;
+            } else {
+                next = r.prevLSN;
+            }
+
+            if (next == NO_LSN) {
+                if (logAborts) {
+                    preAppend();
+                    appendRecord(ABORT_RECORD, tid, new byte[0]);
+                    endTransaction(tid);
+                }
+            } else {
+                toUndo.put(next, tid);
+            }
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -464,9 +1215,16 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            if (!Thread.holdsLock(this))
+                Database.getBufferPool().awaitWrites(); // else logAbort did
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                // changes that never made it to the log are only in the buffer pool
+                Database.getBufferPool().discardUnloggedChanges(tid);
+
+                Long last = tidToLastLogRecord.get(tid.getId());
+                if (last != null)
+                    undo(Collections.singletonMap(tid.getId(), last), false);
             }
         }
     }
@@ -478,7 +1236,11 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (ioLock) {
+                raf.close();
+                for (Segment seg : segments.values())
+                    seg.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -491,20 +1253,143 @@ public class LogFile {
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
+            Database.getBufferPool().awaitWrites(); // redo and undo write pages directly
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                truncateLSN = NO_LSN;
+                if (raf.length() < HEADER_SIZE) {
+                    resetLog(HEADER_SIZE);
+                    return;
+                }
+                raf.seek(0);
+                long cpLSN = raf.readLong();
+                baseLSN = segments.isEmpty() ? raf.readLong() : segments.firstKey();
+
+                // analysis: active transactions and dirty pages as of the crash
+                HashMap<Long, Long> active = new HashMap<Long, Long>(); // tid -> last LSN
+                HashMap<PageId, Long> dirty = new HashMap<PageId, Long>(); // pid -> recLSN
+                long lsn = cpLSN == NO_CHECKPOINT_ID ? baseLSN : cpLSN;
+                LogRecord r;
+                while ((r = readRecord(lsn)) != null) {
+                    switch (r.type) {
+                    case BEGIN_CHECKPOINT_RECORD:
+                        break;
+                    case END_CHECKPOINT_RECORD:
+                        if (truncateLSN == NO_LSN) {
+                            // the checkpoint's own end record
+                            truncateLSN = cpLSN;
+                            for (int i = 0; i < r.activeTids.length; i++)
+                                truncateLSN = Math.min(truncateLSN, r.activeFirst[i]);
+                            for (int i = 0; i < r.dirtyPids.length; i++)
+                                truncateLSN = Math.min(truncateLSN, r.dirtyRecLSNs[i]);
+                        }
+                        // transactions that ended since the begin record
+                        // are not in the table, and ones we have seen
+                        // since have later last records
+                        for (int i = 0; i < r.activeTids.length; i++) {
+                            if (!active.containsKey(r.activeTids[i]))
+                                active.put(r.activeTids[i], r.activeLast[i]);
+                        }
+                        for (int i = 0; i < r.dirtyPids.length; i++) {
+                            Long recLSN = dirty.get(r.dirtyPids[i]);
+                            if (recLSN == null || r.dirtyRecLSNs[i] < recLSN)
+                                dirty.put(r.dirtyPids[i], r.dirtyRecLSNs[i]);
+                        }
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        active.remove(r.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case CLR_RECORD:
+                        if (!dirty.containsKey(r.pageId()))
+                            dirty.put(r.pageId(), r.lsn);
+                        active.put(r.tid, r.lsn);
+                        break;
+                    default:
+                        active.put(r.tid, r.lsn);
+                    }
+                    lsn = r.nextLSN;
+                }
+                // drop a torn record at the end, and any segment after
+                // it, so appends follow the last good one
+                synchronized (ioLock) {
+                    Map<Long, Segment> after = segments.tailMap(lsn, false);
+                    for (Segment seg : after.values()) {
+                        unforced.remove(seg);
+                        seg.close();
+                        seg.file.delete();
+                    }
+                    after.clear();
+                }
+                Map.Entry<Long, Segment> tail = segments.floorEntry(lsn);
+                if (tail == null)
+                    segments.put(lsn, new Segment(segmentFile(lsn), lsn));
+                else
+                    tail.getValue().file().setLength(lsn - tail.getKey());
+                resetBuffer(lsn);
+
+                // redo: repeat history for pages that may be missing updates
+                if (!dirty.isEmpty()) {
+                    redo(dirty);
+                    for (PageId pid : dirty.keySet())
+                        Database.getBufferPool().discardPage(pid);
+                }
+
+                // undo: roll back the losers
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                undo(active, true);
+                force();
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        synchronized (this) {
+            force();
+            raf.seek(0);
+            long cpLSN = raf.readLong();
+            System.out.println("CHECKPOINT LSN: " + cpLSN + ", BASE LSN: " + baseLSN);
+            LogRecord r;
+            for (long lsn = baseLSN; (r = readRecord(lsn)) != null; lsn = r.nextLSN) {
+                String desc;
+                switch (r.type) {
+                case ABORT_RECORD: desc = "ABORT"; break;
+                case COMMIT_RECORD: desc = "COMMIT"; break;
+                case BEGIN_RECORD: desc = "BEGIN"; break;
+                case UPDATE_RECORD: desc = "UPDATE " + r.pageId(); break;
+                case CLR_RECORD: desc = "CLR " + r.pageId() + " undoNext=" + r.undoNextLSN; break;
+                case BEGIN_CHECKPOINT_RECORD: desc = "BEGIN_CHECKPOINT"; break;
+                case END_CHECKPOINT_RECORD: desc = "END_CHECKPOINT active=" + Arrays.toString(r.activeTids)
+                        + " dirty=" + Arrays.toString(r.dirtyPids); break;
+                default: desc = "UNKNOWN " + r.type;
+                }
+                System.out.println(lsn + ": tid=" + r.tid + " prev=" + r.prevLSN + " " + desc);
+            }
+        }
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force every record appended so far to disk. */
+    public void force() throws IOException {
+        long end;
+        synchronized (this) {
+            end = currentLSN;
+        }
+        awaitDurable(end);
+    }
+
+    /** Force the record with the specified LSN, and every record before
+        it, to disk.  Records appended after it may still be buffered.
+        Concurrent callers share forces (see the group commit note above.)
+
+        @param lsn The LSN of the record that must be durable
+    */
+    public void force(long lsn) throws IOException {
+        // the flusher writes whole records, so once anything past the
+        // record's first byte is durable, all of it is
+        awaitDurable(lsn + 1);
     }
 
 }
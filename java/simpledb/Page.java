@@ -56,4 +56,24 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record whose effects this page
+     * includes; it is stored in the page header so that recovery can skip
+     * redoing records the page already reflects.  Pages that do not keep
+     * an LSN return LogFile.NO_LSN, and recovery always reinstalls logged
+     * images of them.
+     *
+     * @see LogFile#recover()
+     */
+    public default long getLSN() {
+        return LogFile.NO_LSN;
+    }
+
+    /**
+     * Record that this page includes the effects of the log record with
+     * the specified LSN.
+     */
+    public default void setLSN(long lsn) {
+    }
 }
@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PageCodecs is the registry of page and page id types that LogFile knows
+ * how to write and read back. Each registered type has a small tag, which
+ * is all a log record stores to identify it, and a codec that calls the
+ * type's constructor directly. Reading a page reference from the log
+ * therefore costs a byte and the id's ints, with no class lookup.
+ * <p>
+ * Types that are not registered still work: they are written as tag 0
+ * followed by their class name, and built by reflection through the
+ * single constructor every Page and PageId class has (see Page). Their
+ * constructors are looked up once per class.
+ * <p>
+ * Tags are stored in the log, so a tag must never be reused for a
+ * different type.
+ *
+ * @see LogFile
+ */
+public class PageCodecs {
+
+    /** Builds pages of one class from their serialized bytes. */
+    public interface PageCodec {
+        Page newPage(PageId pid, byte[] data) throws IOException;
+    }
+
+    /** Writes and reads page ids of one class. */
+    public interface PageIdCodec {
+        void write(DataOutput out, PageId pid) throws IOException;
+
+        PageId read(DataInput in) throws IOException;
+    }
+
+    private static final int REFLECTIVE = 0;
+    private static final int MAX_TAG = 127;
+
+    private static final Class<?>[] pageClasses = new Class<?>[MAX_TAG + 1];
+    private static final PageCodec[] pageCodecs = new PageCodec[MAX_TAG + 1];
+    private static final PageIdCodec[] idCodecs = new PageIdCodec[MAX_TAG + 1];
+    private static final ConcurrentHashMap<Class<?>, Integer> pageTags = new ConcurrentHashMap<Class<?>, Integer>();
+    private static final ConcurrentHashMap<Class<?>, Integer> idTags = new ConcurrentHashMap<Class<?>, Integer>();
+    private static final ConcurrentHashMap<Class<?>, Constructor<?>> constructors = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+    static {
+        registerPage(1, HeapPage.class, new PageCodec() {
+                public Page newPage(PageId pid, byte[] data) throws IOException {
+                    return new HeapPage((HeapPageId) pid, data);
+                }
+            });
+        registerPage(2, PaxPage.class, new PageCodec() {
+                public Page newPage(PageId pid, byte[] data) throws IOException {
+                    return new PaxPage((HeapPageId) pid, data);
+                }
+            });
+        registerPage(3, HashDirectoryPage.class, new PageCodec() {
+                public Page newPage(PageId pid, byte[] data) throws IOException {
+                    return new HashDirectoryPage((HashPageId) pid, data);
+                }
+            });
+        registerPage(4, HashBucketPage.class, new PageCodec() {
+                public Page newPage(PageId pid, byte[] data) throws IOException {
+                    return new HashBucketPage((HashPageId) pid, data);
+                }
+            });
+
+        registerPageId(1, HeapPageId.class, new PageIdCodec() {
+                public void write(DataOutput out, PageId pid) throws IOException {
+                    out.writeInt(pid.getTableId());
+                    out.writeInt(pid.pageNumber());
+                }
+
+                public PageId read(DataInput in) throws IOException {
+                    int tableId = in.readInt();
+                    return new HeapPageId(tableId, in.readInt());
+                }
+            });
+        registerPageId(2, HashPageId.class, new PageIdCodec() {
+                public void write(DataOutput out, PageId pid) throws IOException {
+                    out.writeInt(pid.getTableId());
+                    out.writeInt(pid.pageNumber());
+                    out.writeInt(((HashPageId) pid).pgcateg());
+                }
+
+                public PageId read(DataInput in) throws IOException {
+                    int tableId = in.readInt();
+                    int pgNo = in.readInt();
+                    return new HashPageId(tableId, pgNo, in.readInt());
+                }
+            });
+    }
+
+    /**
+     * Register a page type.
+     *
+     * @param tag the type's tag, between 1 and 127
+     * @throws IllegalArgumentException if the tag or class is already registered
+     */
+    public static synchronized void registerPage(int tag, Class<? extends Page> c, PageCodec codec) {
+        checkTag(tag);
+        if (pageClasses[tag] != null || pageTags.containsKey(c))
+            throw new IllegalArgumentException("tag or class already registered: " + tag);
+        pageClasses[tag] = c;
+        pageCodecs[tag] = codec;
+        pageTags.put(c, tag);
+    }
+
+    /**
+     * Register a page id type.
+     *
+     * @param tag the type's tag, between 1 and 127
+     * @throws IllegalArgumentException if the tag or class is already registered
+     */
+    public static synchronized void registerPageId(int tag, Class<? extends PageId> c, PageIdCodec codec) {
+        checkTag(tag);
+        if (idCodecs[tag] != null || idTags.containsKey(c))
+            throw new IllegalArgumentException("tag or class already registered: " + tag);
+        idCodecs[tag] = codec;
+        idTags.put(c, tag);
+    }
+
+    private static void checkTag(int tag) {
+        if (tag <= REFLECTIVE || tag > MAX_TAG)
+            throw new IllegalArgumentException("tag out of range: " + tag);
+    }
+
+    /** Write the tag of a page class, or its name if it is not registered. */
+    static void writePageClass(DataOutput out, Class<?> c) throws IOException {
+        Integer tag = pageTags.get(c);
+        if (tag != null) {
+            out.writeByte(tag);
+        } else {
+            out.writeByte(REFLECTIVE);
+            out.writeUTF(c.getName());
+        }
+    }
+
+    /** Read a page class written by writePageClass. */
+    static Class<?> readPageClass(DataInput in) throws IOException {
+        int tag = in.readByte();
+        if (tag != REFLECTIVE)
+            return pageClasses[checkRead(tag, pageClasses[tag & MAX_TAG])];
+        return classForName(in.readUTF());
+    }
+
+    /** Build a page of the specified class from its serialized bytes. */
+    static Page newPage(Class<?> c, PageId pid, byte[] data) throws IOException {
+        Integer tag = pageTags.get(c);
+        if (tag != null)
+            return pageCodecs[tag].newPage(pid, data);
+        return (Page) construct(c, new Object[] { pid, data });
+    }
+
+    /** Write a page id: its class's tag and its fields, or for unregistered
+        classes the class name and its serialize() ints. */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        Integer tag = idTags.get(pid.getClass());
+        if (tag != null) {
+            out.writeByte(tag);
+            idCodecs[tag].write(out, pid);
+            return;
+        }
+        int pageInfo[] = pid.serialize();
+        out.writeByte(REFLECTIVE);
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++)
+            out.writeInt(pageInfo[i]);
+    }
+
+    /** Read a page id written by writePageId. */
+    static PageId readPageId(DataInput in) throws IOException {
+        int tag = in.readByte();
+        if (tag != REFLECTIVE)
+            return idCodecs[checkRead(tag, idCodecs[tag & MAX_TAG])].read(in);
+
+        Class<?> c = classForName(in.readUTF());
+        int numIdArgs = in.readInt();
+        if (numIdArgs < 0 || numIdArgs > MAX_TAG)
+            throw new StreamCorruptedException("corrupt page id");
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++)
+            idArgs[i] = Integer.valueOf(in.readInt());
+        return (PageId) construct(c, idArgs);
+    }
+
+    private static int checkRead(int tag, Object registered) throws IOException {
+        if (tag < 0 || registered == null)
+            throw new StreamCorruptedException("unknown page type tag " + tag);
+        return tag;
+    }
+
+    private static Class<?> classForName(String name) throws IOException {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new StreamCorruptedException("unknown page class " + name);
+        }
+    }
+
+    private static Object construct(Class<?> c, Object[] args) throws IOException {
+        Constructor<?> cons = constructors.get(c);
+        if (cons == null) {
+            cons = c.getDeclaredConstructors()[0];
+            constructors.put(c, cons);
+        }
+        try {
+            return cons.newInstance(args);
+        } catch (InstantiationException e) {
+            throw new IOException("cannot build " + c.getName(), e);
+        } catch (IllegalAccessException e) {
+            throw new IOException("cannot build " + c.getName(), e);
+        } catch (InvocationTargetException e) {
+            throw new IOException("cannot build " + c.getName(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A PageDelta describes the change between two images of the same page as a
+ * list of byte-range operations, so that UPDATE and CLR log records only need
+ * to carry the bytes that changed instead of two full page images.
+ * <p>
+ * There are three kinds of operation:
+ * <ul>
+ * <li> INSERT_SLOT: a range that was all zeros now holds some bytes. This is
+ *   what inserting a tuple into an empty slot looks like, since every page
+ *   type zeroes its empty slots; only the new bytes are stored.
+ * <li> DELETE_SLOT: a range that held some bytes is now all zeros; only the
+ *   old bytes are stored.
+ * <li> UPDATE_RANGE: any other change, with both the old and new bytes.
+ * </ul>
+ * Slot bitmaps, B+ tree entry shifts from splits and merges and other
+ * structural changes are all captured as ranges, so the same code works for
+ * every page type without knowing its layout.
+ *
+ * @see LogFile#logWrite
+ */
+public class PageDelta {
+
+    static final byte INSERT_SLOT = 1;
+    static final byte DELETE_SLOT = 2;
+    static final byte UPDATE_RANGE = 3;
+
+    /** Differing runs closer than this are logged as one range. */
+    private static final int MERGE_GAP = 8;
+
+    private final byte[] kinds;
+    private final int[] offsets;
+    private final byte[][] olds; // null for INSERT_SLOT
+    private final byte[][] news; // null for DELETE_SLOT
+
+    private PageDelta(byte[] kinds, int[] offsets, byte[][] olds, byte[][] news) {
+        this.kinds = kinds;
+        this.offsets = offsets;
+        this.olds = olds;
+        this.news = news;
+    }
+
+    /**
+     * Compute the delta that turns before into after.
+     *
+     * @param skip number of leading bytes to ignore (the page LSN, which
+     *   recovery sets itself)
+     */
+    public static PageDelta diff(byte[] before, byte[] after, int skip) {
+        if (before.length != after.length)
+            throw new IllegalArgumentException("page images differ in size");
+        ArrayList<int[]> runs = new ArrayList<int[]>();
+        int i = skip;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i, end = i + 1;
+            // extend the run over differences up to MERGE_GAP bytes apart
+            for (int j = end; j < after.length && j < end + MERGE_GAP; j++) {
+                if (before[j] != after[j])
+                    end = j + 1;
+            }
+            runs.add(new int[] { start, end });
+            i = end;
+        }
+
+        int n = runs.size();
+        byte[] kinds = new byte[n];
+        int[] offsets = new int[n];
+        byte[][] olds = new byte[n][];
+        byte[][] news = new byte[n][];
+        for (int k = 0; k < n; k++) {
+            int start = runs.get(k)[0], end = runs.get(k)[1];
+            byte[] o = Arrays.copyOfRange(before, start, end);
+            byte[] a = Arrays.copyOfRange(after, start, end);
+            offsets[k] = start;
+            if (isZero(o)) {
+                kinds[k] = INSERT_SLOT;
+                news[k] = a;
+            } else if (isZero(a)) {
+                kinds[k] = DELETE_SLOT;
+                olds[k] = o;
+            } else {
+                kinds[k] = UPDATE_RANGE;
+                olds[k] = o;
+                news[k] = a;
+            }
+        }
+        return new PageDelta(kinds, offsets, olds, news);
+    }
+
+    private static boolean isZero(byte[] b) {
+        for (byte x : b) {
+            if (x != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return true if the two images were identical */
+    public boolean isEmpty() {
+        return kinds.length == 0;
+    }
+
+    private static byte[] bytes(byte[] b, int len) {
+        return b == null ? new byte[len] : b;
+    }
+
+    private int length(int k) {
+        return news[k] != null ? news[k].length : olds[k].length;
+    }
+
+    /** Apply this delta to a page image in place, returning it. */
+    public byte[] redo(byte[] data) {
+        for (int k = 0; k < kinds.length; k++)
+            System.arraycopy(bytes(news[k], length(k)), 0, data, offsets[k], length(k));
+        return data;
+    }
+
+    /** Reverse this delta on a page image in place, returning it. */
+    public byte[] undo(byte[] data) {
+        for (int k = kinds.length - 1; k >= 0; k--)
+            System.arraycopy(bytes(olds[k], length(k)), 0, data, offsets[k], length(k));
+        return data;
+    }
+
+    /** @return the delta whose redo is this delta's undo, as logged in a CLR */
+    public PageDelta inverse() {
+        int n = kinds.length;
+        byte[] ks = new byte[n];
+        for (int k = 0; k < n; k++)
+            ks[k] = kinds[k] == INSERT_SLOT ? DELETE_SLOT : kinds[k] == DELETE_SLOT ? INSERT_SLOT : UPDATE_RANGE;
+        return new PageDelta(ks, offsets.clone(), news.clone(), olds.clone());
+    }
+
+    /**
+     * Write this delta: an int count, then for each operation its kind
+     * (byte), offset (int), length (int) and the stored bytes (old then new
+     * for UPDATE_RANGE).
+     */
+    public void serialize(DataOutput out) throws IOException {
+        out.writeInt(kinds.length);
+        for (int k = 0; k < kinds.length; k++) {
+            out.writeByte(kinds[k]);
+            out.writeInt(offsets[k]);
+            out.writeInt(length(k));
+            if (olds[k] != null)
+                out.write(olds[k]);
+            if (news[k] != null)
+                out.write(news[k]);
+        }
+    }
+
+    /**
+     * Read a delta written by serialize.
+     *
+     * @param pageSize the page size, to reject corrupt ranges
+     * @throws StreamCorruptedException if the bytes are not a valid delta
+     */
+    public static PageDelta deserialize(DataInput in, int pageSize) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > pageSize)
+            throw new StreamCorruptedException("corrupt page delta: " + n + " operations");
+        byte[] kinds = new byte[n];
+        int[] offsets = new int[n];
+        byte[][] olds = new byte[n][];
+        byte[][] news = new byte[n][];
+        for (int k = 0; k < n; k++) {
+            kinds[k] = in.readByte();
+            offsets[k] = in.readInt();
+            int len = in.readInt();
+            if (offsets[k] < 0 || len < 0 || offsets[k] + len > pageSize)
+                throw new StreamCorruptedException("corrupt page delta range");
+            if (kinds[k] != INSERT_SLOT) {
+                olds[k] = new byte[len];
+                in.readFully(olds[k]);
+            }
+            if (kinds[k] != DELETE_SLOT) {
+                news[k] = new byte[len];
+                in.readFully(news[k]);
+            }
+        }
+        return new PageDelta(kinds, offsets, olds, news);
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * Parameter is a placeholder for a value that is bound after a plan is
+ * built, like the ? in a prepared SQL statement. It can be used as the
+ * operand of a Predicate, IndexPredicate or Expression; every read of the
+ * operand sees the value bound at that time, so a PreparedPlan can be run
+ * again with new values without rebuilding its operators.
+ *
+ * @see PreparedPlan
+ */
+public class Parameter implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int index;
+    private final Type type;
+    private Field value;
+
+    /**
+     * @param index
+     *            the position of the parameter in its plan, counting from 0
+     * @param type
+     *            the type of the values it can be bound to
+     */
+    public Parameter(int index, Type type) {
+        this.index = index;
+        this.type = type;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Bind the parameter to a value.
+     *
+     * @throws IllegalArgumentException if the value has the wrong type
+     */
+    public void bind(Field v) {
+        if (v.getType() != type)
+            throw new IllegalArgumentException("parameter ?" + index + " is " + type + ", not " + v.getType());
+        value = resolve(v);
+    }
+
+    public boolean isBound() {
+        return value != null;
+    }
+
+    /**
+     * @return the bound value
+     * @throws IllegalStateException if the parameter is not bound
+     */
+    public Field get() {
+        if (value == null)
+            throw new IllegalStateException("parameter ?" + index + " is not bound");
+        return value;
+    }
+
+    /** @return the value bound to f if it is a Parameter, f otherwise */
+    public static Field resolve(Field f) {
+        return f instanceof Parameter ? ((Parameter) f).get() : f;
+    }
+
+    public void serialize(DataOutputStream dos) throws IOException {
+        get().serialize(dos);
+    }
+
+    public boolean compare(Predicate.Op op, Field v) {
+        return get().compare(op, resolve(v));
+    }
+
+    public int hashCode() {
+        return value == null ? index : value.hashCode();
+    }
+
+    public boolean equals(Object field) {
+        return value != null && value.equals(field);
+    }
+
+    public String toString() {
+        return "?" + index;
+    }
+}
@@ -0,0 +1,374 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of PaxPage stores data for one page of a ColumnarHeapFile.
+ * It holds the same tuples a HeapPage of the same schema would, but lays
+ * them out column by column (PAX, "partition attributes across"): after the
+ * slot bitmap comes one contiguous "minipage" per field holding that field's
+ * value for every slot. A scan that only needs a few columns, or that
+ * evaluates a predicate on one column, touches only those minipages.
+ * <p>
+ * Unlike HeapPage, a PaxPage keeps its raw bytes and decodes fields on
+ * demand; tuples returned by its iterators are fresh copies. A
+ * dictionary-encoded STRING_TYPE field is stored as a 4-byte code, read back
+ * as an EncodedStringField, and equality predicates on it compare codes.
+ *
+ * @see ColumnarHeapFile
+ * @see HeapPage
+ */
+public class PaxPage implements Page {
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final int numSlots;
+    final int headerSize;
+    final int[] colOffset;
+    final int[] colWidth;
+    final StringDictionary[] dicts;
+    final byte[] data;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    private TransactionId tid = null;
+    boolean dirty = false;
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk. The number
+     * of slots is computed as for a HeapPage:
+     * <p>
+     *          floor(((BufferPool.getPageSize() - 8)*8) / (tuple size * 8 + 1))
+     * <p>
+     * except that a dictionary-encoded field only counts 4 bytes towards the
+     * tuple size.
+     * <p>
+     * The page starts with an 8-byte page LSN and ceiling(no. tuple slots / 8)
+     * header bytes marking the slots in use. Field j of slot i is then stored at
+     * <p>
+     *          8 + header size + no. tuple slots * (size of fields 0..j-1) + i * size of field j
+     * <p>
+     * in the same format Field.serialize writes.
+     *
+     * @see HeapPage#HeapPage
+     * @see BufferPool#getPageSize()
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        if (data.length != BufferPool.getPageSize())
+            throw new IOException("PaxPage needs " + BufferPool.getPageSize() + " bytes, got " + data.length);
+        this.data = data.clone();
+
+        DbFile f = Database.getCatalog().getDatabaseFile(id.getTableId());
+        dicts = f instanceof ColumnarHeapFile ? ((ColumnarHeapFile) f).getDictionaries()
+                : new StringDictionary[td.numFields()];
+        colOffset = new int[td.numFields()];
+        colWidth = new int[td.numFields()];
+        int tupleSize = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            colWidth[j] = dicts[j] != null ? Type.INT_TYPE.getLen() : td.getFieldType(j).getLen();
+            tupleSize += colWidth[j];
+        }
+        this.numSlots = ((BufferPool.getPageSize() - HeapPage.LSN_SIZE) * 8) / (tupleSize * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        int off = HeapPage.LSN_SIZE + headerSize;
+        for (int j = 0; j < td.numFields(); j++) {
+            colOffset[j] = off;
+            off += numSlots * colWidth[j];
+        }
+
+        setBeforeImage();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public PaxPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new PaxPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public long getLSN() {
+        long lsn = 0;
+        for (int i = 0; i < HeapPage.LSN_SIZE; i++)
+            lsn = (lsn << 8) | (data[i] & 0xff);
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        for (int i = HeapPage.LSN_SIZE - 1; i >= 0; i--) {
+            data[i] = (byte) lsn;
+            lsn >>>= 8;
+        }
+    }
+
+    /**
+     * @return the number of tuple slots on this page
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     *
+     * @see #PaxPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * PaxPage.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()]; //all 0
+    }
+
+    private int readInt(int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+                | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    /**
+     * Decode field j of slot i straight from the page bytes.
+     */
+    public Field getField(int i, int j) {
+        int off = colOffset[j] + i * colWidth[j];
+        Type type = td.getFieldType(j);
+        if (dicts[j] != null)
+            return new EncodedStringField(dicts[j], readInt(off), Type.STRING_LEN);
+        if (type == Type.INT_TYPE)
+            return new IntField(readInt(off));
+        try {
+            return type.parse(new DataInputStream(new ByteArrayInputStream(data, off, colWidth[j])));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    private void setField(int i, int j, Field f) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(colWidth[j]);
+        DataOutputStream dos = new DataOutputStream(baos);
+        if (dicts[j] != null) {
+            int code = lookupCode(j, (StringField) f);
+            dos.writeInt(code >= 0 ? code : dicts[j].encode(((StringField) f).getValue()));
+        } else
+            f.serialize(dos);
+        System.arraycopy(baos.toByteArray(), 0, data, colOffset[j] + i * colWidth[j], colWidth[j]);
+    }
+
+    /**
+     * @return the code of a value in field j's dictionary, or -1 if it is
+     *   not in the dictionary
+     */
+    private int lookupCode(int j, StringField f) {
+        if (f instanceof EncodedStringField && ((EncodedStringField) f).getDictionary() == dicts[j])
+            return ((EncodedStringField) f).getCode();
+        return dicts[j].lookup(f.getValue());
+    }
+
+    /**
+     * Delete the specified tuple from the page; the slot's bytes are zeroed.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("RecordID not set");
+        if (!pid.equals(rid.getPageId()))
+            throw new DbException("Tuple not on this Page");
+        int i = rid.tupleno();
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            throw new DbException("Tuple not on the slot on this page" + i);
+
+        markSlotUsed(i, false);
+        for (int j = 0; j < colOffset.length; j++)
+            Arrays.fill(data, colOffset[j] + i * colWidth[j], colOffset[j] + (i + 1) * colWidth[j], (byte) 0);
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple should be updated to reflect
+     *  that it is now stored on this page.
+     * @throws DbException if the page is full (no empty slots) or tupledesc
+     *         is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("Tuple Desc not match!");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                try {
+                    for (int j = 0; j < colOffset.length; j++)
+                        setField(i, j, t.getField(j));
+                } catch (IOException e) {
+                    throw new DbException("could not extend dictionary: " + e.getMessage());
+                }
+                markSlotUsed(i, true);
+                t.setRecordId(new RecordId(pid, i));
+                return;
+            }
+        }
+        throw new DbException("Page full!");
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) this.tid = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.tid;
+        else
+            return null;
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int empty = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                empty++;
+        }
+        return empty;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return ((data[HeapPage.LSN_SIZE + i / 8] >> (i % 8)) & 1) == 1;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value)
+            data[HeapPage.LSN_SIZE + i / 8] |= (1 << (i % 8));
+        else
+            data[HeapPage.LSN_SIZE + i / 8] &= ~(1 << (i % 8));
+    }
+
+    /**
+     * Find the used slots whose tuples satisfy all of the predicates. Each
+     * predicate is evaluated a column at a time, reading only its field's
+     * minipage, and only over the slots that survived the previous ones.
+     * EQUALS and NOT_EQUALS on a dictionary-encoded field compare codes.
+     *
+     * @param preds predicates over this page's fields, or null for none
+     * @return the matching slot numbers
+     */
+    public BitSet select(List<Predicate> preds) {
+        BitSet sel = new BitSet(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i))
+                sel.set(i);
+        }
+        if (preds == null)
+            return sel;
+        for (Predicate p : preds) {
+            int j = p.getField();
+            boolean rawInt = td.getFieldType(j) == Type.INT_TYPE && p.getOperand() instanceof IntField;
+            int c = rawInt ? ((IntField) p.getOperand()).getValue() : 0;
+            if (dicts[j] != null && p.getOperand() instanceof StringField
+                    && (p.getOp() == Predicate.Op.EQUALS || p.getOp() == Predicate.Op.NOT_EQUALS)) {
+                c = lookupCode(j, (StringField) p.getOperand());
+                if (c < 0) {
+                    // a value that was never stored matches nothing
+                    if (p.getOp() == Predicate.Op.EQUALS)
+                        sel.clear();
+                    continue;
+                }
+                rawInt = true;
+            }
+            for (int i = sel.nextSetBit(0); i >= 0; i = sel.nextSetBit(i + 1)) {
+                boolean ok = rawInt
+                        ? IntField.compare(p.getOp(), readInt(colOffset[j] + i * colWidth[j]), c)
+                        : getField(i, j).compare(p.getOp(), p.getOperand());
+                if (!ok)
+                    sel.clear(i);
+            }
+        }
+        return sel;
+    }
+
+    /**
+     * Build a tuple holding only the given fields of slot i.
+     *
+     * @param columns the fields to keep, in the order they should appear
+     * @param projected the TupleDesc of the result
+     */
+    public Tuple project(int i, int[] columns, TupleDesc projected) {
+        Tuple t = new Tuple(projected);
+        t.setRecordId(new RecordId(pid, i));
+        for (int k = 0; k < columns.length; k++)
+            t.setField(k, getField(i, columns[k]));
+        return t;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        int[] all = new int[td.numFields()];
+        for (int j = 0; j < all.length; j++)
+            all[j] = j;
+        return iterator(all, td, null);
+    }
+
+    /**
+     * @return an iterator over the given fields of the tuples on this page
+     *   that satisfy all of the predicates
+     * @see #select(List)
+     * @see #project(int, int[], TupleDesc)
+     */
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected, List<Predicate> preds) {
+        BitSet sel = select(preds);
+        ArrayList<Tuple> tupleList = new ArrayList<Tuple>(sel.cardinality());
+        for (int i = sel.nextSetBit(0); i >= 0; i = sel.nextSetBit(i + 1))
+            tupleList.add(project(i, columns, projected));
+        return Collections.unmodifiableList(tupleList).iterator();
+    }
+}
@@ -42,6 +42,28 @@ public class Predicate implements Serializable {
             throw new IllegalStateException("impossible to reach here");
         }
 
+        /**
+         * @return the operator that gives the same result with its operands
+         *         swapped (a &lt; b iff b &gt; a), or null for LIKE, which
+         *         has none
+         */
+        public Op swap() {
+            switch (this) {
+            case GREATER_THAN:
+                return LESS_THAN;
+            case LESS_THAN:
+                return GREATER_THAN;
+            case GREATER_THAN_OR_EQ:
+                return LESS_THAN_OR_EQ;
+            case LESS_THAN_OR_EQ:
+                return GREATER_THAN_OR_EQ;
+            case LIKE:
+                return null;
+            default:
+                return this;
+            }
+        }
+
     }
 
     private int fieldIdx;
@@ -85,12 +107,19 @@ public class Predicate implements Serializable {
     }
 
     /**
-     * @return the operand
+     * @return the operand; if it is a Parameter, the value bound to it
      */
     public Field getOperand()
     {
         // some code goes here
-        return fieldValue;
+        return Parameter.resolve(fieldValue);
+    }
+
+    /**
+     * @return the operand if it is a Parameter, null otherwise
+     */
+    public Parameter getParameter() {
+        return fieldValue instanceof Parameter ? (Parameter) fieldValue : null;
     }
 
     /**
@@ -106,7 +135,7 @@ public class Predicate implements Serializable {
     public boolean filter(Tuple t) {
         // some code goes here
         Field field = t.getField(fieldIdx);
-        return field.compare(op, fieldValue);
+        return field.compare(op, Parameter.resolve(fieldValue));
     }
 
     /**
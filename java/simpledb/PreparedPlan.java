@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * PreparedPlan is an operator tree whose predicates compare against
+ * Parameters instead of constants, so that it can be built (and its join
+ * order chosen) once and then run many times with different values, e.g.
+ * <pre>
+ *     Parameter id = new Parameter(0, Type.INT_TYPE);
+ *     PreparedPlan plan = new PreparedPlan(new Filter(new Predicate(0, Op.EQUALS, id), scan), id);
+ *     plan.bind(new IntField(7));
+ *     DbIterator it = plan.execute(tid);
+ * </pre>
+ * Running the plan again closes and reopens the same operators, which read
+ * the bound values as they go; nothing is planned or allocated again besides
+ * the iterators the operators open.
+ * <p>
+ * Plans are also kept in a cache, keyed by a string describing the shape of
+ * the query (its tables, joins and predicates, with ? for each parameter).
+ * A plan is used by one caller at a time: checkOut removes it from the
+ * cache, and checkIn closes it and puts it back. When the cache holds
+ * CACHE_SIZE plans the least recently checked in is dropped.
+ *
+ * @see Parameter
+ */
+public class PreparedPlan {
+
+    /** The number of plans the cache holds. */
+    public static final int CACHE_SIZE = 64;
+
+    // in check-in order, so the first entry is the least recently used
+    private static final LinkedHashMap<String, PreparedPlan> cache = new LinkedHashMap<String, PreparedPlan>() {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedPlan> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final DbIterator root;
+    private final Parameter[] params;
+    private boolean open;
+
+    /**
+     * Constructor.
+     *
+     * @param root
+     *            the root of the operator tree
+     * @param params
+     *            the parameters the tree's predicates use, in the order
+     *            bind takes their values
+     */
+    public PreparedPlan(DbIterator root, Parameter... params) {
+        this.root = root;
+        this.params = params.clone();
+    }
+
+    public DbIterator getRoot() {
+        return root;
+    }
+
+    public int numParameters() {
+        return params.length;
+    }
+
+    /**
+     * Bind the parameters to values, for the next execution.
+     *
+     * @throws IllegalArgumentException
+     *             if the number or types of the values do not match the
+     *             parameters
+     */
+    public void bind(Field... values) {
+        if (values.length != params.length)
+            throw new IllegalArgumentException("expected " + params.length + " values, got " + values.length);
+        for (int i = 0; i < params.length; i++)
+            params[i].bind(values[i]);
+    }
+
+    /**
+     * Run the plan with the values bound to its parameters, as a part of the
+     * specified transaction.
+     *
+     * @return the root of the tree, open and positioned at its first tuple
+     * @throws IllegalStateException if a parameter is not bound
+     */
+    public DbIterator execute(TransactionId tid) throws DbException, TransactionAbortedException {
+        for (Parameter p : params)
+            p.get();
+        if (open)
+            root.close();
+        setTransaction(root, tid);
+        root.open();
+        open = true;
+        return root;
+    }
+
+    /** Close the tree, releasing what its operators hold. */
+    public void close() {
+        if (open)
+            root.close();
+        open = false;
+    }
+
+    private static void setTransaction(DbIterator it, TransactionId tid) {
+        if (it instanceof SeqScan)
+            ((SeqScan) it).setTransactionId(tid);
+        if (it instanceof IndexNestedLoopJoin)
+            ((IndexNestedLoopJoin) it).setTransactionId(tid);
+        if (it instanceof Operator) {
+            for (DbIterator child : ((Operator) it).getChildren()) {
+                if (child != null)
+                    setTransaction(child, tid);
+            }
+        }
+    }
+
+    /**
+     * Take the cached plan for a query shape out of the cache.
+     *
+     * @return the plan, or null if none is cached (or it is checked out)
+     */
+    public static PreparedPlan checkOut(String shape) {
+        synchronized (cache) {
+            return cache.remove(shape);
+        }
+    }
+
+    /**
+     * Close a plan and cache it for its query shape, replacing any plan
+     * cached for that shape.
+     */
+    public static void checkIn(String shape, PreparedPlan plan) {
+        plan.close();
+        synchronized (cache) {
+            cache.put(shape, plan);
+        }
+    }
+
+    /** Drop all cached plans, e.g. after the catalog changes. */
+    public static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ResultCache keeps the results of recently run queries, so that a query
+ * repeated while the tables it reads have not changed is answered without
+ * running its operators.
+ * <p>
+ * A result is cached under a fingerprint that identifies the query (the
+ * same string for the same query, e.g. a PreparedPlan's shape followed by
+ * its bound values), together with the modification counter of each table
+ * the plan scans at the time it ran (see BufferPool#getTableVersion). A
+ * lookup only hits if all of those counters are unchanged. Results are kept
+ * compactly serialized; the cache holds at most a memory budget of them and
+ * evicts the least recently used first.
+ * <p>
+ * A plan is only cached if every leaf of its tree is a SeqScan (or the
+ * inner table of an IndexNestedLoopJoin), so that the tables it depends on
+ * are known, and only if no table changed while it ran and its transaction
+ * has no uncommitted changes to them; a cached result therefore only ever
+ * reflects committed data. A plan's result is cached as the caller reads
+ * it, and only once the caller has read all of it.
+ */
+public class ResultCache {
+
+    /** Default bound on the bytes held by cached results. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+    /** Estimated bytes of overhead per cached result. */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long budget;
+    private long used;
+    private long hits, misses;
+
+    // in access order, so the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private static final class Entry {
+        final TupleDesc td;
+        final int[] tables;
+        final long[] versions;
+        final int numTuples;
+        final byte[] data;
+        final long size;
+
+        Entry(String fingerprint, TupleDesc td, int[] tables, long[] versions, int numTuples, byte[] data) {
+            this.td = td;
+            this.tables = tables;
+            this.versions = versions;
+            this.numTuples = numTuples;
+            this.data = data;
+            this.size = data.length + 2L * fingerprint.length() + 8L * tables.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    public ResultCache(long memoryBudget) {
+        this.budget = memoryBudget;
+    }
+
+    public ResultCache() {
+        this(DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Return the results of a plan: the cached ones if the plan was run
+     * under the same fingerprint and the tables it reads have not changed
+     * since, and otherwise the plan's own. On a miss the plan is wrapped in
+     * an iterator that passes its tuples through, encoding them as they go
+     * by, and caches them once it has read them all; nothing is held beyond
+     * the memory budget, and a plan that cannot be cached is returned as it
+     * is.
+     *
+     * @param fingerprint
+     *            a string identifying the query the plan computes
+     * @param plan
+     *            the plan, not open; it is left alone on a hit
+     * @return an iterator over the results, not yet opened
+     */
+    public DbIterator execute(String fingerprint, DbIterator plan) {
+        ArrayList<Integer> tableList = new ArrayList<Integer>();
+        HashSet<TransactionId> tids = new HashSet<TransactionId>();
+        if (!collect(plan, tableList, tids))
+            return plan;
+        int[] tables = new int[tableList.size()];
+        for (int i = 0; i < tables.length; i++)
+            tables[i] = tableList.get(i);
+
+        DbIterator cached = lookup(fingerprint, tables);
+        if (cached != null)
+            return cached;
+        return new Recorder(fingerprint, plan, tables, tids);
+    }
+
+    /**
+     * Returns the tuples of a plan and caches them if the plan is read to
+     * the end, within the budget, while none of its tables changes and its
+     * transactions have not written to them.
+     */
+    private final class Recorder extends Operator {
+        private static final long serialVersionUID = 1L;
+        private final String fingerprint;
+        private DbIterator plan;
+        private final int[] tables;
+        private final Set<TransactionId> tids;
+
+        private transient long[] before;
+        private transient ByteArrayOutputStream bytes; // null once the result will not be cached
+        private transient DataOutputStream out;
+        private transient int numTuples;
+
+        Recorder(String fingerprint, DbIterator plan, int[] tables, Set<TransactionId> tids) {
+            this.fingerprint = fingerprint;
+            this.plan = plan;
+            this.tables = tables;
+            this.tids = tids;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return plan.getTupleDesc();
+        }
+
+        public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+            plan.open();
+            super.open();
+            start();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            plan.rewind();
+            start();
+        }
+
+        public void close() {
+            super.close();
+            plan.close();
+            bytes = null; // read only in part
+            out = null;
+        }
+
+        private void start() {
+            before = versions(tables);
+            bytes = new ByteArrayOutputStream();
+            out = new DataOutputStream(bytes);
+            numTuples = 0;
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (plan.hasNext()) {
+                Tuple t = plan.next();
+                if (bytes != null) {
+                    encode(getTupleDesc(), t, out);
+                    numTuples++;
+                    if (bytes.size() > budget) { // keep returning tuples, but stop recording them
+                        bytes = null;
+                        out = null;
+                    }
+                }
+                return t;
+            }
+            if (bytes != null) {
+                if (Arrays.equals(before, versions(tables)) && !uncommitted(tids, tables))
+                    store(fingerprint, new Entry(fingerprint, getTupleDesc(), tables, before, numTuples,
+                            bytes.toByteArray()));
+                bytes = null;
+                out = null;
+            }
+            return null;
+        }
+
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { plan };
+        }
+
+        public void setChildren(DbIterator[] children) {
+            plan = children[0];
+        }
+    }
+
+    // collect the tables and transactions of the plan's scans; false if
+    // there is a leaf whose inputs are unknown
+    private static boolean collect(DbIterator it, List<Integer> tables, Set<TransactionId> tids) {
+        if (it instanceof SeqScan) {
+            SeqScan scan = (SeqScan) it;
+            if (!tables.contains(scan.getTableId()))
+                tables.add(scan.getTableId());
+            tids.add(scan.getTransactionId());
+            return true;
+        }
+        if (!(it instanceof Operator))
+            return false;
+        if (it instanceof IndexNestedLoopJoin) {
+            int inner = ((IndexNestedLoopJoin) it).getInnerTableId();
+            if (!tables.contains(inner))
+                tables.add(inner);
+        }
+        for (DbIterator child : ((Operator) it).getChildren()) {
+            if (child == null || !collect(child, tables, tids))
+                return false;
+        }
+        return true;
+    }
+
+    private static long[] versions(int[] tables) {
+        long[] v = new long[tables.length];
+        for (int i = 0; i < tables.length; i++)
+            v[i] = BufferPool.getTableVersion(tables[i]);
+        return v;
+    }
+
+    private static boolean uncommitted(Set<TransactionId> tids, int[] tables) {
+        BufferPool pool = Database.getBufferPool();
+        for (TransactionId tid : tids) {
+            for (int table : tables) {
+                if (tid != null && pool.hasUncommittedWrites(tid, table))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized DbIterator lookup(String fingerprint, int[] tables) {
+        Entry e = entries.get(fingerprint);
+        if (e != null && Arrays.equals(e.tables, tables) && Arrays.equals(e.versions, versions(tables))) {
+            hits++;
+            return new TupleIterator(e.td, decode(e));
+        }
+        if (e != null)
+            remove(fingerprint);
+        misses++;
+        return null;
+    }
+
+    private synchronized void store(String fingerprint, Entry e) {
+        if (e.size > budget)
+            return;
+        remove(fingerprint);
+        entries.put(fingerprint, e);
+        used += e.size;
+        Iterator<Entry> lru = entries.values().iterator();
+        while (used > budget) {
+            used -= lru.next().size;
+            lru.remove();
+        }
+    }
+
+    private void remove(String fingerprint) {
+        Entry old = entries.remove(fingerprint);
+        if (old != null)
+            used -= old.size;
+    }
+
+    /** Drop all cached results. */
+    public synchronized void clear() {
+        entries.clear();
+        used = 0;
+    }
+
+    /** @return the bytes held by cached results, estimated */
+    public synchronized long bytesUsed() {
+        return used;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    // INT_TYPE fields take 4 bytes and STRING_TYPE fields their modified
+    // UTF-8 bytes and a 2-byte length, instead of Field.serialize's padding
+    // of strings to STRING_LEN
+    private static void encode(TupleDesc td, Tuple t, DataOutputStream out) {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    out.writeInt(((IntField) t.getField(i)).getValue());
+                else
+                    out.writeUTF(((StringField) t.getField(i)).getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e); // cannot happen in memory
+        }
+    }
+
+    private static List<Tuple> decode(Entry e) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(e.numTuples);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(e.data));
+        try {
+            for (int n = 0; n < e.numTuples; n++) {
+                Tuple t = new Tuple(e.td);
+                for (int i = 0; i < e.td.numFields(); i++) {
+                    if (e.td.getFieldType(i) == Type.INT_TYPE)
+                        t.setField(i, new IntField(in.readInt()));
+                    else
+                        t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                }
+                tuples.add(t);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return tuples;
+    }
+}
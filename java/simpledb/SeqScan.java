@@ -15,9 +15,13 @@ public class SeqScan implements DbIterator {
     private int TableID;
     private DbFile dbFile;
     private TupleDesc tupleDesc;
+    private TupleDesc aliasedTd; // built on first use; plans ask for it often
     private DbFileIterator iter;
     private String tableAlias;
     private int scanOpen=0;
+    private List<Predicate> predicates;
+    private int[] columns;
+    private BloomFilterIndex.Probe probe;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -53,6 +57,31 @@ public class SeqScan implements DbIterator {
         return Database.getCatalog().getTableName(TableID);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return TableID;
+    }
+
+    /**
+     * @return the transaction this scan runs as a part of
+     */
+    public TransactionId getTransactionId() {
+        return TranxID;
+    }
+
+    /**
+     * Set the transaction the scan runs as a part of, so that a plan can be
+     * run again in another transaction. Takes effect the next time the scan
+     * is opened or rewound.
+     *
+     * @see PreparedPlan#execute(TransactionId)
+     */
+    public void setTransactionId(TransactionId tid) {
+        this.TranxID = tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -76,21 +105,114 @@ public class SeqScan implements DbIterator {
      */
     public void reset(int tableid, String tableAlias) {
         // some code goes here
+        // rewind resets to the same table and alias; keep the names then
+        if (tableid != this.TableID
+                || (tableAlias == null ? this.tableAlias != null : !tableAlias.equals(this.tableAlias)))
+            aliasedTd = null;
         this.TableID = tableid;
         this.tableAlias = tableAlias;
         dbFile = Database.getCatalog().getDatabaseFile(tableid);
         tupleDesc = Database.getCatalog().getTupleDesc(tableid);
-        iter = dbFile.iterator(TranxID);
+        iter = createIterator();
     }
 
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Creates a sequential scan that only returns the tuples satisfying all
+     * of the specified predicates. For a HeapFile the predicates are used to
+     * skip whole pages through the file's zone map and Bloom filters, and for
+     * a ColumnarHeapFile they are evaluated on the page bytes; either way no
+     * Filter is needed above this scan.
+     *
+     * @param predicates
+     *            predicates over the fields of the table (not of the
+     *            alias-prefixed TupleDesc, which has the same field order)
+     * @see HeapFile#iterator(TransactionId, List)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, List<Predicate> predicates) {
+        this(tid, tableid, tableAlias);
+        this.predicates = predicates;
+    }
+
+    /**
+     * Creates a sequential scan that only returns the tuples satisfying all
+     * of the specified predicates, and only the specified fields of them.
+     * For a HeapFile or a ColumnarHeapFile the predicates are evaluated on
+     * the page bytes and only the requested fields of matching tuples are
+     * decoded, so no Filter or Project is needed above this scan.
+     *
+     * @param predicates
+     *            predicates over the fields of the table, or null for none
+     * @param columns
+     *            the indexes of the table's fields to return, in output
+     *            order, or null for all of them; predicates may be on fields
+     *            that are not returned
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, List<Predicate> predicates,
+                   int[] columns) {
+        this(tid, tableid, tableAlias, predicates);
+        this.columns = columns;
+    }
+
+    /**
+     * @return the predicates pushed down into this scan, or null if none
+     */
+    public List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * Hint that the caller only cares about tuples whose field matches one of
+     * the given keys, e.g. the build side of a hash join. A HeapFile with a
+     * Bloom filter on that field skips pages holding none of the keys; other
+     * tuples may still be returned, so the caller must check them. Takes
+     * effect the next time the scan is opened or rewound.
+     *
+     * @param field the field of this scan's tuples (its TupleDesc, which a
+     *     column mask may make differ from the table's) the keys belong to
+     * @param keys the keys, or null to clear the hint
+     * @see HeapFile#addBloomFilter(int, double)
+     */
+    public void setProbeKeys(int field, Collection<? extends Field> keys) {
+        if (keys == null || keys.size() > BloomFilterIndex.MAX_PROBE_KEYS)
+            probe = null;
+        else
+            probe = new BloomFilterIndex.Probe(columns == null ? field : columns[field], keys);
+    }
+
+    /**
+     * @return the indexes of the table's fields this scan returns, or null
+     *         if it returns all of them
+     */
+    public int[] getColumns() {
+        return columns;
+    }
+
+    private DbFileIterator createIterator() {
+        if (dbFile instanceof HeapFile && (predicates != null || probe != null || columns != null))
+            return ((HeapFile) dbFile).iterator(TranxID, columns, predicates, probe);
+        if ((predicates == null || predicates.isEmpty()) && columns == null)
+            return dbFile.iterator(TranxID);
+        if (dbFile instanceof ColumnarHeapFile) {
+            int[] cols = columns;
+            if (cols == null) {
+                cols = new int[tupleDesc.numFields()];
+                for (int i = 0; i < cols.length; i++)
+                    cols[i] = i;
+            }
+            return ((ColumnarHeapFile) dbFile).iterator(TranxID, cols, predicates);
+        }
+        return new FilteredDbFileIterator(dbFile.iterator(TranxID), predicates, columns,
+                columns == null ? null : ColumnarHeapFile.project(tupleDesc, columns));
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         try {
-            iter = dbFile.iterator(TranxID);
+            iter = createIterator();
             scanOpen = 1;
             iter.open();
         }
@@ -117,18 +239,22 @@ public class SeqScan implements DbIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
+        if (aliasedTd != null)
+            return aliasedTd;
         TupleDesc td = tupleDesc;
 
-        int numFields = td.numFields();
+        int numFields = columns == null ? td.numFields() : columns.length;
         Type[] typeAr = new Type[numFields];
         String[] fieldAr = new String[numFields];
 
         for (int i = 0; i < numFields; i ++) {
-            typeAr[i] = td.getFieldType(i);
-            fieldAr[i] = tableAlias + "." + td.getFieldName(i);
+            int field = columns == null ? i : columns[i];
+            typeAr[i] = td.getFieldType(field);
+            fieldAr[i] = tableAlias + "." + td.getFieldName(field);
         }
 
-        return new TupleDesc(typeAr, fieldAr);
+        aliasedTd = new TupleDesc(typeAr, fieldAr);
+        return aliasedTd;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -180,10 +306,10 @@ public class SeqScan implements DbIterator {
 
     public void close() {
         // some code goes here
-        dbFile = null;
-        tupleDesc = null;
+        // dbFile and tupleDesc are kept so the scan can be opened again
         scanOpen = 0;
-        iter.close();
+        if (iter != null)
+            iter.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
@@ -12,7 +12,7 @@ public class StringAggregator implements Aggregator {
     private int gbfield, afield;
     private Type gbfieldtype;
     private Op what;
-    private HashMap<String, Integer> map;
+    private HashMap<Field, Integer> map;
     /**
      * Aggregate constructor
      * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
@@ -30,7 +30,7 @@ public class StringAggregator implements Aggregator {
         this.what = what;
         if (what != Op.COUNT)
             throw new IllegalArgumentException("Invalid operator type " + what);
-        map = new HashMap<String, Integer>();
+        map = new HashMap<Field, Integer>();
     }
 
     /**
@@ -39,10 +39,10 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        String groupByFieldValue;
+        Field groupByFieldValue;
         Integer count;
 
-        groupByFieldValue = (gbfield == NO_GROUPING ? "" : tup.getField(gbfield).toString());
+        groupByFieldValue = (gbfield == NO_GROUPING ? null : tup.getField(gbfield));
 
         if (map.get(groupByFieldValue) == null)
         {
@@ -78,15 +78,13 @@ public class StringAggregator implements Aggregator {
 
         // convert hash map entries to iterator of Tuples
         // map entry is <groupVal, aggregateVal> pair
-        for (String groupVal : map.keySet()) {
+        for (Field groupVal : map.keySet()) {
             aggregateVal = map.get(groupVal);
             Tuple tup = new Tuple(td);
             if (gbfield == NO_GROUPING)
                 tup.setField(0, new IntField(aggregateVal));
             else {    // tuple has a pair
-                if (gbfieldtype == Type.INT_TYPE)
-                    tup.setField(0, new IntField(new Integer(groupVal)));
-                else tup.setField(0, new StringField(groupVal, Type.STRING_LEN));
+                tup.setField(0, groupVal);
                 tup.setField(1, new IntField(aggregateVal));
             }
             tuples.add(tup);
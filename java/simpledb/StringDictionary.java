@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * StringDictionary maps the distinct values of one dictionary-encoded
+ * STRING_TYPE column of a ColumnarHeapFile to dense int codes, so pages only
+ * need to store a 4-byte code per value instead of STRING_LEN + 4 bytes.
+ * <p>
+ * Codes are assigned in first-seen order and never change or get reused.
+ * The dictionary lives in a sidecar file next to the data file: a sequence
+ * of (int length, bytes) entries, where the i-th entry is the string with
+ * code i. A new entry is appended and synced as soon as its code is
+ * assigned, so it is always on disk before any page that refers to it.
+ *
+ * @see EncodedStringField
+ * @see ColumnarHeapFile
+ */
+public class StringDictionary {
+
+    private final File file;
+    private final ArrayList<String> strings = new ArrayList<String>();
+    private final ArrayList<Integer> hashes = new ArrayList<Integer>();
+    private final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+
+    /**
+     * Open the dictionary stored in the specified sidecar file, which need
+     * not exist yet.
+     */
+    public StringDictionary(File f) throws IOException {
+        this.file = f;
+        if (!file.exists())
+            return;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            long remaining = file.length();
+            while (remaining >= Type.INT_TYPE.getLen()) {
+                int len = dis.readInt();
+                remaining -= Type.INT_TYPE.getLen();
+                if (len < 0 || len > remaining)
+                    break; // torn append; the code was never used by a page on disk
+                byte[] b = new byte[len];
+                dis.readFully(b);
+                remaining -= len;
+                add(new String(b, "ISO-8859-1"));
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    private int add(String s) {
+        int code = strings.size();
+        strings.add(s);
+        hashes.add(s.hashCode());
+        codes.put(s, code);
+        return code;
+    }
+
+    /**
+     * @return the code of s, or -1 if s is not in the dictionary
+     */
+    public synchronized int lookup(String s) {
+        Integer code = codes.get(s);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * @return the code of s, assigning (and persisting) a new one if s is
+     *   not in the dictionary yet
+     */
+    public synchronized int encode(String s) throws IOException {
+        Integer code = codes.get(s);
+        if (code != null)
+            return code;
+        byte[] b = s.getBytes("ISO-8859-1");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(b.length + Type.INT_TYPE.getLen());
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(b.length);
+        dos.write(b);
+        FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            fos.write(baos.toByteArray());
+            fos.getFD().sync(); // before any page can carry the code
+        } finally {
+            fos.close();
+        }
+        return add(s);
+    }
+
+    /**
+     * @return the string with the specified code
+     * @throws NoSuchElementException if no string has that code
+     */
+    public synchronized String decode(int code) {
+        if (code < 0 || code >= strings.size())
+            throw new NoSuchElementException("no string with code " + code + " in " + file);
+        return strings.get(code);
+    }
+
+    /**
+     * @return the String.hashCode of the string with the specified code,
+     *   without touching the string itself
+     */
+    public synchronized int hashOf(int code) {
+        return hashes.get(code);
+    }
+
+    /** @return the number of distinct strings in the dictionary */
+    public synchronized int size() {
+        return strings.size();
+    }
+}
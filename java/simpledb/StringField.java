@@ -33,16 +33,25 @@ public class StringField implements Field {
 			value = s;
 	}
 
+	/**
+	 * Constructor for subclasses that produce their value lazily by
+	 * overriding getValue().
+	 */
+	protected StringField(int maxSize) {
+		this.maxSize = maxSize;
+		this.value = null;
+	}
+
 	public String toString() {
-		return value;
+		return getValue();
 	}
 
 	public int hashCode() {
-		return value.hashCode();
+		return getValue().hashCode();
 	}
 
 	public boolean equals(Object field) {
-		return ((StringField) field).value.equals(value);
+		return ((StringField) field).getValue().equals(getValue());
 	}
 
 	/**
@@ -54,7 +63,7 @@ public class StringField implements Field {
 	 *            Where the string is written
 	 */
 	public void serialize(DataOutputStream dos) throws IOException {
-		String s = value;
+		String s = getValue();
 		int overflow = maxSize - s.length();
 		if (overflow < 0) {
 			String news = s.substring(0, maxSize);
@@ -77,7 +86,8 @@ public class StringField implements Field {
 	public boolean compare(Predicate.Op op, Field val) {
 
 		StringField iVal = (StringField) val;
-		int cmpVal = value.compareTo(iVal.value);
+		String value = getValue();
+		int cmpVal = value.compareTo(iVal.getValue());
 
 		switch (op) {
 		case EQUALS:
@@ -99,7 +109,7 @@ public class StringField implements Field {
 			return cmpVal <= 0;
 
 		case LIKE:
-			return value.indexOf(iVal.value) >= 0;
+			return value.indexOf(iVal.getValue()) >= 0;
 		}
 
 		return false;
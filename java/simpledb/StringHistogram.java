@@ -0,0 +1,190 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * An equi-depth histogram over a sample of the values of a STRING_TYPE
+ * column, built like IntHistogram but with string bucket boundaries.
+ * Within a bucket, a string's position is interpolated from its first few
+ * characters.
+ * <p>
+ * LIKE (a substring match, see StringField.compare) cannot be answered from
+ * bucket boundaries, so the histogram also keeps an evenly spaced subset of
+ * the sorted sample and evaluates LIKE predicates on that.
+ *
+ * @see TableStats
+ */
+public class StringHistogram {
+
+    /** Number of sampled strings kept for LIKE estimates. */
+    static final int LIKE_SAMPLE = 512;
+    /** Characters used to place a string within a bucket. */
+    private static final int POSITION_CHARS = 4;
+
+    private final String[] lo, hi; // bucket b holds values in [lo[b], hi[b]]
+    private final double[] frac; // the share of all values in bucket b
+    private final double[] distinct; // estimated distinct values in bucket b
+    private final String[] likeSample;
+
+    /**
+     * Build a histogram from sampled values.
+     *
+     * @param values the sample; the first n entries are sorted in place
+     * @param n the number of sampled values
+     * @param buckets the number of buckets to aim for
+     * @param ndv the estimated number of distinct values in the whole column
+     */
+    public StringHistogram(String[] values, int n, int buckets, double ndv) {
+        Arrays.sort(values, 0, n);
+        int seen = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || !values[i].equals(values[i - 1]))
+                seen++;
+        }
+        double scale = seen == 0 ? 1.0 : Math.max(1.0, ndv / seen);
+
+        int depth = Math.max(1, (n + buckets - 1) / buckets);
+        String[] los = new String[buckets], his = new String[buckets];
+        double[] fracs = new double[buckets], ds = new double[buckets];
+        int b = 0;
+        for (int i = 0; i < n; b++) {
+            if (b == los.length) {
+                los = Arrays.copyOf(los, 2 * b);
+                his = Arrays.copyOf(his, 2 * b);
+                fracs = Arrays.copyOf(fracs, 2 * b);
+                ds = Arrays.copyOf(ds, 2 * b);
+            }
+            int start = i, d = 0;
+            do {
+                int run = 1;
+                while (i + run < n && values[i + run].equals(values[i]))
+                    run++;
+                if (i > start && run >= depth)
+                    break; // a heavy hitter gets a bucket of its own
+                d++;
+                i += run;
+            } while (i < n && i - start < depth);
+            los[b] = values[start];
+            his[b] = values[i - 1];
+            fracs[b] = (double) (i - start) / n;
+            ds[b] = los[b].equals(his[b]) ? 1.0 : d * scale;
+        }
+        lo = Arrays.copyOf(los, b);
+        hi = Arrays.copyOf(his, b);
+        frac = Arrays.copyOf(fracs, b);
+        distinct = Arrays.copyOf(ds, b);
+
+        int step = Math.max(1, n / LIKE_SAMPLE);
+        likeSample = new String[(n + step - 1) / step];
+        for (int i = 0, j = 0; i < n; i += step, j++)
+            likeSample[j] = values[i];
+    }
+
+    // a number that grows with s in string order, from its first characters
+    private static double position(String s) {
+        double pos = 0.0, unit = 1.0;
+        for (int i = 0; i < POSITION_CHARS; i++) {
+            unit /= 65537.0;
+            pos += (i < s.length() ? s.charAt(i) + 1 : 0) * unit;
+        }
+        return pos;
+    }
+
+    // the bucket whose range holds v, or -1
+    private int find(String v) {
+        int l = 0, h = lo.length - 1;
+        while (l <= h) {
+            int m = (l + h) >>> 1;
+            if (v.compareTo(lo[m]) < 0)
+                h = m - 1;
+            else if (v.compareTo(hi[m]) > 0)
+                l = m + 1;
+            else
+                return m;
+        }
+        return -1;
+    }
+
+    private double equal(String v) {
+        int b = find(v);
+        return b < 0 ? 0.0 : frac[b] / distinct[b];
+    }
+
+    private double less(String v) {
+        double sel = 0.0;
+        for (int b = 0; b < lo.length && lo[b].compareTo(v) < 0; b++) {
+            if (hi[b].compareTo(v) < 0) {
+                sel += frac[b];
+            } else {
+                double width = position(hi[b]) - position(lo[b]);
+                double below = width <= 0 ? 0.5 : (position(v) - position(lo[b])) / width;
+                sel += frac[b] * Math.max(0.0, Math.min(1.0, below));
+            }
+        }
+        return sel;
+    }
+
+    private double like(String v) {
+        if (likeSample.length == 0)
+            return 0.0;
+        int match = 0;
+        for (String s : likeSample) {
+            if (s.indexOf(v) >= 0)
+                match++;
+        }
+        return (double) match / likeSample.length;
+    }
+
+    /**
+     * Estimate the selectivity of a predicate with the specified operator
+     * and constant on this column.
+     *
+     * @return the estimated fraction of the column's values that satisfy
+     *   the predicate, between 0 and 1
+     */
+    public double estimateSelectivity(Predicate.Op op, String v) {
+        double sel;
+        switch (op) {
+        case EQUALS:
+            sel = equal(v);
+            break;
+        case NOT_EQUALS:
+            sel = 1.0 - equal(v);
+            break;
+        case LIKE:
+            sel = like(v);
+            break;
+        case LESS_THAN:
+            sel = less(v);
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = less(v) + equal(v);
+            break;
+        case GREATER_THAN:
+            sel = 1.0 - less(v) - equal(v);
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1.0 - less(v);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown operator " + op);
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /**
+     * @return the chance that two values drawn from the column are equal
+     * @see IntHistogram#avgSelectivity
+     */
+    public double avgSelectivity() {
+        double sel = 0.0;
+        for (int b = 0; b < lo.length; b++)
+            sel += frac[b] * frac[b] / distinct[b];
+        return sel;
+    }
+
+    /** @return the number of buckets */
+    public int numBuckets() {
+        return lo.length;
+    }
+}
@@ -0,0 +1,362 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TableStats represents statistics (e.g., histograms) about base tables in a
+ * query, so that the selectivity of predicates and the cost of plans can be
+ * estimated instead of guessed.
+ * <p>
+ * Statistics are collected from a sample. For a HeapFile or
+ * ColumnarHeapFile, up to SAMPLE_PAGES pages chosen at random are read
+ * through the buffer pool, and the table's cardinality is extrapolated
+ * from them. Other files (such as a BTreeFile, whose page numbers do not
+ * say which pages hold tuples) are scanned in full. Either way, at most
+ * MAX_SAMPLE_TUPLES of the tuples read are kept, chosen by reservoir
+ * sampling, to build an equi-depth histogram per column (IntHistogram or
+ * StringHistogram.)
+ * <p>
+ * The number of distinct values in a column comes from a DistinctSketch of
+ * every value read if the whole table was read. Otherwise it is
+ * extrapolated from the sample with the Duj1 estimator (Haas et al.),
+ * n d / (n - f1 + f1 n / N) for a sample of n out of N tuples holding d
+ * distinct values, f1 of them only once: a column whose sampled values are
+ * all different is taken to be a key, and one whose values all repeat to
+ * have no values outside the sample.
+ * <p>
+ * This class is not needed in implementing lab1 and lab2.
+ */
+public class TableStats {
+
+    private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
+
+    static final int IOCOSTPERPAGE = 1000;
+
+    /** Number of buckets each histogram aims for. */
+    static final int NUM_HIST_BINS = 100;
+    /** Number of pages of a heap file read to collect statistics. */
+    static final int SAMPLE_PAGES = 64;
+    /** Number of tuples kept to build histograms. */
+    static final int MAX_SAMPLE_TUPLES = 20000;
+
+    public static TableStats getTableStats(String tablename) {
+        return statsMap.get(tablename);
+    }
+
+    public static void setTableStats(String tablename, TableStats stats) {
+        statsMap.put(tablename, stats);
+    }
+
+    public static void setStatsMap(Map<String, TableStats> s) {
+        statsMap.clear();
+        statsMap.putAll(s);
+    }
+
+    public static Map<String, TableStats> getStatsMap() {
+        return statsMap;
+    }
+
+    /** Collect statistics for every table in the catalog. */
+    public static void computeStatistics() {
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+
+        System.out.println("Computing table stats.");
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
+            setTableStats(Database.getCatalog().getTableName(tableid), s);
+        }
+        System.out.println("Done.");
+    }
+
+    private final int tableid;
+    private final int ioCostPerPage;
+    private final int numPages;
+    private final TupleDesc td;
+    private int totalTuples;
+    private final double[] ndv;
+    private final IntHistogram[] intHists;
+    private final StringHistogram[] stringHists;
+
+    /**
+     * Create a new TableStats object, that keeps track of statistics on each
+     * column of a table
+     *
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO. This doesn't differentiate between
+     *            sequential-scan IO and disk seeks.
+     */
+    public TableStats(int tableid, int ioCostPerPage) {
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        td = file.getTupleDesc();
+        numPages = file.numPages();
+
+        int nf = td.numFields();
+        ndv = new double[nf];
+        intHists = new IntHistogram[nf];
+        stringHists = new StringHistogram[nf];
+        DistinctSketch[] sketches = new DistinctSketch[nf];
+        for (int i = 0; i < nf; i++)
+            sketches[i] = new DistinctSketch();
+
+        ArrayList<Tuple> sample = new ArrayList<Tuple>();
+        Random rand = new Random(tableid);
+        long read = 0;
+        boolean complete;
+        TransactionId tid = new TransactionId();
+        try {
+            if (file instanceof HeapFile || file instanceof ColumnarHeapFile) {
+                int[] pages = samplePages(numPages, rand);
+                complete = pages.length == numPages;
+                for (int pgNo : pages) {
+                    Page page = Database.getBufferPool().getPage(tid, new HeapPageId(tableid, pgNo),
+                            Permissions.READ_ONLY);
+                    Iterator<Tuple> it = page instanceof PaxPage ? ((PaxPage) page).iterator()
+                            : ((HeapPage) page).iterator();
+                    while (it.hasNext())
+                        read = include(it.next(), read, sample, sketches, rand);
+                }
+                totalTuples = complete || pages.length == 0 ? (int) read
+                        : (int) Math.round((double) read * numPages / pages.length);
+            } else {
+                complete = true;
+                DbFileIterator it = file.iterator(tid);
+                it.open();
+                while (it.hasNext())
+                    read = include(it.next(), read, sample, sketches, rand);
+                it.close();
+                totalTuples = (int) read;
+            }
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        } catch (TransactionAbortedException e) {
+            throw new RuntimeException(e);
+        }
+
+        int n = sample.size();
+        for (int i = 0; i < nf; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                int[] values = new int[n];
+                for (int j = 0; j < n; j++)
+                    values[j] = ((IntField) sample.get(j).getField(i)).getValue();
+                Arrays.sort(values);
+                ndv[i] = complete && read == n ? distinctSorted(values) : complete ? sketches[i].estimate()
+                        : duj1(values, totalTuples);
+                intHists[i] = new IntHistogram(values, n, NUM_HIST_BINS, ndv[i]);
+            } else {
+                String[] values = new String[n];
+                for (int j = 0; j < n; j++)
+                    values[j] = ((StringField) sample.get(j).getField(i)).getValue();
+                Arrays.sort(values);
+                ndv[i] = complete && read == n ? distinctSorted(values) : complete ? sketches[i].estimate()
+                        : duj1(values, totalTuples);
+                stringHists[i] = new StringHistogram(values, n, NUM_HIST_BINS, ndv[i]);
+            }
+            ndv[i] = Math.max(1.0, Math.min(ndv[i], Math.max(totalTuples, 1)));
+        }
+    }
+
+    // page numbers to read: all of them, or SAMPLE_PAGES chosen at random
+    private static int[] samplePages(int numPages, Random rand) {
+        int[] pages = new int[numPages];
+        for (int i = 0; i < numPages; i++)
+            pages[i] = i;
+        int k = Math.min(numPages, SAMPLE_PAGES);
+        for (int i = 0; i < k; i++) {
+            int j = i + rand.nextInt(numPages - i);
+            int tmp = pages[i];
+            pages[i] = pages[j];
+            pages[j] = tmp;
+        }
+        int[] chosen = Arrays.copyOf(pages, k);
+        Arrays.sort(chosen); // read in file order
+        return chosen;
+    }
+
+    // count a tuple read, keeping it in the reservoir sample with the
+    // right probability; returns the new number of tuples read
+    private static long include(Tuple t, long read, ArrayList<Tuple> sample, DistinctSketch[] sketches,
+                                Random rand) {
+        for (int i = 0; i < sketches.length; i++)
+            sketches[i].add(t.getField(i));
+        if (sample.size() < MAX_SAMPLE_TUPLES) {
+            sample.add(t);
+        } else {
+            long j = (long) (rand.nextDouble() * (read + 1));
+            if (j < MAX_SAMPLE_TUPLES)
+                sample.set((int) j, t);
+        }
+        return read + 1;
+    }
+
+    private static int distinctSorted(int[] values) {
+        int d = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[i - 1])
+                d++;
+        }
+        return d;
+    }
+
+    private static int distinctSorted(String[] values) {
+        int d = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || !values[i].equals(values[i - 1]))
+                d++;
+        }
+        return d;
+    }
+
+    // the Duj1 estimate of the distinct values among total tuples, from a
+    // sorted sample of them
+    private static double duj1(int[] values, int total) {
+        int once = 0, d = 0;
+        for (int i = 0; i < values.length; ) {
+            int j = i;
+            while (j < values.length && values[j] == values[i])
+                j++;
+            if (j - i == 1)
+                once++;
+            d++;
+            i = j;
+        }
+        return duj1(once, d, values.length, total);
+    }
+
+    private static double duj1(String[] values, int total) {
+        int once = 0, d = 0;
+        for (int i = 0; i < values.length; ) {
+            int j = i;
+            while (j < values.length && values[j].equals(values[i]))
+                j++;
+            if (j - i == 1)
+                once++;
+            d++;
+            i = j;
+        }
+        return duj1(once, d, values.length, total);
+    }
+
+    private static double duj1(int once, int d, int n, int total) {
+        if (n == 0)
+            return 0.0;
+        return (double) n * d / (n - once + (double) once * n / Math.max(total, n));
+    }
+
+    /**
+     * Estimates the cost of sequentially scanning the file, given that the
+     * cost to read a page is costPerPageIO. You can assume that there are no
+     * seeks and that no pages are in the buffer pool.
+     *
+     * @return The estimated cost of scanning the table.
+     */
+    public double estimateScanCost() {
+        return (double) numPages * ioCostPerPage;
+    }
+
+    /**
+     * This method returns the number of tuples in the relation, given that a
+     * predicate with selectivity selectivityFactor is applied.
+     *
+     * @param selectivityFactor
+     *            The selectivity of any predicates over the table
+     * @return The estimated cardinality of the scan with the specified
+     *         selectivityFactor
+     */
+    public int estimateTableCardinality(double selectivityFactor) {
+        return (int) Math.ceil(totalTuples * selectivityFactor);
+    }
+
+    /**
+     * The average selectivity of the field under op, for a constant that is
+     * not known yet (e.g. the other side of a join.)
+     *
+     * @param field
+     *            the index of the field
+     * @param op
+     *            the operator in the predicate
+     */
+    public double avgSelectivity(int field, Predicate.Op op) {
+        double eq = td.getFieldType(field) == Type.INT_TYPE ? intHists[field].avgSelectivity()
+                : stringHists[field].avgSelectivity();
+        switch (op) {
+        case EQUALS:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        case LIKE:
+            return td.getFieldType(field) == Type.INT_TYPE ? eq : 0.1;
+        default:
+            return (1.0 - eq) / 2; // half of the pairs that are not equal
+        }
+    }
+
+    /**
+     * Estimate the selectivity of predicate <tt>field op constant</tt> on the
+     * table.
+     *
+     * @param field
+     *            The field over which the predicate ranges
+     * @param op
+     *            The logical operation in the predicate
+     * @param constant
+     *            The value against which the field is compared
+     * @return The estimated selectivity (fraction of tuples that satisfy) the
+     *         predicate
+     */
+    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+        if (td.getFieldType(field) == Type.INT_TYPE)
+            return intHists[field].estimateSelectivity(op, ((IntField) constant).getValue());
+        return stringHists[field].estimateSelectivity(op, ((StringField) constant).getValue());
+    }
+
+    /**
+     * Estimate the selectivity of a conjunction of predicates on the table,
+     * assuming the predicates are independent. A predicate on a Parameter
+     * that is not bound yet gets the average selectivity of its operator.
+     */
+    public double estimateSelectivity(List<Predicate> preds) {
+        double sel = 1.0;
+        for (Predicate p : preds) {
+            Parameter param = p.getParameter();
+            if (param != null && !param.isBound())
+                sel *= avgSelectivity(p.getField(), p.getOp());
+            else
+                sel *= estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+        }
+        return sel;
+    }
+
+    /**
+     * @return the estimated number of distinct values in the specified field
+     */
+    public double numDistinct(int field) {
+        return ndv[field];
+    }
+
+    /**
+     * @return the (estimated) total number of tuples in this table
+     */
+    public int totalTuples() {
+        return totalTuples;
+    }
+
+    /**
+     * @return the number of pages in this table
+     */
+    public int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the id of the table these statistics describe
+     */
+    public int getTableId() {
+        return tableid;
+    }
+}
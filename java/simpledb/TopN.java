@@ -0,0 +1,242 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN implements ORDER BY ... LIMIT n: it returns the first n tuples of its
+ * child in the order of one field, without sorting (or holding) the whole
+ * input.
+ * <p>
+ * The tuples kept so far are held in a binary heap of at most n entries
+ * whose root is the one that would be output last. Each child tuple is
+ * compared with the root and, if it comes earlier, replaces it, so a scan of
+ * r tuples takes O(r log n) time and O(n) memory. INT_TYPE keys are read
+ * once per tuple and compared as ints; other keys go through Field.compare.
+ * Tuples with equal keys are output in the order the child returned them.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private final int keyField;
+    private final boolean asc;
+    private final int limit;
+    private final TupleDesc td;
+
+    // the heap, in parallel arrays; entry 0 is the worst tuple kept
+    private transient Tuple[] tuples;
+    private transient int[] intKeys; // null unless the key is INT_TYPE
+    private transient long[] seq; // arrival order, for ties
+    private transient int size;
+
+    private transient Tuple[] output;
+    private transient int next;
+
+    /**
+     * Constructor.
+     *
+     * @param keyField
+     *            the field of the child's tuples to order by
+     * @param asc
+     *            true to return the n smallest keys in ascending order, false
+     *            for the n largest in descending order
+     * @param limit
+     *            n, the number of tuples to return at most
+     * @param child
+     *            the child operator
+     */
+    public TopN(int keyField, boolean asc, int limit, DbIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.keyField = keyField;
+        this.asc = asc;
+        this.limit = limit;
+        this.child = child;
+        this.td = child.getTupleDesc();
+    }
+
+    public int getOrderByField() {
+        return keyField;
+    }
+
+    public String getOrderFieldName() {
+        return td.getFieldName(keyField);
+    }
+
+    public boolean isASC() {
+        return asc;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        output = select();
+        next = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        tuples = null;
+        intKeys = null;
+        seq = null;
+        output = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        next = 0;
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        return output != null && next < output.length ? output[next++] : null;
+    }
+
+    // read the child and return the first limit tuples in output order
+    private Tuple[] select() throws DbException, TransactionAbortedException {
+        int cap = Math.min(limit, 1024); // grown as needed, up to limit
+        tuples = new Tuple[cap];
+        intKeys = td.getFieldType(keyField) == Type.INT_TYPE ? new int[cap] : null;
+        seq = new long[cap];
+        size = 0;
+        if (limit == 0)
+            return new Tuple[0];
+
+        long arrived = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            long s = arrived++;
+            if (intKeys != null) {
+                int k = ((IntField) t.getField(keyField)).getValue();
+                if (size == limit) {
+                    // the root is the worst kept; with equal keys it arrived earlier, so stays
+                    if (asc ? k >= intKeys[0] : k <= intKeys[0])
+                        continue;
+                    replaceRoot(t, k, s);
+                } else
+                    add(t, k, s);
+            } else {
+                if (size == limit) {
+                    Field root = tuples[0].getField(keyField);
+                    if (!t.getField(keyField).compare(asc ? Predicate.Op.LESS_THAN
+                            : Predicate.Op.GREATER_THAN, root))
+                        continue;
+                    replaceRoot(t, 0, s);
+                } else
+                    add(t, 0, s);
+            }
+        }
+
+        // pop the worst into the last free position until the heap is empty
+        Tuple[] sorted = new Tuple[size];
+        while (size > 0) {
+            sorted[size - 1] = tuples[0];
+            size--;
+            move(size, 0);
+            siftDown(0);
+        }
+        tuples = null;
+        intKeys = null;
+        seq = null;
+        return sorted;
+    }
+
+    private void add(Tuple t, int key, long s) {
+        if (size == tuples.length) {
+            int cap = (int) Math.min(limit, 2L * tuples.length);
+            tuples = Arrays.copyOf(tuples, cap);
+            seq = Arrays.copyOf(seq, cap);
+            if (intKeys != null)
+                intKeys = Arrays.copyOf(intKeys, cap);
+        }
+        set(size, t, key, s);
+        siftUp(size++);
+    }
+
+    private void replaceRoot(Tuple t, int key, long s) {
+        set(0, t, key, s);
+        siftDown(0);
+    }
+
+    private void set(int i, Tuple t, int key, long s) {
+        tuples[i] = t;
+        seq[i] = s;
+        if (intKeys != null)
+            intKeys[i] = key;
+    }
+
+    private void move(int from, int to) {
+        set(to, tuples[from], intKeys == null ? 0 : intKeys[from], seq[from]);
+    }
+
+    private void swap(int i, int j) {
+        Tuple t = tuples[i];
+        tuples[i] = tuples[j];
+        tuples[j] = t;
+        long s = seq[i];
+        seq[i] = seq[j];
+        seq[j] = s;
+        if (intKeys != null) {
+            int k = intKeys[i];
+            intKeys[i] = intKeys[j];
+            intKeys[j] = k;
+        }
+    }
+
+    // whether entry i is output after entry j
+    private boolean later(int i, int j) {
+        int c;
+        if (intKeys != null) {
+            c = Integer.compare(intKeys[i], intKeys[j]);
+        } else {
+            Field a = tuples[i].getField(keyField), b = tuples[j].getField(keyField);
+            c = a.compare(Predicate.Op.LESS_THAN, b) ? -1 : a.compare(Predicate.Op.GREATER_THAN, b) ? 1 : 0;
+        }
+        if (c != 0)
+            return asc ? c > 0 : c < 0;
+        return seq[i] > seq[j];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!later(i, parent))
+                return;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int l = 2 * i + 1, r = l + 1, worst = i;
+            if (l < size && later(l, worst))
+                worst = l;
+            if (r < size && later(r, worst))
+                worst = r;
+            if (worst == i)
+                return;
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+}
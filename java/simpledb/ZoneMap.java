@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ZoneMap keeps, for every page of a HeapFile, the minimum and maximum value
+ * of each INT_TYPE column on that page. Scans use it to skip pages that
+ * cannot satisfy a pushed-down Predicate without reading them.
+ * <p>
+ * The summaries are conservative: inserts widen them immediately, deletes
+ * never narrow them, and a page whose summary is unknown (e.g. one written
+ * by HeapFileEncoder) is always read. Summaries are persisted in a sidecar
+ * file next to the heap file, one fixed-size entry per page, and each entry
+ * is written before the page itself so the sidecar never understates what is
+ * on disk.
+ * <p>
+ * The sidecar format is an int giving the number of INT_TYPE columns,
+ * followed by one entry per page: a byte that is 1 if the entry is known,
+ * and then a (min, max) pair of ints per INT_TYPE column. An empty page has
+ * min > max, which no predicate can match.
+ *
+ * @see HeapFile#iterator(TransactionId, List)
+ */
+public class ZoneMap {
+
+    private final File file;
+    private final int[] intFields;
+    private final int entrySize;
+    // entries.get(pageNo) is null if nothing is known about that page, else
+    // min0, max0, min1, max1, ... for each column in intFields
+    private final ArrayList<int[]> entries = new ArrayList<int[]>();
+
+    /**
+     * Open (or start) the zone map stored in the specified sidecar file for
+     * a heap file with the specified schema. An unreadable or mismatched
+     * sidecar is ignored, which just means every page starts out unknown.
+     */
+    public ZoneMap(File f, TupleDesc td) {
+        this.file = f;
+        ArrayList<Integer> ints = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints.add(i);
+        }
+        intFields = new int[ints.size()];
+        for (int i = 0; i < intFields.length; i++)
+            intFields[i] = ints.get(i);
+        entrySize = 1 + intFields.length * 2 * Type.INT_TYPE.getLen();
+        load();
+    }
+
+    private void load() {
+        if (!file.exists() || intFields.length == 0)
+            return;
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (dis.readInt() != intFields.length)
+                    return;
+                long numEntries = (file.length() - Type.INT_TYPE.getLen()) / entrySize;
+                for (long p = 0; p < numEntries; p++) {
+                    boolean known = dis.readByte() == 1;
+                    int[] e = new int[intFields.length * 2];
+                    for (int i = 0; i < e.length; i++)
+                        e[i] = dis.readInt();
+                    entries.add(known ? e : null);
+                }
+            } finally {
+                dis.close();
+            }
+        } catch (IOException e) {
+            entries.clear();
+        }
+    }
+
+    /** @return true if this zone map tracks no columns at all */
+    public boolean isEmpty() {
+        return intFields.length == 0;
+    }
+
+    private int[] entryFor(int pageNo) {
+        while (entries.size() <= pageNo)
+            entries.add(null);
+        int[] e = entries.get(pageNo);
+        if (e == null) {
+            e = new int[intFields.length * 2];
+            for (int i = 0; i < intFields.length; i++) {
+                e[2 * i] = Integer.MAX_VALUE;
+                e[2 * i + 1] = Integer.MIN_VALUE;
+            }
+            entries.set(pageNo, e);
+        }
+        return e;
+    }
+
+    private void widen(int[] e, Tuple t) {
+        for (int i = 0; i < intFields.length; i++) {
+            int v = ((IntField) t.getField(intFields[i])).getValue();
+            if (v < e[2 * i])
+                e[2 * i] = v;
+            if (v > e[2 * i + 1])
+                e[2 * i + 1] = v;
+        }
+    }
+
+    /**
+     * Widen the summary of a page to cover a tuple that was just inserted
+     * into it. If nothing was known about the page, it stays unknown.
+     */
+    public synchronized void include(int pageNo, Tuple t) {
+        if (isEmpty() || pageNo >= entries.size() || entries.get(pageNo) == null)
+            return;
+        widen(entries.get(pageNo), t);
+    }
+
+    /**
+     * Widen the summary of a page to cover every tuple on it, and make the
+     * page known. Called with the exact contents about to be written to disk.
+     */
+    public synchronized void include(HeapPage page) {
+        if (isEmpty())
+            return;
+        int[] e = entryFor(page.getId().pageNumber());
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            widen(e, it.next());
+    }
+
+    /**
+     * Record the summary of a page a scan just read, if nothing was known
+     * about it yet. Only clean pages are used, so uncommitted deletes never
+     * make a summary too narrow.
+     */
+    public synchronized void learn(HeapPage page) {
+        int pageNo = page.getId().pageNumber();
+        if (isEmpty() || page.isDirty() != null
+                || (pageNo < entries.size() && entries.get(pageNo) != null))
+            return;
+        include(page);
+    }
+
+    /**
+     * @return false if the summary of the page proves that no tuple on it
+     *   can satisfy all of the predicates, true otherwise
+     */
+    public synchronized boolean mayMatch(int pageNo, List<Predicate> preds) {
+        if (preds == null || isEmpty() || pageNo >= entries.size() || entries.get(pageNo) == null)
+            return true;
+        int[] e = entries.get(pageNo);
+        for (Predicate p : preds) {
+            for (int i = 0; i < intFields.length; i++) {
+                if (intFields[i] == p.getField() && p.getOperand() instanceof IntField
+                        && excludes(e[2 * i], e[2 * i + 1], p.getOp(), ((IntField) p.getOperand()).getValue()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if no value in [lo, hi] satisfies "value op c"
+     */
+    static boolean excludes(int lo, int hi, Predicate.Op op, int c) {
+        if (lo > hi) // no tuples on the page
+            return true;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return c < lo || c > hi;
+        case NOT_EQUALS:
+            return lo == c && hi == c;
+        case GREATER_THAN:
+            return hi <= c;
+        case GREATER_THAN_OR_EQ:
+            return hi < c;
+        case LESS_THAN:
+            return lo >= c;
+        case LESS_THAN_OR_EQ:
+            return lo > c;
+        }
+        return false;
+    }
+
+    /**
+     * Write the summary of one page to the sidecar file.
+     */
+    public synchronized void persist(int pageNo) throws IOException {
+        if (isEmpty())
+            return;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < Type.INT_TYPE.getLen()) {
+                raf.seek(0);
+                raf.writeInt(intFields.length);
+            }
+            long end = Type.INT_TYPE.getLen() + (long) (pageNo + 1) * entrySize;
+            if (raf.length() < end)
+                raf.setLength(end); // pages we skipped over read back as unknown
+            raf.seek(end - entrySize);
+
+            int[] e = pageNo < entries.size() ? entries.get(pageNo) : null;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(entrySize);
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeByte(e == null ? 0 : 1);
+            for (int i = 0; i < intFields.length * 2; i++)
+                dos.writeInt(e == null ? 0 : e[i]);
+            raf.write(baos.toByteArray());
+        } finally {
+            raf.close();
+        }
+    }
+}
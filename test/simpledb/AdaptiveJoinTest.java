@@ -0,0 +1,98 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+public class AdaptiveJoinTest extends SimpleDbTestBase {
+
+    private static final JoinPredicate EQ = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+    // the number of pairs with equal f0
+    private static int expected(int[][] build, int[][] probe) {
+        int n = 0;
+        for (int[] b : build)
+            for (int[] p : probe)
+                if (b[0] == p[0])
+                    n++;
+        return n;
+    }
+
+    // read the join to its end, check hasNext stays false, and rewind
+    private static void checkJoin(AdaptiveJoin j, int expected, String strategy) throws Exception {
+        j.open();
+        int n = 0;
+        while (j.hasNext()) {
+            Tuple t = j.next();
+            assertEquals(t.getField(0), t.getField(2));
+            n++;
+        }
+        assertEquals(expected, n);
+        assertFalse(j.hasNext());
+        assertFalse(j.hasNext());
+        assertTrue(j.getDecision(), j.getDecision().startsWith(strategy));
+
+        j.rewind();
+        n = 0;
+        while (j.hasNext()) {
+            j.next();
+            n++;
+        }
+        assertEquals(expected, n);
+        assertFalse(j.hasNext());
+        j.close();
+    }
+
+    @Test public void emptyBuildSide() throws Exception {
+        int[][] probe = TestUtil.keyMod(10, 3);
+        AdaptiveJoin j = new AdaptiveJoin(EQ, TestUtil.tuples(2, new int[0][]), TestUtil.tuples(2, probe));
+        checkJoin(j, 0, "empty build side");
+    }
+
+    @Test public void inMemoryHashJoin() throws Exception {
+        int[][] build = TestUtil.keyMod(10, 3), probe = TestUtil.keyMod(20, 3);
+        AdaptiveJoin j = new AdaptiveJoin(EQ, TestUtil.tuples(2, build), TestUtil.tuples(2, probe));
+        checkJoin(j, expected(build, probe), "in-memory hash join");
+    }
+
+    @Test public void partitionedHashJoin() throws Exception {
+        int[][] build = TestUtil.keyMod(10, 3), probe = TestUtil.keyMod(10, 3);
+        AdaptiveJoin j = new AdaptiveJoin(EQ, TestUtil.tuples(2, build), TestUtil.tuples(2, probe), 2);
+        checkJoin(j, expected(build, probe), "partitioned hash join");
+    }
+
+    @Test public void partitionedWithDuplicateKeys() throws Exception {
+        // every build tuple has the same key, so its partition is joined a chunk at a time
+        int[][] build = new int[50][], probe = new int[30][];
+        for (int i = 0; i < build.length; i++)
+            build[i] = new int[] { 7, i };
+        for (int i = 0; i < probe.length; i++)
+            probe[i] = new int[] { i % 2 == 0 ? 7 : i, i };
+        AdaptiveJoin j = new AdaptiveJoin(EQ, TestUtil.tuples(2, build), TestUtil.tuples(2, probe), 8);
+        checkJoin(j, expected(build, probe), "partitioned hash join");
+    }
+
+    @Test public void indexNestedLoopJoin() throws Exception {
+        File f = File.createTempFile("hidx", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        HashIndexFile index = new HashIndexFile(f, 0, Utility.getTupleDesc(2, "f"));
+        Database.getCatalog().addTable(index, "hidx");
+        TransactionId tid = new TransactionId();
+        int[][] inner = TestUtil.keyMod(3000, 5);
+        for (int[] row : inner) {
+            Tuple t = new Tuple(index.getTupleDesc());
+            t.setField(0, new IntField(row[0]));
+            t.setField(1, new IntField(row[1]));
+            Database.getBufferPool().insertTuple(tid, index.getId(), t);
+        }
+        assertTrue(index.numPages() > 4);
+
+        int[][] build = { { 5, 0 }, { 2999, 1 } };
+        AdaptiveJoin j = new AdaptiveJoin(EQ, TestUtil.tuples(2, build), new SeqScan(tid, index.getId(), "h"));
+        checkJoin(j, expected(build, inner), "index nested-loop join");
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for BloomFilterIndex and the page skipping it gives HeapFile scans.
+ */
+public class BloomFilterIndexTest extends SimpleDbTestBase {
+
+    private static final int N = 10000;
+
+    // rows {i, a random key below 1000000}
+    private static int[][] randomKeys(Random r) {
+        int[][] rows = new int[N][];
+        for (int i = 0; i < N; i++)
+            rows[i] = new int[] { i, r.nextInt(1000000) };
+        return rows;
+    }
+
+    private static List<Predicate> equals(int field, int key) {
+        return Arrays.asList(new Predicate(field, Predicate.Op.EQUALS, new IntField(key)));
+    }
+
+    // the fraction of (page, absent key) pairs the filters let through
+    private static double falsePositiveRate(HeapFile hf) {
+        int passed = 0;
+        for (int k = 0; k < 1000; k++) {
+            for (int p = 0; p < hf.numPages(); p++) {
+                if (hf.getBloomFilters().mayMatch(p, equals(1, 2000000 + k)))
+                    passed++;
+            }
+        }
+        return passed / (1000.0 * hf.numPages());
+    }
+
+    @Test
+    public void noFalseNegativesAndFewFalsePositives() throws Exception {
+        HeapFile hf = TestUtil.createHeapFile(2, randomKeys(new Random(1)));
+        hf.addBloomFilter(1, 0.01);
+        assertEquals(1.0, falsePositiveRate(hf), 0.0); // nothing known yet
+
+        TransactionId tid = new TransactionId();
+        assertEquals(N, TestUtil.drain(new SeqScan(tid, hf.getId(), "t")).size()); // learns every page
+        assertTrue(falsePositiveRate(hf) < 0.03);
+
+        // every key is found on its own page
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int key = ((IntField) t.getField(1)).getValue();
+            assertTrue(hf.getBloomFilters().mayMatch(t.getRecordId().getPageId().pageNumber(), equals(1, key)));
+        }
+        it.close();
+    }
+
+    @Test
+    public void writtenPagesPersistTheirFilters() throws Exception {
+        File f = File.createTempFile("bloom", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".zmap").deleteOnExit();
+        new File(f.getPath() + ".bloom").deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getPath(), 2);
+        hf.addBloomFilter(1, 0.01);
+        TransactionId tid = new TransactionId();
+        int[][] rows = randomKeys(new Random(2));
+        for (int[] row : rows) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(row[0]));
+            t.setField(1, new IntField(row[1]));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "t");
+        assertTrue(hf.getBloomFilters().covers(1));
+        assertFalse(hf.getBloomFilters().covers(0));
+        assertTrue(falsePositiveRate(hf) < 0.03);
+
+        List<Tuple> found = TestUtil.drain(new SeqScan(tid, hf.getId(), "t", equals(1, rows[1234][1])));
+        assertTrue(TestUtil.ints(found, 0).contains(1234));
+    }
+
+    @Test
+    public void probesSkipPagesWithoutAnyKey() throws Exception {
+        HeapFile hf = TestUtil.createHeapFile(2, randomKeys(new Random(3)));
+        hf.addBloomFilter(1, 0.01);
+        TransactionId tid = new TransactionId();
+        TestUtil.drain(new SeqScan(tid, hf.getId(), "t"));
+
+        BloomFilterIndex.Probe absent = new BloomFilterIndex.Probe(1,
+                Arrays.asList(new IntField(-1), new IntField(-2), new IntField(-3)));
+        int skipped = 0;
+        for (int p = 0; p < hf.numPages(); p++) {
+            if (!hf.getBloomFilters().mayContainAny(p, absent))
+                skipped++;
+        }
+        assertTrue(skipped >= hf.numPages() * 9 / 10);
+        // a probe on a field without filters skips nothing
+        BloomFilterIndex.Probe other = new BloomFilterIndex.Probe(0, Arrays.asList(new IntField(-1)));
+        assertTrue(hf.getBloomFilters().mayContainAny(0, other));
+    }
+
+    @Test
+    public void addingAColumnForgetsEveryPage() throws Exception {
+        HeapFile hf = TestUtil.createHeapFile(2, randomKeys(new Random(4)));
+        hf.addBloomFilter(1, 0.01);
+        TestUtil.drain(new SeqScan(new TransactionId(), hf.getId(), "t"));
+        hf.addBloomFilter(0, 0.05);
+        assertTrue(hf.getBloomFilters().mayMatch(0, equals(1, -1)));
+        assertTrue(hf.getBloomFilters().mayMatch(0, equals(0, -1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAFalsePositiveRateOfOne() throws Exception {
+        TestUtil.createHeapFile(2, TestUtil.keyMod(10, 2)).addBloomFilter(1, 1.0);
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for BufferPool's background writer and its bookkeeping of dirty
+ * pages.
+ */
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    private HeapFile table;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("bufferpool", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".zmap").deleteOnExit();
+        table = Utility.createEmptyHeapFile(f.getPath(), 2);
+    }
+
+    private void insert(TransactionId tid, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(table.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField((int) tid.getId()));
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        }
+    }
+
+    private int dirtyPages() throws Exception {
+        int n = 0;
+        for (int p = 0; p < table.numPages(); p++) {
+            Page page = Database.getBufferPool().getPage(new TransactionId(), new HeapPageId(table.getId(), p),
+                    Permissions.READ_ONLY);
+            if (page.isDirty() != null)
+                n++;
+        }
+        return n;
+    }
+
+    // the number of tuples on disk, read around the buffer pool
+    private int tuplesOnDisk() {
+        int n = 0;
+        for (int p = 0; p < table.numPages(); p++) {
+            HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), p));
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next())
+                n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void writerTricklesCommittedPagesToDisk() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, 2000);
+        Database.getBufferPool().transactionComplete(tid, true);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dirtyPages() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertEquals(0, dirtyPages());
+        assertEquals(2000, tuplesOnDisk());
+    }
+
+    @Test
+    public void eachRoundWritesAnEighthOfThePool() throws Exception {
+        Database.resetBufferPool(16).stopWriter();
+        TransactionId tid = new TransactionId();
+        insert(tid, 2000);
+        Database.getBufferPool().transactionComplete(tid, true);
+        int dirty = dirtyPages();
+        assertEquals(table.numPages(), dirty);
+        assertTrue(dirty > 2);
+
+        BufferPool bp = Database.getBufferPool();
+        while (dirty > 0) {
+            int written = bp.writeBackDirtyPages();
+            assertEquals(Math.min(2, dirty), written);
+            dirty -= written;
+            assertEquals(dirty, dirtyPages());
+        }
+        assertEquals(0, bp.writeBackDirtyPages());
+        assertEquals(2000, tuplesOnDisk());
+        assertTrue(bp.dirtyPageTable().isEmpty());
+    }
+
+    private static boolean dirty(HeapFile hf) throws Exception {
+        Page page = Database.getBufferPool().getPage(new TransactionId(), new HeapPageId(hf.getId(), 0),
+                Permissions.READ_ONLY);
+        return page.isDirty() != null;
+    }
+
+    @Test
+    public void writeSetsFollowEachTransaction() throws Exception {
+        Database.getBufferPool().stopWriter();
+        File f = File.createTempFile("bufferpool", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".zmap").deleteOnExit();
+        HeapFile other = Utility.createEmptyHeapFile(f.getPath(), 2);
+        BufferPool bp = Database.getBufferPool();
+
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        Database.getLogFile().logXactionBegin(t1);
+        Database.getLogFile().logXactionBegin(t2);
+        insert(t1, 10);
+        Tuple t = new Tuple(other.getTupleDesc());
+        t.setField(0, new IntField(0));
+        t.setField(1, new IntField(0));
+        bp.insertTuple(t2, other.getId(), t);
+        assertTrue(bp.hasUncommittedWrites(t1, table.getId()));
+        assertFalse(bp.hasUncommittedWrites(t1, other.getId()));
+        assertTrue(bp.hasUncommittedWrites(t2, other.getId()));
+
+        // flushing writes only t1's pages, which are still uncommitted
+        long version = BufferPool.getTableVersion(table.getId());
+        bp.flushPages(t1);
+        assertFalse(dirty(table));
+        assertTrue(dirty(other));
+        assertTrue(bp.hasUncommittedWrites(t1, table.getId()));
+
+        bp.transactionComplete(t1, true);
+        assertFalse(bp.hasUncommittedWrites(t1, table.getId()));
+        assertTrue(BufferPool.getTableVersion(table.getId()) > version);
+
+        version = BufferPool.getTableVersion(other.getId());
+        bp.transactionComplete(t2, false);
+        assertFalse(bp.hasUncommittedWrites(t2, other.getId()));
+        assertTrue(BufferPool.getTableVersion(other.getId()) > version);
+        assertEquals(10, tuplesOnDisk());
+        assertEquals(0, TestUtil.drain(new SeqScan(new TransactionId(), other.getId(), "o")).size());
+    }
+
+    @Test
+    public void runsOfAdjacentPagesLandAtTheirOwnOffsets() throws Exception {
+        HeapFile hf = TestUtil.createHeapFile(2, TestUtil.keyMod(2000, 7));
+        int n = hf.numPages();
+        assertTrue(n >= 3);
+        byte[][] data = new byte[n][];
+        for (int p = 0; p < n; p++)
+            data[p] = hf.readPage(new HeapPageId(hf.getId(), p)).getPageData();
+
+        // write pages 1.. with their data rotated one page along, as a single run
+        ArrayList<Page> run = new ArrayList<Page>();
+        for (int p = 1; p < n; p++)
+            run.add(new HeapPage(new HeapPageId(hf.getId(), p), data[p % (n - 1) + 1]));
+        hf.writePages(run);
+        assertArrayEquals(data[0], hf.readPage(new HeapPageId(hf.getId(), 0)).getPageData());
+        for (int p = 1; p < n; p++)
+            assertArrayEquals(data[p % (n - 1) + 1], hf.readPage(new HeapPageId(hf.getId(), p)).getPageData());
+        assertEquals(n, hf.numPages());
+    }
+}
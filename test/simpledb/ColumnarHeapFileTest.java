@@ -0,0 +1,121 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ColumnarHeapFile and its PAX pages.
+ */
+public class ColumnarHeapFileTest extends SimpleDbTestBase {
+
+    private static final int N = 1000;
+
+    private File file;
+    private TupleDesc td;
+    private ColumnarHeapFile cf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("pax", ".dat");
+        file.deleteOnExit();
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+                new String[] { "a", "s", "b" });
+        cf = new ColumnarHeapFile(file, td);
+        Database.getCatalog().addTable(cf, "pax");
+        tid = new TransactionId();
+        // rows {i, "s" + i, i % 7}
+        for (int i = 0; i < N; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+            t.setField(2, new IntField(i % 7));
+            Database.getBufferPool().insertTuple(tid, cf.getId(), t);
+        }
+        Database.getBufferPool().flushAllPages();
+    }
+
+    private void reopen() {
+        Database.reset();
+        cf = new ColumnarHeapFile(file, td);
+        Database.getCatalog().addTable(cf, "pax");
+    }
+
+    private static List<Tuple> read(DbFileIterator it) throws Exception {
+        ArrayList<Tuple> out = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            out.add(it.next());
+        it.close();
+        return out;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        reopen();
+        List<Tuple> all = read(cf.iterator(tid));
+        assertEquals(N, all.size());
+        for (Tuple t : all) {
+            int i = ((IntField) t.getField(0)).getValue();
+            assertEquals("s" + i, ((StringField) t.getField(1)).getValue());
+            assertEquals(i % 7, ((IntField) t.getField(2)).getValue());
+        }
+        assertEquals(N - 1, TestUtil.ints(all, 0).get(N - 1).intValue());
+    }
+
+    @Test
+    public void projectionAndPredicates() throws Exception {
+        reopen();
+        List<Predicate> preds = Arrays.asList(new Predicate(2, Predicate.Op.EQUALS, new IntField(3)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)));
+        List<Tuple> out = read(cf.iterator(tid, new int[] { 1 }, preds));
+        assertEquals(14, out.size()); // 3, 10, ..., 94
+        for (Tuple t : out) {
+            assertEquals(1, t.getTupleDesc().numFields());
+            int i = Integer.parseInt(((StringField) t.getField(0)).getValue().substring(1));
+            assertEquals(3, i % 7);
+            assertTrue(i < 100);
+        }
+        Predicate onString = new Predicate(1, Predicate.Op.EQUALS, new StringField("s42", Type.STRING_LEN));
+        assertEquals(1, read(cf.iterator(tid, new int[] { 0 }, Arrays.asList(onString))).size());
+    }
+
+    @Test
+    public void deleteThroughSeqScan() throws Exception {
+        List<Predicate> preds = Arrays.asList(new Predicate(2, Predicate.Op.EQUALS, new IntField(3)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)));
+        SeqScan scan = new SeqScan(tid, cf.getId(), "p", preds);
+        scan.open();
+        Database.getBufferPool().deleteTuple(tid, scan.next());
+        scan.rewind();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        assertEquals(13, n);
+
+        Database.getBufferPool().flushAllPages();
+        reopen();
+        assertEquals(N - 1, read(cf.iterator(tid)).size());
+    }
+
+    @Test
+    public void pageSelectReadsOnlyUsedSlots() throws Exception {
+        PaxPage page = (PaxPage) Database.getBufferPool().getPage(tid, new HeapPageId(cf.getId(), 0),
+                Permissions.READ_ONLY);
+        int used = page.getNumSlots() - page.getNumEmptySlots();
+        assertEquals(used, page.select(null).cardinality());
+        BitSet sel = page.select(Arrays.asList(new Predicate(2, Predicate.Op.NOT_EQUALS, new IntField(0))));
+        for (int i = sel.nextSetBit(0); i >= 0; i = sel.nextSetBit(i + 1))
+            assertTrue(((IntField) page.getField(i, 2)).getValue() != 0);
+        assertTrue(sel.cardinality() > used * 5 / 7);
+    }
+}
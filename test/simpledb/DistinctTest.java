@@ -0,0 +1,105 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for Distinct, in memory and spilling to disk.
+ */
+public class DistinctTest {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "a", "s", "b" });
+
+    private List<Tuple> rows;
+    private Set<String> expected;
+
+    // rows {x, "s" + x % 7, i} for random x below 30000
+    private void makeRows(int n) {
+        Random r = new Random(9);
+        rows = new ArrayList<Tuple>();
+        expected = new HashSet<String>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(TD);
+            int x = r.nextInt(30000);
+            t.setField(0, new IntField(x));
+            t.setField(1, new StringField("s" + (x % 7), Type.STRING_LEN));
+            t.setField(2, new IntField(i));
+            rows.add(t);
+            expected.add(x + "|s" + (x % 7));
+        }
+    }
+
+    // each combination of fields a and s the iterator returns, failing on repeats
+    private static Set<String> keys(DbIterator it) throws Exception {
+        HashSet<String> out = new HashSet<String>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(2, t.getTupleDesc().numFields());
+            String key = ((IntField) t.getField(0)).getValue() + "|" + ((StringField) t.getField(1)).getValue();
+            assertTrue("repeated " + key, out.add(key));
+        }
+        return out;
+    }
+
+    private static int spillFiles() {
+        int n = 0;
+        for (String name : new File(System.getProperty("java.io.tmpdir")).list()) {
+            if (name.startsWith("distinct") && name.endsWith(".spill"))
+                n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void inMemory() throws Exception {
+        makeRows(50000);
+        Distinct d = new Distinct(new int[] { 0, 1 }, new TupleIterator(TD, rows));
+        d.open();
+        assertEquals(expected, keys(d));
+        assertEquals(0, d.spilledKeys());
+        d.close();
+        assertEquals("a", d.getTupleDesc().getFieldName(0));
+        assertEquals("s", d.getTupleDesc().getFieldName(1));
+    }
+
+    @Test
+    public void spillsPastTheBudget() throws Exception {
+        makeRows(100000);
+        int filesBefore = spillFiles();
+        // room for a few hundred keys, so partitions are split again
+        Distinct d = new Distinct(new int[] { 0, 1 }, 20000, new TupleIterator(TD, rows));
+        d.open();
+        assertEquals(expected, keys(d));
+        assertTrue(d.spilledKeys() > expected.size() / 2);
+        d.rewind();
+        assertEquals(expected, keys(d));
+        d.close();
+        assertEquals(filesBefore, spillFiles());
+    }
+
+    @Test
+    public void closingEarlyDeletesSpillFiles() throws Exception {
+        makeRows(100000);
+        int filesBefore = spillFiles();
+        Distinct d = new Distinct(new int[] { 0, 1 }, 20000, new TupleIterator(TD, rows));
+        d.open();
+        for (int i = 0; i < 2000 && d.hasNext(); i++)
+            d.next();
+        assertTrue(spillFiles() > filesBefore);
+        d.close();
+        assertEquals(filesBefore, spillFiles());
+    }
+
+    @Test
+    public void allFieldsByDefault() throws Exception {
+        makeRows(1000);
+        ArrayList<Tuple> twice = new ArrayList<Tuple>(rows);
+        twice.addAll(rows);
+        assertEquals(rows.size(), TestUtil.drain(new Distinct(new TupleIterator(TD, twice))).size());
+    }
+}
@@ -0,0 +1,103 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for Expression: compiled evaluators must agree with
+ * Field.compare and Predicate.filter.
+ */
+public class ExpressionTest {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE },
+            new String[] { "a", "b", "s" });
+
+    private static List<Tuple> rows() {
+        Random r = new Random(3);
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < 2000; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(r.nextInt(100)));
+            t.setField(1, new IntField(r.nextInt(100)));
+            t.setField(2, new StringField("x" + r.nextInt(20), Type.STRING_LEN));
+            rows.add(t);
+        }
+        return rows;
+    }
+
+    @Test
+    public void agreesWithFieldCompare() {
+        List<Tuple> rows = rows();
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate onInt = new Predicate(0, op, new IntField(50));
+            Predicate onString = new Predicate(2, op, new StringField("x1", Type.STRING_LEN));
+            Expression e = Expression.or(Expression.and(Expression.of(onInt), Expression.not(Expression.of(onString))),
+                    Expression.compare(0, op, 1));
+            Expression.Evaluator ev = e.compile(TD);
+            for (Tuple t : rows) {
+                boolean want = (onInt.filter(t) && !onString.filter(t)) || t.getField(0).compare(op, t.getField(1));
+                assertEquals(op + " on " + t, want, ev.eval(t));
+            }
+        }
+    }
+
+    @Test
+    public void junctionsFlatten() {
+        Expression e = Expression.and(Expression.compare(0, Predicate.Op.GREATER_THAN, new IntField(5)),
+                Expression.and(Expression.compare(1, Predicate.Op.EQUALS, 0),
+                        Expression.or(Expression.compare(0, Predicate.Op.EQUALS, 1))));
+        assertEquals("(#0 > 5 AND #1 = #0 AND (#0 = #1))", e.toString());
+    }
+
+    @Test
+    public void emptyJunctions() {
+        Tuple t = rows().get(0);
+        assertTrue(Expression.and().compile(TD).eval(t));
+        assertFalse(Expression.or().compile(TD).eval(t));
+        assertFalse(Expression.not(Expression.and()).compile(TD).eval(t));
+    }
+
+    @Test
+    public void eachExpressionHasAClassOfItsOwn() {
+        Expression e = Expression.compare(0, Predicate.Op.LESS_THAN, new IntField(50));
+        Expression.Evaluator a = e.compile(TD), b = e.compile(TD);
+        assertTrue(a.getClass().isHidden());
+        assertTrue(a.getClass() != b.getClass());
+        for (Tuple t : rows())
+            assertEquals(a.eval(t), b.eval(t));
+    }
+
+    @Test
+    public void filterEvaluatesAnExpression() throws Exception {
+        List<Tuple> rows = rows();
+        Expression e = Expression.and(Expression.compare(0, Predicate.Op.GREATER_THAN, new IntField(5)),
+                Expression.compare(1, Predicate.Op.LESS_THAN_OR_EQ, 0),
+                Expression.compare(2, Predicate.Op.EQUALS, new StringField("x3", Type.STRING_LEN)));
+        int want = 0;
+        for (Tuple t : rows) {
+            int a = ((IntField) t.getField(0)).getValue(), b = ((IntField) t.getField(1)).getValue();
+            if (a > 5 && b <= a && ((StringField) t.getField(2)).getValue().equals("x3"))
+                want++;
+        }
+        assertTrue(want > 0);
+        assertEquals(want, TestUtil.drain(new Filter(e, new TupleIterator(TD, rows))).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void comparingDifferentTypesIsRejected() {
+        Expression.compare(0, Predicate.Op.EQUALS, 2).compile(TD);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constantOfTheWrongTypeIsRejected() {
+        Expression.compare(2, Predicate.Op.EQUALS, new IntField(1)).compile(TD);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingFieldIsRejected() {
+        Expression.compare(3, Predicate.Op.EQUALS, new IntField(1)).compile(TD);
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for HashIndexFile: bucket splits, directory doubling, overflow
+ * chains, and lookups.
+ */
+public class HashIndexFileTest extends SimpleDbTestBase {
+
+    private File file;
+    private TupleDesc td;
+    private HashIndexFile index;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("hashindex", ".dat");
+        file.delete();
+        file.deleteOnExit();
+        td = Utility.getTupleDesc(2);
+        open();
+        tid = new TransactionId();
+    }
+
+    private void open() {
+        index = new HashIndexFile(file, 0, td);
+        Database.getCatalog().addTable(index, "h");
+    }
+
+    private void insert(int key, int value) throws Exception {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(key));
+        t.setField(1, new IntField(value));
+        Database.getBufferPool().insertTuple(tid, index.getId(), t);
+    }
+
+    private List<Tuple> lookup(int key) throws Exception {
+        DbFileIterator it = index.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        ArrayList<Tuple> out = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            out.add(it.next());
+        it.close();
+        return out;
+    }
+
+    private int scanCount() throws Exception {
+        DbFileIterator it = index.iterator(tid);
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private HashDirectoryPage directory() throws Exception {
+        return index.getDirectoryPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY);
+    }
+
+    private HashBucketPage bucket(int pageNo) throws Exception {
+        return (HashBucketPage) Database.getBufferPool().getPage(tid,
+                new HashPageId(index.getId(), pageNo, HashPageId.BUCKET), Permissions.READ_ONLY);
+    }
+
+    @Test
+    public void emptyIndex() throws Exception {
+        assertEquals(0, lookup(1).size());
+        assertEquals(0, scanCount());
+    }
+
+    @Test
+    public void splitsDoubleTheDirectory() throws Exception {
+        int n = 20 * HashBucketPage.getMaxTuples(td);
+        for (int i = 0; i < n; i++)
+            insert(i, -i);
+
+        HashDirectoryPage dir = directory();
+        assertTrue(dir.getGlobalDepth() >= 4);
+        // splits, not overflow chains, absorbed the distinct keys
+        for (int slot = 0; slot < (1 << dir.getGlobalDepth()); slot++) {
+            HashBucketPage b = bucket(dir.getBucket(slot));
+            assertTrue(b.getLocalDepth() <= dir.getGlobalDepth());
+            assertEquals(0, b.getOverflowPageNo());
+        }
+
+        assertEquals(n, scanCount());
+        for (int k : new int[] { 0, 1, n / 2, n - 1 }) {
+            List<Tuple> found = lookup(k);
+            assertEquals(1, found.size());
+            assertEquals(-k, ((IntField) found.get(0).getField(1)).getValue());
+        }
+        assertEquals(0, lookup(n).size());
+    }
+
+    @Test
+    public void duplicateKeysGrowAnOverflowChain() throws Exception {
+        int n = 3 * HashBucketPage.getMaxTuples(td) + 1;
+        for (int i = 0; i < n; i++)
+            insert(7, i);
+        insert(8, 0);
+
+        // every copy of key 7 hashes alike, so no split can separate them
+        HashDirectoryPage dir = directory();
+        HashBucketPage first = bucket(dir.getBucket(HashIndexFile.hash(new IntField(7))));
+        int chain = 1;
+        for (HashBucketPage b = first; b.getOverflowPageNo() != 0; b = bucket(b.getOverflowPageNo()))
+            chain++;
+        assertTrue(chain >= 4);
+
+        List<Tuple> found = lookup(7);
+        assertEquals(n, found.size());
+        assertEquals(n - 1, TestUtil.ints(found, 1).get(n - 1).intValue());
+        assertEquals(1, lookup(8).size());
+        assertEquals(n + 1, scanCount());
+    }
+
+    @Test
+    public void deleteAndReopen() throws Exception {
+        for (int i = 0; i < 3000; i++)
+            insert(i % 1000, i);
+        for (Tuple t : lookup(5))
+            Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(0, lookup(5).size());
+        assertEquals(3, lookup(6).size());
+
+        Database.getBufferPool().flushAllPages();
+        Database.reset();
+        open();
+        assertEquals(0, lookup(5).size());
+        assertEquals(3, lookup(999).size());
+        assertEquals(2997, scanCount());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void rangePredicateIsRejected() throws Exception {
+        index.indexIterator(tid, new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(5)));
+    }
+}
@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for JoinOptimizer: the plans it builds must return the query's
+ * tuples, whichever order and algorithms it picks.
+ */
+public class JoinOptimizerTest extends SimpleDbTestBase {
+
+    private HeapFile big, mid, small;
+    private TransactionId tid;
+
+    private static HeapFile table(String name, int[][] rows) throws IOException {
+        HeapFile hf = TestUtil.createHeapFile(2, rows);
+        Database.getCatalog().addTable(hf, name);
+        return hf;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        TableStats.setStatsMap(new HashMap<String, TableStats>());
+        big = table("big", TestUtil.keyMod(30000, 2000));
+        mid = table("mid", TestUtil.keyMod(2000, 50));
+        int[][] rows = new int[50][];
+        for (int i = 0; i < 50; i++)
+            rows[i] = new int[] { i, i };
+        small = table("small", rows);
+        tid = new TransactionId();
+    }
+
+    private static int field(List<Tuple> out, int row, String name) {
+        Tuple t = out.get(row);
+        return ((IntField) t.getField(t.getTupleDesc().fieldNameToIndex(name))).getValue();
+    }
+
+    @Test
+    public void chainOfJoins() throws Exception {
+        JoinOptimizer jo = new JoinOptimizer(tid);
+        jo.addTable("b", big.getId());
+        jo.addTable("m", mid.getId());
+        jo.addTable("s", small.getId());
+        jo.addJoin("b", 1, Predicate.Op.EQUALS, "m", 0);
+        jo.addJoin("m", 1, Predicate.Op.EQUALS, "s", 0);
+        jo.addFilter("s", new Predicate(1, Predicate.Op.LESS_THAN, new IntField(5)));
+        List<Tuple> out = TestUtil.drain(jo.optimize());
+
+        // s.f1 < 5 picks 200 rows of mid, each matching 15 rows of big
+        assertEquals(30000 * 5 / 50, out.size());
+        for (int i = 0; i < out.size(); i++) {
+            assertEquals(field(out, i, "b.f1"), field(out, i, "m.f0"));
+            assertEquals(field(out, i, "m.f1"), field(out, i, "s.f0"));
+            assertTrue(field(out, i, "s.f1") < 5);
+        }
+        // the filtered small table is joined to mid before the big table comes in
+        String plan = jo.explain();
+        assertTrue(plan, plan.split("\n")[0].contains("b.f1"));
+        assertTrue(jo.estimatedCost() > 0);
+    }
+
+    @Test
+    public void indexNestedLoopJoinForAnIndexedInner() throws Exception {
+        File f = File.createTempFile("hidx", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        HashIndexFile hx = new HashIndexFile(f, 0, Utility.getTupleDesc(2, "f"));
+        Database.getCatalog().addTable(hx, "hx");
+        for (int i = 0; i < 5000; i++) {
+            Tuple t = new Tuple(hx.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(i * 2));
+            Database.getBufferPool().insertTuple(tid, hx.getId(), t);
+        }
+        Database.getBufferPool().flushAllPages();
+
+        JoinOptimizer jo = new JoinOptimizer(tid);
+        jo.addTable("s", small.getId());
+        jo.addTable("h", hx.getId());
+        jo.addJoin("h", 0, Predicate.Op.EQUALS, "s", 0);
+        jo.addJoin("s", 1, Predicate.Op.LESS_THAN_OR_EQ, "h", 1);
+        jo.addFilter("s", new Predicate(1, Predicate.Op.LESS_THAN, new IntField(2)));
+        List<Tuple> out = TestUtil.drain(jo.optimize());
+        assertTrue(jo.explain(), jo.explain().startsWith("IndexNestedLoopJoin"));
+        assertEquals(2, out.size());
+        for (int i = 0; i < out.size(); i++) {
+            assertEquals(field(out, i, "s.f0"), field(out, i, "h.f0"));
+            assertEquals(2 * field(out, i, "s.f0"), field(out, i, "h.f1"));
+        }
+    }
+
+    @Test
+    public void longChainsArePlannedLeftDeepOrGreedily() throws Exception {
+        // past 32 tables, sets of tables no longer fit in an int
+        for (int n : new int[] { JoinOptimizer.BUSHY_LIMIT + 2, JoinOptimizer.DP_LIMIT + 2, 40,
+                JoinOptimizer.MAX_TABLES }) {
+            JoinOptimizer jo = new JoinOptimizer(tid);
+            for (int i = 0; i < n; i++)
+                jo.addTable("t" + i, i % 2 == 0 ? small.getId() : mid.getId());
+            for (int i = 0; i + 1 < n; i++)
+                jo.addJoin("t" + i, 0, Predicate.Op.EQUALS, "t" + (i + 1), 0);
+            DbIterator plan = jo.optimize();
+            assertEquals(2 * n, plan.getTupleDesc().numFields());
+            assertEquals(50, TestUtil.drain(plan).size());
+        }
+    }
+
+    @Test
+    public void nonEquiJoin() throws Exception {
+        JoinOptimizer jo = new JoinOptimizer(tid);
+        jo.addTable("s", small.getId());
+        jo.addTable("m", mid.getId());
+        jo.addJoin("s", 0, Predicate.Op.GREATER_THAN, "m", 0);
+        List<Tuple> out = TestUtil.drain(jo.optimize());
+        assertEquals(49 * 50 / 2, out.size());
+        for (int i = 0; i < out.size(); i++)
+            assertTrue(field(out, i, "s.f0") > field(out, i, "m.f0"));
+    }
+
+    @Test(expected = DbException.class)
+    public void crossProductsAreRejected() throws Exception {
+        JoinOptimizer jo = new JoinOptimizer(tid);
+        jo.addTable("s", small.getId());
+        jo.addTable("m", mid.getId());
+        jo.optimize();
+    }
+
+    @Test(expected = DbException.class)
+    public void tooManyTablesAreRejected() throws Exception {
+        JoinOptimizer jo = new JoinOptimizer(tid);
+        for (int i = 0; i <= JoinOptimizer.MAX_TABLES; i++)
+            jo.addTable("t" + i, small.getId());
+        for (int i = 0; i < JoinOptimizer.MAX_TABLES; i++)
+            jo.addJoin("t" + i, 0, Predicate.Op.EQUALS, "t" + (i + 1), 0);
+        jo.optimize();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aliasesMustDiffer() {
+        JoinOptimizer jo = new JoinOptimizer(tid);
+        jo.addTable("s", small.getId());
+        jo.addTable("s", mid.getId());
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for JoinSampler's cardinality estimates.
+ */
+public class JoinSamplerTest extends SimpleDbTestBase {
+
+    private final List<String> aliases = new ArrayList<String>();
+    private final Map<String, Integer> tableIds = new HashMap<String, Integer>();
+    private final Map<String, List<Predicate>> filters = new HashMap<String, List<Predicate>>();
+    private final List<JoinOptimizer.JoinEdge> joins = new ArrayList<JoinOptimizer.JoinEdge>();
+
+    private void addTable(String alias, HeapFile hf, Predicate... preds) {
+        aliases.add(alias);
+        tableIds.put(alias, hf.getId());
+        filters.put(alias, new ArrayList<Predicate>(Arrays.asList(preds)));
+    }
+
+    private JoinSampler sampler(long budgetMs) {
+        return new JoinSampler(new TransactionId(), aliases, tableIds, filters, joins, budgetMs);
+    }
+
+    @Test
+    public void completeSamplesGiveExactCounts() throws Exception {
+        HeapFile s = TestUtil.createHeapFile(2, TestUtil.keyMod(2000, 7));
+        assertTrue(s.numPages() <= JoinSampler.SAMPLE_PAGES);
+        addTable("x", s, new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)));
+        addTable("y", s);
+        joins.add(new JoinOptimizer.JoinEdge("x", 1, Predicate.Op.EQUALS, "y", 1));
+
+        int want = 0;
+        for (int x = 0; x < 100; x++) {
+            for (int y = 0; y < 2000; y++) {
+                if (x % 7 == y % 7)
+                    want++;
+            }
+        }
+        JoinSampler js = sampler(1000);
+        assertEquals(100, js.estimate(1), 0.0);
+        assertEquals(2000, js.estimate(2), 0.0);
+        assertEquals(want, js.estimate(3), 0.0);
+    }
+
+    // rows {k, k % 10} for k from 0 to n - 1, in random order, so that every
+    // page holds keys from all over the range
+    private static int[][] shuffled(int n, long seed) {
+        List<int[]> rows = Arrays.asList(TestUtil.keyMod(n, 10));
+        Collections.shuffle(rows, new Random(seed));
+        return rows.toArray(new int[n][]);
+    }
+
+    @Test
+    public void correlatedFiltersAreSeen() throws Exception {
+        // a.f1 = 1 and b.f1 = 1 pick the same keys, so the join keeps all
+        // 10000 rows where independence would predict 1000
+        HeapFile a = TestUtil.createHeapFile(2, shuffled(100000, 1));
+        HeapFile b = TestUtil.createHeapFile(2, shuffled(100000, 2));
+        assertTrue(a.numPages() > JoinSampler.SAMPLE_PAGES);
+        addTable("a", a, new Predicate(1, Predicate.Op.EQUALS, new IntField(1)));
+        addTable("b", b, new Predicate(1, Predicate.Op.EQUALS, new IntField(1)));
+        joins.add(new JoinOptimizer.JoinEdge("a", 0, Predicate.Op.EQUALS, "b", 0));
+
+        JoinSampler js = sampler(1000);
+        assertEquals(10000, js.estimate(1), 2000);
+        assertEquals(10000, js.estimate(3), 3000);
+    }
+
+    @Test
+    public void tooFewMatchesGiveNoEstimate() throws Exception {
+        HeapFile a = TestUtil.createHeapFile(2, TestUtil.keyMod(100000, 10));
+        assertTrue(a.numPages() > JoinSampler.SAMPLE_PAGES);
+        addTable("a", a, new Predicate(0, Predicate.Op.EQUALS, new IntField(12345)));
+        assertEquals(-1, sampler(1000).estimate(1), 0.0);
+    }
+
+    @Test
+    public void noBudgetGivesNoEstimate() throws Exception {
+        HeapFile a = TestUtil.createHeapFile(2, TestUtil.keyMod(100000, 10));
+        addTable("a", a);
+        JoinSampler js = sampler(0);
+        Thread.sleep(1);
+        assertEquals(-1, js.estimate(1), 0.0);
+    }
+}
@@ -0,0 +1,566 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for LogFile: reading records back, and recovering after a crash,
+ * which is simulated by resetting the Database without flushing anything.
+ */
+public class LogFileTest extends SimpleDbTestBase {
+
+    private File tableFile;
+    private HeapFile table;
+
+    @Before
+    public void setUp() throws Exception {
+        deleteLog();
+        super.setUp();
+        tableFile = File.createTempFile("logtest", ".dat");
+        tableFile.deleteOnExit();
+        openTable();
+    }
+
+    private static void deleteLog() {
+        File log = new File("log").getAbsoluteFile();
+        File[] files = log.getParentFile().listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].getName().equals("log") || files[i].getName().startsWith("log."))
+                files[i].delete();
+        }
+    }
+
+    private void openTable() {
+        table = new HeapFile(tableFile, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, "t");
+    }
+
+    // lose everything in memory, as a crash would, and recover
+    private void crashAndRecover() throws IOException {
+        Database.reset();
+        openTable();
+        Database.getLogFile().recover();
+    }
+
+    private void crashAndRecover(int redoThreads) throws IOException {
+        Database.reset();
+        openTable();
+        Database.getLogFile().setRedoThreads(redoThreads);
+        Database.getLogFile().recover();
+    }
+
+    private void insert(TransactionId tid, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(table.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField((int) tid.getId()));
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        }
+    }
+
+    private TransactionId begin() throws IOException {
+        TransactionId tid = new TransactionId();
+        Database.getLogFile().logXactionBegin(tid);
+        return tid;
+    }
+
+    private int count() throws Exception {
+        DbFileIterator it = table.iterator(new TransactionId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    // the LSNs of the records in the log, read by a fresh LogFile
+    private static List<LogFile.LogRecord> records() throws IOException {
+        RandomAccessFile header = new RandomAccessFile("log", "r");
+        header.seek(LogFile.LONG_SIZE);
+        long lsn = header.readLong();
+        header.close();
+        LogFile log = new LogFile(new File("log"));
+        ArrayList<LogFile.LogRecord> out = new ArrayList<LogFile.LogRecord>();
+        LogFile.LogRecord r;
+        for (; (r = log.readRecord(lsn)) != null; lsn = r.nextLSN)
+            out.add(r);
+        return out;
+    }
+
+    private static List<LogFile.LogRecord> updates() throws IOException {
+        ArrayList<LogFile.LogRecord> out = new ArrayList<LogFile.LogRecord>();
+        for (LogFile.LogRecord r : records()) {
+            if (r.type == LogFile.UPDATE_RECORD)
+                out.add(r);
+        }
+        return out;
+    }
+
+    // the segment file holding the specified LSN
+    private static File segmentOf(long lsn) {
+        File dir = new File("log").getAbsoluteFile().getParentFile();
+        File best = null;
+        long bestStart = -1;
+        for (String name : dir.list()) {
+            if (!name.startsWith("log."))
+                continue;
+            long start = Long.parseLong(name.substring(4));
+            if (start <= lsn && start > bestStart) {
+                best = new File(dir, name);
+                bestStart = start;
+            }
+        }
+        return best;
+    }
+
+    private static long segmentStart(File segment) {
+        return Long.parseLong(segment.getName().substring(4));
+    }
+
+    // overwrite the page class tag of an UPDATE record with an unknown one
+    private static void corruptPageClass(long lsn) throws IOException {
+        File seg = segmentOf(lsn);
+        RandomAccessFile out = new RandomAccessFile(seg, "rw");
+        out.seek(lsn - segmentStart(seg) + LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE);
+        out.writeByte(127);
+        out.close();
+    }
+
+    private static int countType(int type) throws IOException {
+        int n = 0;
+        for (LogFile.LogRecord r : records()) {
+            if (r.type == type)
+                n++;
+        }
+        return n;
+    }
+
+    private static int updatesBy(TransactionId tid) throws IOException {
+        int n = 0;
+        for (LogFile.LogRecord r : updates()) {
+            if (r.tid == tid.getId())
+                n++;
+        }
+        return n;
+    }
+
+    private Page cachedPage(TransactionId tid, int pgNo) throws Exception {
+        return Database.getBufferPool().getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    // log the changes a transaction made to a cached page, as a commit or
+    // page write does before anything is forced
+    private long logPage(TransactionId tid, Page page) throws IOException {
+        long lsn = Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+        page.setLSN(lsn);
+        page.setBeforeImage();
+        return lsn;
+    }
+
+    private void commitOneThousand() throws Exception {
+        TransactionId t1 = begin();
+        insert(t1, 1000);
+        Database.getBufferPool().transactionComplete(t1, true);
+    }
+
+    @Test
+    public void crashAfterCommitBeforePageWrite() throws Exception {
+        commitOneThousand(); // NO FORCE: only the log is on disk
+        crashAndRecover();
+        assertEquals(1000, count());
+        crashAndRecover(); // recovery is idempotent
+        assertEquals(1000, count());
+    }
+
+    @Test
+    public void crashAfterAppendBeforeForce() throws Exception {
+        commitOneThousand();
+        TransactionId t2 = begin();
+        insert(t2, 10);
+        logPage(t2, cachedPage(t2, 1));
+
+        crashAndRecover();
+        assertEquals(1000, count());
+    }
+
+    @Test
+    public void crashAfterForceBeforePageWrite() throws Exception {
+        commitOneThousand();
+        TransactionId t2 = begin();
+        insert(t2, 10);
+        Database.getLogFile().force(logPage(t2, cachedPage(t2, 1)));
+
+        crashAndRecover();
+        assertEquals(1000, count());
+        // one CLR per update, however many the background writer added
+        assertTrue(updatesBy(t2) > 0);
+        assertEquals(updatesBy(t2), countType(LogFile.CLR_RECORD));
+    }
+
+    @Test
+    public void crashAfterPageWrite() throws Exception {
+        commitOneThousand();
+        TransactionId t2 = begin();
+        insert(t2, 500);
+        Database.getBufferPool().flushAllPages(); // steal t2's pages
+
+        crashAndRecover();
+        assertEquals(1000, count());
+        int clrs = countType(LogFile.CLR_RECORD);
+        assertEquals(updatesBy(t2), clrs);
+        crashAndRecover();
+        assertEquals(1000, count());
+        assertEquals(clrs, countType(LogFile.CLR_RECORD));
+    }
+
+    @Test
+    public void crashDuringUndoDoesNotUndoTwice() throws Exception {
+        commitOneThousand();
+        TransactionId t2 = begin();
+        insert(t2, 1000);
+        Database.getBufferPool().flushAllPages();
+        byte[] stolen = readFile(tableFile);
+
+        crashAndRecover();
+        assertEquals(1000, count());
+        int clrs = countType(LogFile.CLR_RECORD);
+        assertTrue(clrs > 1);
+
+        // crash again as if the first recovery had only forced its first
+        // CLR: the log ends after it and no undone page was written
+        LogFile.LogRecord clr = null;
+        for (LogFile.LogRecord r : records()) {
+            if (r.type == LogFile.CLR_RECORD) {
+                clr = r;
+                break;
+            }
+        }
+        File seg = segmentOf(clr.lsn);
+        RandomAccessFile out = new RandomAccessFile(seg, "rw");
+        out.setLength(clr.nextLSN - segmentStart(seg));
+        out.close();
+        writeFile(tableFile, stolen);
+
+        crashAndRecover();
+        assertEquals(1000, count());
+        assertEquals(clrs, countType(LogFile.CLR_RECORD));
+    }
+
+    @Test
+    public void rollbackForcesTheLogBeforeWritingBeforeImages() throws Exception {
+        commitOneThousand();
+        TransactionId t2 = begin();
+        insert(t2, 10);
+        // the before image now holds t2's logged but unforced changes
+        logPage(t2, cachedPage(t2, 1));
+        insert(t2, 10);
+
+        Database.getBufferPool().discardUnloggedChanges(t2);
+        crashAndRecover(); // before rollback undoes anything
+        assertEquals(1000, count());
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        in.readFully(data);
+        in.close();
+        return data;
+    }
+
+    private static void writeFile(File f, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+    }
+
+    @Test
+    public void concurrentCommitsAreAllDurable() throws Exception {
+        final int threads = 16, perThread = 50;
+        final LogFile log = Database.getLogFile();
+        final IOException[] failure = new IOException[1];
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int k = 0; k < perThread; k++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            ts[i].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertNull(failure[0]);
+        // every logCommit returned, so every commit record is in the file
+        assertEquals(threads * perThread, countType(LogFile.COMMIT_RECORD));
+        assertEquals(threads * perThread, countType(LogFile.BEGIN_RECORD));
+    }
+
+    @Test
+    public void appendsStayBufferedUntilForced() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId first = begin();
+        for (int i = 0; i < 9; i++)
+            begin();
+        File seg = segmentOf(Long.MAX_VALUE);
+        assertTrue(seg == null || seg.length() == 0); // nothing written yet
+
+        log.force();
+        assertEquals(10, countType(LogFile.BEGIN_RECORD));
+        assertEquals(first.getId(), records().get(0).tid);
+    }
+
+    @Test
+    public void appendsSpanningSeveralBuffers() throws Exception {
+        // begin records take 28 bytes, so these fill the buffer twice over
+        int n = 2 * LogFile.LOG_BUFFER_SIZE / 28 + 100;
+        for (int i = 0; i < n; i++)
+            begin();
+        Database.getLogFile().force();
+        List<LogFile.LogRecord> records = records();
+        assertEquals(n, records.size());
+        for (int i = 1; i < n; i++)
+            assertEquals(records.get(i - 1).nextLSN, records.get(i).lsn);
+    }
+
+    // the log file and its segments, by name
+    private static Map<String, byte[]> saveLog() throws IOException {
+        HashMap<String, byte[]> files = new HashMap<String, byte[]>();
+        File dir = new File("log").getAbsoluteFile().getParentFile();
+        for (File f : dir.listFiles()) {
+            if (f.getName().equals("log") || f.getName().startsWith("log."))
+                files.put(f.getName(), readFile(f));
+        }
+        return files;
+    }
+
+    private static void restoreLog(Map<String, byte[]> files) throws IOException {
+        deleteLog();
+        File dir = new File("log").getAbsoluteFile().getParentFile();
+        for (Map.Entry<String, byte[]> e : files.entrySet())
+            writeFile(new File(dir, e.getKey()), e.getValue());
+    }
+
+    @Test
+    public void parallelRedoMatchesSerialRedo() throws Exception {
+        Database.getBufferPool().stopWriter(); // leave redo the committed pages
+        commitOneThousand();
+        Database.getBufferPool().flushAllPages();
+        for (int round = 0; round < 3; round++) {
+            TransactionId tid = begin();
+            insert(tid, 700);
+            DbFileIterator it = table.iterator(tid);
+            it.open();
+            for (int i = 0; i < 200 && it.hasNext(); i++)
+                Database.getBufferPool().deleteTuple(tid, it.next());
+            it.close();
+            Database.getBufferPool().transactionComplete(tid, true);
+        }
+
+        Map<String, byte[]> log = saveLog();
+        byte[] data = readFile(tableFile);
+        crashAndRecover(1);
+        byte[] serial = readFile(tableFile);
+        assertFalse(Arrays.equals(data, serial)); // redo had pages to write
+        assertEquals(1000 + 3 * 500, count());
+
+        restoreLog(log);
+        writeFile(tableFile, data);
+        crashAndRecover(4);
+        assertArrayEquals(serial, readFile(tableFile));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsARedoThread() {
+        Database.getLogFile().setRedoThreads(0);
+    }
+
+    private static LogFile.LogRecord lastOfType(int type) throws IOException {
+        LogFile.LogRecord last = null;
+        for (LogFile.LogRecord r : records()) {
+            if (r.type == type)
+                last = r;
+        }
+        return last;
+    }
+
+    @Test
+    public void checkpointSavesActiveAndDirtyTables() throws Exception {
+        Database.getBufferPool().stopWriter(); // so only checkpoints write pages
+        commitOneThousand(); // leaves its pages dirty
+        TransactionId t2 = begin();
+        insert(t2, 10);
+        Map<PageId, Long> dirty = Database.getBufferPool().dirtyPageTable();
+        assertFalse(dirty.isEmpty());
+
+        Database.getLogFile().logCheckpoint();
+        LogFile.LogRecord end = lastOfType(LogFile.END_CHECKPOINT_RECORD);
+        assertEquals(1, end.activeTids.length);
+        assertEquals(t2.getId(), end.activeTids[0]);
+        assertEquals(dirty.keySet(), new HashSet<PageId>(Arrays.asList(end.dirtyPids)));
+        for (int i = 0; i < end.dirtyPids.length; i++)
+            assertEquals(dirty.get(end.dirtyPids[i]).longValue(), end.dirtyRecLSNs[i]);
+
+        // t2 goes on after the checkpoint and never commits
+        insert(t2, 500);
+        Database.getBufferPool().flushAllPages();
+        crashAndRecover();
+        assertEquals(1000, count());
+    }
+
+    @Test
+    public void secondCheckpointWritesPagesDirtySinceTheFirst() throws Exception {
+        Database.getBufferPool().stopWriter(); // so only checkpoints write pages
+        commitOneThousand();
+        Database.getLogFile().logCheckpoint();
+        assertFalse(Database.getBufferPool().dirtyPageTable().isEmpty());
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getBufferPool().dirtyPageTable().isEmpty());
+
+        TransactionId t2 = begin();
+        insert(t2, 10);
+        Database.getBufferPool().transactionComplete(t2, true);
+        crashAndRecover();
+        assertEquals(1010, count());
+    }
+
+    private static boolean segmentExists(String name) {
+        return new File(new File("log").getAbsoluteFile().getParentFile(), name).exists();
+    }
+
+    private static List<File> segments() {
+        ArrayList<File> out = new ArrayList<File>();
+        File dir = new File("log").getAbsoluteFile().getParentFile();
+        for (File f : dir.listFiles()) {
+            if (f.getName().startsWith("log."))
+                out.add(f);
+        }
+        return out;
+    }
+
+    @Test
+    public void checkpointsArchiveSegmentsRecoveryNoLongerNeeds() throws Exception {
+        Database.getBufferPool().stopWriter(); // so only checkpoints write pages
+        File archive = File.createTempFile("archive", "");
+        archive.delete();
+        Database.getLogFile().setArchiveDirectory(archive);
+        Database.getLogFile().setSegmentSize(1); // one record per segment
+        commitOneThousand();
+        Database.getLogFile().force();
+        Map<String, byte[]> before = saveLog();
+        int segmentsBefore = segments().size();
+
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logCheckpoint(); // writes the pages
+        Database.getLogFile().logCheckpoint(); // no longer needs the transaction's records
+        int dropped = 0;
+        for (Map.Entry<String, byte[]> e : before.entrySet()) {
+            if (!e.getKey().startsWith("log.") || segmentExists(e.getKey()))
+                continue;
+            dropped++;
+            InputStream in = new GZIPInputStream(new FileInputStream(new File(archive, e.getKey() + ".gz")));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) > 0;)
+                out.write(buf, 0, n);
+            in.close();
+            assertArrayEquals(e.getValue(), out.toByteArray());
+        }
+        assertEquals(segmentsBefore, dropped);
+        // the first two checkpoints' segments went the same way
+        for (String name : archive.list())
+            assertFalse(segmentExists(name.substring(0, name.length() - ".gz".length())));
+        assertEquals(segmentsBefore + 4, archive.list().length);
+        assertEquals(2, segments().size()); // the last checkpoint's
+
+        TransactionId t2 = begin();
+        insert(t2, 10);
+        Database.getBufferPool().transactionComplete(t2, true);
+        crashAndRecover();
+        assertEquals(1010, count());
+        for (File f : archive.listFiles())
+            f.delete();
+        archive.delete();
+    }
+
+    @Test
+    public void undecodableRecordInsideTheLogFailsRecovery() throws Exception {
+        TransactionId t1 = begin();
+        insert(t1, 1000);
+        Database.getBufferPool().transactionComplete(t1, true);
+        TransactionId t2 = begin();
+        insert(t2, 1000);
+        Database.getBufferPool().transactionComplete(t2, true);
+
+        long bad = updates().get(0).lsn;
+        File seg = segmentOf(bad);
+        long length = seg.length();
+        corruptPageClass(bad);
+        try {
+            crashAndRecover();
+            fail("recovery read past a corrupt record");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("unknown page type tag 127"));
+        }
+        assertEquals(length, seg.length()); // the records after it are kept
+    }
+
+    @Test
+    public void undecodableLastRecordOfASegmentFailsRecovery() throws Exception {
+        Database.getLogFile().setSegmentSize(1); // one record per segment
+        TransactionId t1 = begin();
+        insert(t1, 1000);
+        Database.getBufferPool().transactionComplete(t1, true);
+
+        long bad = updates().get(0).lsn;
+        corruptPageClass(bad);
+        File last = segmentOf(Long.MAX_VALUE);
+        try {
+            crashAndRecover();
+            fail("recovery dropped the segments after a corrupt record");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("LSN " + bad));
+        }
+        assertTrue(last.exists());
+    }
+
+    @Test
+    public void tornTailIsDropped() throws Exception {
+        TransactionId t1 = begin();
+        insert(t1, 1000);
+        Database.getBufferPool().transactionComplete(t1, true);
+
+        // half of an UPDATE record naming a page type this build lacks
+        File seg = segmentOf(Long.MAX_VALUE);
+        long length = seg.length();
+        RandomAccessFile out = new RandomAccessFile(seg, "rw");
+        out.seek(length);
+        out.writeInt(LogFile.UPDATE_RECORD);
+        out.writeLong(t1.getId() + 1);
+        out.writeLong(LogFile.NO_LSN);
+        out.writeByte(127);
+        out.writeLong(0);
+        out.close();
+
+        crashAndRecover();
+        assertEquals(1000, count());
+        assertEquals(length, seg.length());
+    }
+}
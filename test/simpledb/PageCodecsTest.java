@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for PageCodecs.
+ */
+public class PageCodecsTest {
+
+    /** A page id type nothing registers, logged by class name. */
+    public static class UnregisteredPageId implements PageId {
+        private final int tableId, pgNo;
+
+        public UnregisteredPageId(Integer tableId, Integer pgNo) {
+            this.tableId = tableId;
+            this.pgNo = pgNo;
+        }
+
+        public int[] serialize() {
+            return new int[] { tableId, pgNo };
+        }
+
+        public int getTableId() {
+            return tableId;
+        }
+
+        public int pageNumber() {
+            return pgNo;
+        }
+
+        public int hashCode() {
+            return 31 * tableId + pgNo;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof UnregisteredPageId && ((UnregisteredPageId) o).tableId == tableId
+                    && ((UnregisteredPageId) o).pgNo == pgNo;
+        }
+    }
+
+    private static byte[] writeId(PageId pid) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        PageCodecs.writePageId(out, pid);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private static PageId readId(byte[] b) throws IOException {
+        return PageCodecs.readPageId(new DataInputStream(new ByteArrayInputStream(b)));
+    }
+
+    @Test
+    public void registeredIdsRoundTripCompactly() throws Exception {
+        HeapPageId heap = new HeapPageId(-17, 3);
+        byte[] b = writeId(heap);
+        assertEquals(1 + 2 * 4, b.length); // tag and two ints, no class name
+        assertEquals(heap, readId(b));
+
+        HashPageId hash = new HashPageId(42, 7, HashPageId.BUCKET);
+        PageId read = readId(writeId(hash));
+        assertEquals(hash, read);
+        assertEquals(HashPageId.BUCKET, ((HashPageId) read).pgcateg());
+    }
+
+    @Test
+    public void unregisteredIdsFallBackToTheirClassName() throws Exception {
+        UnregisteredPageId pid = new UnregisteredPageId(5, 9);
+        assertEquals(pid, readId(writeId(pid)));
+    }
+
+    @Test
+    public void pageClassesRoundTrip() throws Exception {
+        // String stands in for an unregistered page class, written by name
+        for (Class<?> c : new Class<?>[] { HeapPage.class, PaxPage.class, HashBucketPage.class, String.class }) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            PageCodecs.writePageClass(out, c);
+            out.flush();
+            assertEquals(c, PageCodecs.readPageClass(new DataInputStream(new ByteArrayInputStream(baos.toByteArray()))));
+        }
+    }
+
+    @Test
+    public void heapPagesAreBuiltThroughTheirCodec() throws Exception {
+        Database.reset();
+        HeapFile hf = TestUtil.createHeapFile(2, TestUtil.keyMod(10, 3));
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] data = hf.readPage(pid).getPageData();
+        Page page = PageCodecs.newPage(HeapPage.class, pid, data);
+        assertTrue(page instanceof HeapPage);
+        assertArrayEquals(data, page.getPageData());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void unknownTagIsCorrupt() throws Exception {
+        readId(new byte[] { 127, 0, 0, 0, 0, 0, 0, 0, 0 });
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void unknownClassIsCorrupt() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(0);
+        out.writeUTF("simpledb.NoSuchPage");
+        out.flush();
+        PageCodecs.readPageClass(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tagsCannotBeReused() {
+        PageCodecs.registerPageId(1, UnregisteredPageId.class, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tagsMustBeInRange() {
+        PageCodecs.registerPageId(128, UnregisteredPageId.class, null);
+    }
+}
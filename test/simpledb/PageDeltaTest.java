@@ -0,0 +1,98 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for PageDelta.
+ */
+public class PageDeltaTest {
+
+    private static final int SIZE = 4096;
+
+    private static byte[] serialize(PageDelta d) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        d.serialize(out);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private static PageDelta deserialize(byte[] b) throws IOException {
+        return PageDelta.deserialize(new DataInputStream(new ByteArrayInputStream(b)), SIZE);
+    }
+
+    @Test
+    public void redoAndUndoRandomChanges() throws Exception {
+        Random r = new Random(5);
+        for (int round = 0; round < 50; round++) {
+            byte[] before = new byte[SIZE];
+            r.nextBytes(before);
+            byte[] after = before.clone();
+            for (int k = r.nextInt(40); k >= 0; k--) {
+                int off = r.nextInt(SIZE - 64);
+                for (int i = 0; i < r.nextInt(64); i++)
+                    after[off + i] = (byte) r.nextInt();
+            }
+            for (int k = r.nextInt(3); k > 0; k--) { // a deleted slot
+                int off = r.nextInt(SIZE - 32);
+                Arrays.fill(after, off, off + 32, (byte) 0);
+            }
+
+            PageDelta d = deserialize(serialize(PageDelta.diff(before, after, 0)));
+            assertArrayEquals(after, d.redo(before.clone()));
+            assertArrayEquals(before, d.undo(after.clone()));
+            assertArrayEquals(before, d.inverse().redo(after.clone()));
+        }
+    }
+
+    @Test
+    public void identicalImagesGiveAnEmptyDelta() throws Exception {
+        byte[] page = new byte[SIZE];
+        page[7] = 1;
+        assertTrue(PageDelta.diff(page, page.clone(), 0).isEmpty());
+        // the skipped prefix (a page LSN) is not part of the delta
+        byte[] after = page.clone();
+        after[0] = 9;
+        assertTrue(PageDelta.diff(page, after, 8).isEmpty());
+    }
+
+    @Test
+    public void insertsAndDeletesStoreOneImage() throws Exception {
+        byte[] empty = new byte[SIZE];
+        byte[] full = empty.clone();
+        for (int i = 100; i < 200; i++)
+            full[i] = (byte) (i | 1);
+
+        PageDelta insert = PageDelta.diff(empty, full, 0);
+        PageDelta update = PageDelta.diff(full, reversed(full), 0);
+        int insertSize = serialize(insert).length;
+        assertTrue(insertSize < 100 + 20);
+        assertEquals(insertSize, serialize(insert.inverse()).length);
+        assertTrue(serialize(update).length > 2 * 100);
+        assertArrayEquals(empty, insert.inverse().redo(full.clone()));
+    }
+
+    private static byte[] reversed(byte[] b) {
+        byte[] out = b.clone();
+        for (int i = 100; i < 200; i++)
+            out[i] = b[299 - i];
+        return out;
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rangePastThePageIsRejected() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(1);
+        out.writeByte(PageDelta.INSERT_SLOT);
+        out.writeInt(SIZE - 4);
+        out.writeInt(8);
+        out.write(new byte[8]);
+        deserialize(baos.toByteArray());
+    }
+}
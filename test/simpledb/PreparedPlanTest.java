@@ -0,0 +1,119 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for PreparedPlan and Parameter.
+ */
+public class PreparedPlanTest extends SimpleDbTestBase {
+
+    private static final int N = 20000;
+
+    private HeapFile hf;
+    private Parameter pb, pc, pa;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        PreparedPlan.clearCache();
+        // rows {i, i % 100, i % 37}
+        int[][] rows = new int[N][];
+        for (int i = 0; i < N; i++)
+            rows[i] = new int[] { i, i % 100, i % 37 };
+        hf = TestUtil.createHeapFile(3, rows);
+        pb = new Parameter(0, Type.INT_TYPE);
+        pc = new Parameter(1, Type.INT_TYPE);
+        pa = new Parameter(2, Type.INT_TYPE);
+    }
+
+    // SELECT COUNT(f0) FROM t WHERE f1 = ? AND f2 = ? AND f0 < ?, with the
+    // first predicate pushed into the scan
+    private PreparedPlan countPlan(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "t", Arrays.asList(new Predicate(1, Predicate.Op.EQUALS, pb)),
+                new int[] { 0, 2 });
+        Filter filter = new Filter(Expression.and(Expression.of(new Predicate(1, Predicate.Op.EQUALS, pc)),
+                Expression.compare(0, Predicate.Op.LESS_THAN, pa)), scan);
+        return new PreparedPlan(new Aggregate(filter, 0, -1, Aggregator.Op.COUNT), pb, pc, pa);
+    }
+
+    private static int count(DbIterator it) throws Exception {
+        return it.hasNext() ? ((IntField) it.next().getField(0)).getValue() : 0;
+    }
+
+    @Test
+    public void rebindingChangesTheResults() throws Exception {
+        PreparedPlan plan = countPlan(new TransactionId());
+        assertEquals(3, plan.numParameters());
+        for (int rep = 0; rep < 10; rep++) {
+            int b = rep * 7 % 100, c = rep * 5 % 37, limit = 2000 * (rep + 1);
+            int want = 0;
+            for (int i = 0; i < N; i++) {
+                if (i % 100 == b && i % 37 == c && i < limit)
+                    want++;
+            }
+            plan.bind(new IntField(b), new IntField(c), new IntField(limit));
+            for (int twice = 0; twice < 2; twice++)
+                assertEquals(want, count(plan.execute(new TransactionId())));
+        }
+        plan.close();
+    }
+
+    @Test
+    public void cacheHandsOutEachPlanOnce() throws Exception {
+        String shape = "SELECT COUNT(f0) FROM t WHERE f1 = ? AND f2 = ? AND f0 < ?";
+        assertNull(PreparedPlan.checkOut(shape));
+        PreparedPlan plan = countPlan(new TransactionId());
+        plan.bind(new IntField(1), new IntField(1), new IntField(N));
+        plan.execute(new TransactionId());
+        PreparedPlan.checkIn(shape, plan);
+
+        PreparedPlan cached = PreparedPlan.checkOut(shape);
+        assertTrue(cached == plan);
+        assertNull(PreparedPlan.checkOut(shape)); // checked out
+        cached.bind(new IntField(2), new IntField(2), new IntField(N));
+        assertEquals(count(reference(2, 2)), count(cached.execute(new TransactionId())));
+        PreparedPlan.checkIn(shape, cached);
+    }
+
+    // the same count, from a plan with constants
+    private DbIterator reference(int b, int c) throws Exception {
+        SeqScan scan = new SeqScan(new TransactionId(), hf.getId(), "t");
+        Filter filter = new Filter(Expression.and(Expression.compare(1, Predicate.Op.EQUALS, new IntField(b)),
+                Expression.compare(2, Predicate.Op.EQUALS, new IntField(c))), scan);
+        Aggregate agg = new Aggregate(filter, 0, -1, Aggregator.Op.COUNT);
+        agg.open();
+        return agg;
+    }
+
+    @Test
+    public void leastRecentlyCheckedInIsDropped() throws Exception {
+        PreparedPlan[] plans = new PreparedPlan[PreparedPlan.CACHE_SIZE + 1];
+        for (int i = 0; i < plans.length; i++) {
+            plans[i] = new PreparedPlan(new SeqScan(new TransactionId(), hf.getId(), "t"));
+            PreparedPlan.checkIn("shape " + i, plans[i]);
+        }
+        assertNull(PreparedPlan.checkOut("shape 0"));
+        for (int i = 1; i < plans.length; i++)
+            assertTrue(PreparedPlan.checkOut("shape " + i) == plans[i]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unboundParameter() throws Exception {
+        countPlan(new TransactionId()).execute(new TransactionId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void valueOfTheWrongType() {
+        pb.bind(new StringField("x", Type.STRING_LEN));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongNumberOfValues() throws Exception {
+        countPlan(new TransactionId()).bind(new IntField(1));
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ResultCache.
+ */
+public class ResultCacheTest extends SimpleDbTestBase {
+
+    private static final String GROUPS = "SELECT f1, COUNT(f0) FROM t GROUP BY f1";
+
+    private HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = TestUtil.createHeapFile(2, TestUtil.keyMod(10000, 37));
+    }
+
+    private DbIterator groups(TransactionId tid) throws Exception {
+        return new Aggregate(new SeqScan(tid, hf.getId(), "t"), 0, 1, Aggregator.Op.COUNT);
+    }
+
+    private void insert(TransactionId tid, int key) throws Exception {
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(-1));
+        t.setField(1, new IntField(key));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+    }
+
+    @Test
+    public void repeatedQueriesHit() throws Exception {
+        ResultCache rc = new ResultCache();
+        List<Tuple> first = TestUtil.drain(rc.execute(GROUPS, groups(new TransactionId())));
+        assertEquals(37, first.size());
+        assertEquals(0, rc.hits());
+        assertEquals(1, rc.misses());
+
+        List<Tuple> second = TestUtil.drain(rc.execute(GROUPS, groups(new TransactionId())));
+        assertEquals(1, rc.hits());
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++)
+            assertEquals(first.get(i).toString(), second.get(i).toString());
+        assertTrue(rc.bytesUsed() > 0);
+
+        rc.clear();
+        assertEquals(0, rc.bytesUsed());
+        TestUtil.drain(rc.execute(GROUPS, groups(new TransactionId())));
+        assertEquals(2, rc.misses());
+    }
+
+    @Test
+    public void uncommittedWritesAreNotCached() throws Exception {
+        ResultCache rc = new ResultCache();
+        TestUtil.drain(rc.execute(GROUPS, groups(new TransactionId())));
+
+        TransactionId tid = new TransactionId();
+        insert(tid, 100);
+        // the writer sees its own insert, and its result is not kept
+        assertEquals(38, TestUtil.drain(rc.execute(GROUPS, groups(tid))).size());
+        assertEquals(38, TestUtil.drain(rc.execute(GROUPS, groups(tid))).size());
+        assertEquals(0, rc.hits());
+
+        Database.getBufferPool().transactionComplete(tid, true);
+        assertEquals(38, TestUtil.drain(rc.execute(GROUPS, groups(new TransactionId()))).size());
+        assertEquals(0, rc.hits());
+        assertEquals(38, TestUtil.drain(rc.execute(GROUPS, groups(new TransactionId()))).size());
+        assertEquals(1, rc.hits());
+    }
+
+    @Test
+    public void abortedWritesInvalidate() throws Exception {
+        ResultCache rc = new ResultCache();
+        TestUtil.drain(rc.execute(GROUPS, groups(new TransactionId())));
+        TransactionId tid = new TransactionId();
+        Database.getLogFile().logXactionBegin(tid);
+        insert(tid, 100);
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(37, TestUtil.drain(rc.execute(GROUPS, groups(new TransactionId()))).size());
+        assertEquals(0, rc.hits());
+    }
+
+    @Test
+    public void onlyCompleteReadsAreCached() throws Exception {
+        ResultCache rc = new ResultCache();
+        DbIterator it = rc.execute(GROUPS, groups(new TransactionId()));
+        it.open();
+        for (int i = 0; i < 10; i++)
+            it.next();
+        it.close();
+        assertEquals(0, rc.bytesUsed());
+
+        assertEquals(37, TestUtil.drain(rc.execute(GROUPS, groups(new TransactionId()))).size());
+        assertEquals(0, rc.hits());
+        assertEquals(37, TestUtil.drain(rc.execute(GROUPS, groups(new TransactionId()))).size());
+        assertEquals(1, rc.hits());
+    }
+
+    @Test
+    public void plansOverUnknownInputsAreReturnedAsTheyAre() throws Exception {
+        ResultCache rc = new ResultCache();
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        rows.add(new Tuple(hf.getTupleDesc()));
+        DbIterator plan = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(0)),
+                new TupleIterator(hf.getTupleDesc(), rows));
+        assertTrue(rc.execute("q", plan) == plan);
+        assertEquals(0, rc.misses());
+    }
+
+    @Test
+    public void staysWithinItsBudget() throws Exception {
+        ResultCache tiny = new ResultCache(2000);
+        // too large to keep at all
+        for (int i = 0; i < 2; i++)
+            assertEquals(10000, TestUtil.drain(tiny.execute("SELECT * FROM t",
+                    new SeqScan(new TransactionId(), hf.getId(), "t"))).size());
+        assertEquals(0, tiny.hits());
+
+        for (int i = 0; i < 50; i++) {
+            DbIterator plan = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(i)),
+                    new SeqScan(new TransactionId(), hf.getId(), "t"));
+            assertEquals(1, TestUtil.drain(tiny.execute("q" + i, plan)).size());
+            assertTrue(tiny.bytesUsed() <= 2000);
+        }
+        // the most recent query is still cached, the first was evicted
+        long hits = tiny.hits();
+        // (on a hit the plan is not run, so its difference goes unnoticed)
+        assertEquals(1, TestUtil.drain(tiny.execute("q49", new SeqScan(new TransactionId(), hf.getId(), "t"))).size());
+        assertEquals(hits + 1, tiny.hits());
+        assertEquals(1, TestUtil.drain(tiny.execute("q0", new Filter(new Predicate(0, Predicate.Op.EQUALS,
+                new IntField(0)), new SeqScan(new TransactionId(), hf.getId(), "t")))).size());
+        assertEquals(hits + 1, tiny.hits());
+    }
+}
@@ -0,0 +1,105 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class SeqScanTest extends SimpleDbTestBase {
+
+    private static final int N = 5000;
+
+    // rows {i, i % 10, N - i}
+    private static HeapFile table() throws Exception {
+        int[][] rows = new int[N][];
+        for (int i = 0; i < N; i++)
+            rows[i] = new int[] { i, i % 10, N - i };
+        return TestUtil.createHeapFile(3, rows);
+    }
+
+    @Test public void pushedPredicatesAndColumnMask() throws Exception {
+        HeapFile hf = table();
+        TransactionId tid = new TransactionId();
+        List<Predicate> preds = Arrays.asList(new Predicate(1, Predicate.Op.EQUALS, new IntField(3)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)));
+        SeqScan scan = new SeqScan(tid, hf.getId(), "t", preds, new int[] { 2, 0 });
+
+        TupleDesc td = scan.getTupleDesc();
+        assertEquals(2, td.numFields());
+        assertEquals("t.f2", td.getFieldName(0));
+        assertEquals("t.f0", td.getFieldName(1));
+
+        List<Tuple> out = TestUtil.drain(scan);
+        assertEquals(10, out.size());
+        for (Tuple t : out) {
+            int a = ((IntField) t.getField(1)).getValue();
+            assertEquals(3, a % 10);
+            assertEquals(new IntField(N - a), t.getField(0));
+        }
+    }
+
+    @Test public void probeKeysUseTheProjectedField() throws Exception {
+        HeapFile hf = table();
+        hf.addBloomFilter(0, 0.01);
+        hf.addBloomFilter(2, 0.01);
+        TransactionId tid = new TransactionId();
+        TestUtil.drain(new SeqScan(tid, hf.getId(), "t")); // builds the filters
+
+        // f2 values of rows on other pages than the rows with those f0 values
+        Set<Field> keys = new HashSet<Field>();
+        for (int v : new int[] { 1000, 1200, 4900 })
+            keys.add(new IntField(v));
+        SeqScan scan = new SeqScan(tid, hf.getId(), "t", null, new int[] { 2 });
+        scan.setProbeKeys(0, keys);
+        int found = 0;
+        for (Tuple t : TestUtil.drain(scan)) {
+            if (keys.contains(t.getField(0)))
+                found++;
+        }
+        assertEquals(3, found);
+    }
+
+    @Test public void hashJoinOverProjectedScan() throws Exception {
+        HeapFile hf = table();
+        hf.addBloomFilter(0, 0.01);
+        hf.addBloomFilter(2, 0.01);
+        TransactionId tid = new TransactionId();
+        TestUtil.drain(new SeqScan(tid, hf.getId(), "t"));
+
+        int[][] build = { { 1000 }, { 1200 }, { 4900 } };
+        SeqScan probe = new SeqScan(tid, hf.getId(), "t", null, new int[] { 2 });
+        HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                TestUtil.tuples(1, build), probe);
+        assertEquals(Arrays.asList(1000, 1200, 4900), TestUtil.ints(TestUtil.drain(j), 0));
+    }
+
+    @Test public void reopenAfterClose() throws Exception {
+        HeapFile hf = table();
+        SeqScan scan = new SeqScan(new TransactionId(), hf.getId(), "t");
+        TupleDesc td = scan.getTupleDesc();
+        assertEquals(N, TestUtil.drain(scan).size());
+        assertEquals(N, TestUtil.drain(scan).size());
+        assertSame(td, scan.getTupleDesc());
+    }
+
+    @Test public void rewindKeepsTheTupleDesc() throws Exception {
+        HeapFile hf = table();
+        SeqScan scan = new SeqScan(new TransactionId(), hf.getId(), "t");
+        TupleDesc td = scan.getTupleDesc();
+        scan.open();
+        scan.next();
+        scan.rewind();
+        assertSame(td, scan.getTupleDesc());
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        assertEquals(N, n);
+
+        scan.reset(hf.getId(), "u");
+        assertEquals("u.f0", scan.getTupleDesc().getFieldName(0));
+        scan.close();
+    }
+}
@@ -0,0 +1,16 @@
+package simpledb;
+
+import org.junit.Before;
+
+/**
+ * Base class for all SimpleDb test classes.
+ */
+public class SimpleDbTestBase {
+    /**
+     * Reset the database before each test is run.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+    }
+}
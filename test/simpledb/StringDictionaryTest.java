@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for StringDictionary and the dictionary-encoded columns of
+ * ColumnarHeapFile.
+ */
+public class StringDictionaryTest extends SimpleDbTestBase {
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("dict", suffix);
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void codesAreDenseAndStable() throws Exception {
+        StringDictionary d = new StringDictionary(tempFile(".dict"));
+        assertEquals(0, d.encode("US"));
+        assertEquals(1, d.encode("FR"));
+        assertEquals(0, d.encode("US"));
+        assertEquals(-1, d.lookup("DE"));
+        assertEquals("FR", d.decode(1));
+        assertEquals("FR".hashCode(), d.hashOf(1));
+        assertEquals(2, d.size());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void decodeUnknownCode() throws Exception {
+        new StringDictionary(tempFile(".dict")).decode(0);
+    }
+
+    @Test
+    public void reopenKeepsCodes() throws Exception {
+        File f = tempFile(".dict");
+        StringDictionary d = new StringDictionary(f);
+        d.encode("alpha");
+        d.encode("");
+        d.encode("gamma");
+
+        d = new StringDictionary(f);
+        assertEquals(3, d.size());
+        assertEquals(1, d.lookup(""));
+        assertEquals("gamma", d.decode(2));
+        assertEquals(3, d.encode("delta"));
+    }
+
+    @Test
+    public void tornAppendIsIgnored() throws Exception {
+        File f = tempFile(".dict");
+        new StringDictionary(f).encode("alpha");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(f, true));
+        out.writeInt(10);
+        out.write("bet".getBytes("ISO-8859-1"));
+        out.close();
+
+        StringDictionary d = new StringDictionary(f);
+        assertEquals(1, d.size());
+        assertEquals(0, d.lookup("alpha"));
+    }
+
+    @Test
+    public void encodedColumnRoundTrip() throws Exception {
+        File f = tempFile(".dat");
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new String[] { "a", "country" });
+        ColumnarHeapFile cf = new ColumnarHeapFile(f, td, new int[] { 1 });
+        Database.getCatalog().addTable(cf, "dict");
+        TransactionId tid = new TransactionId();
+        String[] countries = { "US", "FR", "DE", "JP" };
+        for (int i = 0; i < 2000; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(countries[i % 4], Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, cf.getId(), t);
+        }
+        Database.getBufferPool().flushAllPages();
+
+        // reopened from disk, with the dictionary read back from its file
+        Database.reset();
+        cf = new ColumnarHeapFile(f, td, new int[] { 1 });
+        Database.getCatalog().addTable(cf, "dict");
+        List<Tuple> fr = TestUtil.drain(new SeqScan(tid, cf.getId(), "d",
+                Arrays.asList(new Predicate(1, Predicate.Op.EQUALS, new StringField("FR", Type.STRING_LEN)))));
+        assertEquals(500, fr.size());
+        for (Tuple t : fr) {
+            assertEquals("FR", ((StringField) t.getField(1)).getValue());
+            assertEquals(1, ((IntField) t.getField(0)).getValue() % 4);
+        }
+        List<Tuple> none = TestUtil.drain(new SeqScan(tid, cf.getId(), "d",
+                Arrays.asList(new Predicate(1, Predicate.Op.EQUALS, new StringField("XX", Type.STRING_LEN)))));
+        assertEquals(0, none.size());
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for TableStats and the histograms and sketches behind it.
+ */
+public class TableStatsTest extends SimpleDbTestBase {
+
+    // rows {i, 7 for half of them and random below 1000 for the rest}
+    private static int[][] skewed(int n) {
+        Random r = new Random(1);
+        int[][] rows = new int[n][];
+        for (int i = 0; i < n; i++)
+            rows[i] = new int[] { i, r.nextBoolean() ? 7 : r.nextInt(1000) };
+        return rows;
+    }
+
+    @Test
+    public void uniformHistogram() {
+        int[] values = new int[10000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = values.length - 1 - i;
+        IntHistogram h = new IntHistogram(values, values.length, 100, 10000);
+        assertEquals(100, h.numBuckets());
+        assertEquals(0.25, h.estimateSelectivity(Predicate.Op.LESS_THAN, 2500), 0.01);
+        assertEquals(0.75, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 2500), 0.01);
+        assertEquals(0.0001, h.estimateSelectivity(Predicate.Op.EQUALS, 1234), 0.0001);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.EQUALS, -5), 0.0);
+        assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 20000), 0.0);
+        assertEquals(1.0, h.estimateSelectivity(Predicate.Op.NOT_EQUALS, 20000), 0.0);
+    }
+
+    @Test
+    public void heavyHittersGetABucketOfTheirOwn() {
+        int[][] rows = skewed(10000);
+        int[] values = new int[rows.length];
+        int sevens = 0;
+        for (int i = 0; i < rows.length; i++) {
+            values[i] = rows[i][1];
+            if (values[i] == 7)
+                sevens++;
+        }
+        IntHistogram h = new IntHistogram(values, values.length, 100, 1000);
+        assertTrue(h.numBuckets() < 100);
+        assertEquals(sevens / 10000.0, h.estimateSelectivity(Predicate.Op.EQUALS, 7), 0.001);
+        assertEquals(0.5 / 1000, h.estimateSelectivity(Predicate.Op.EQUALS, 8), 0.001);
+        // about half the rows are 7, so two random rows match a quarter of the time
+        assertEquals(0.25, h.avgSelectivity(), 0.02);
+    }
+
+    @Test
+    public void stringHistogram() {
+        String[] values = new String[5000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = "name" + (i % 500);
+        StringHistogram h = new StringHistogram(values, values.length, 100, 500);
+        assertEquals(0.002, h.estimateSelectivity(Predicate.Op.EQUALS, "name42"), 0.001);
+        // name4, name40..49 and name400..499
+        assertEquals(111 / 500.0, h.estimateSelectivity(Predicate.Op.LIKE, "name4"), 0.05);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.LIKE, "other"), 0.01);
+    }
+
+    @Test
+    public void distinctSketch() {
+        for (int n : new int[] { 10, 1000, 100000 }) {
+            DistinctSketch s = new DistinctSketch();
+            for (int i = 0; i < n; i++) {
+                s.add(new IntField(i));
+                s.add(new IntField(i));
+            }
+            assertEquals(n, s.estimate(), n * 0.05);
+        }
+        DistinctSketch a = new DistinctSketch(), b = new DistinctSketch();
+        for (int i = 0; i < 20000; i++) {
+            a.add(new IntField(i));
+            b.add(new IntField(i + 10000));
+        }
+        a.merge(b);
+        assertEquals(30000, a.estimate(), 30000 * 0.05);
+    }
+
+    @Test
+    public void smallTablesAreReadInFull() throws Exception {
+        HeapFile hf = TestUtil.createHeapFile(2, TestUtil.keyMod(2000, 10));
+        TableStats ts = new TableStats(hf.getId(), 1000);
+        assertEquals(2000, ts.totalTuples());
+        assertEquals(hf.numPages(), ts.numPages());
+        assertEquals(1000.0 * hf.numPages(), ts.estimateScanCost(), 0.0);
+        assertEquals(2000, ts.numDistinct(0), 2000 * 0.05);
+        assertEquals(10, ts.numDistinct(1), 0.5);
+        assertEquals(0.1, ts.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(3)), 0.01);
+        assertEquals(200, ts.estimateTableCardinality(0.1));
+    }
+
+    @Test
+    public void largeTablesAreSampled() throws Exception {
+        HeapFile hf = TestUtil.createHeapFile(2, skewed(60000));
+        assertTrue(hf.numPages() > TableStats.SAMPLE_PAGES);
+        TableStats ts = new TableStats(hf.getId(), 1000);
+        assertEquals(60000, ts.totalTuples(), 60000 * 0.05);
+        assertEquals(60000, ts.numDistinct(0), 60000 * 0.2);
+        assertEquals(1000, ts.numDistinct(1), 1000 * 0.3);
+        assertEquals(0.5, ts.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(7)), 0.05);
+        assertEquals(0.25, ts.estimateSelectivity(1, Predicate.Op.GREATER_THAN, new IntField(500)), 0.05);
+        assertEquals(0.25, ts.avgSelectivity(1, Predicate.Op.EQUALS), 0.05);
+
+        List<Predicate> both = Arrays.asList(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(30000)),
+                new Predicate(1, Predicate.Op.EQUALS, new IntField(7)));
+        assertEquals(0.25, ts.estimateSelectivity(both), 0.1);
+    }
+
+    @Test
+    public void computeStatisticsCoversTheCatalog() throws Exception {
+        HeapFile hf = TestUtil.createHeapFile(2, TestUtil.keyMod(100, 10));
+        Database.getCatalog().addTable(hf, "stats");
+        TableStats.computeStatistics();
+        assertEquals(100, TableStats.getTableStats("stats").totalTuples());
+        assertEquals(hf.getId(), TableStats.getTableStats("stats").getTableId());
+    }
+}
@@ -0,0 +1,66 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/** Helpers shared by the tests. */
+public class TestUtil {
+
+    /**
+     * Create a HeapFile of INT_TYPE columns named f0, f1, ... holding the
+     * specified rows, and add it to the catalog.
+     */
+    public static HeapFile createHeapFile(int cols, int[][] rows) throws IOException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int[] row : rows) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            for (int v : row)
+                t.add(v);
+            tuples.add(t);
+        }
+        File f = File.createTempFile("table", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), cols);
+        return Utility.openHeapFile(cols, "f", f);
+    }
+
+    /** @return rows[i] = {i, i % mod} for i below n */
+    public static int[][] keyMod(int n, int mod) {
+        int[][] rows = new int[n][];
+        for (int i = 0; i < n; i++)
+            rows[i] = new int[] { i, i % mod };
+        return rows;
+    }
+
+    /** @return an iterator over INT_TYPE tuples holding the specified rows */
+    public static TupleIterator tuples(int cols, int[][] rows) {
+        TupleDesc td = Utility.getTupleDesc(cols, "f");
+        ArrayList<Tuple> list = new ArrayList<Tuple>();
+        for (int[] row : rows) {
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < cols; i++)
+                t.setField(i, new IntField(row[i]));
+            list.add(t);
+        }
+        return new TupleIterator(td, list);
+    }
+
+    /** Open the iterator, read all of its tuples, and close it. */
+    public static List<Tuple> drain(DbIterator it) throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> out = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            out.add(it.next());
+        it.close();
+        return out;
+    }
+
+    /** @return the int values of a field of the tuples, sorted */
+    public static List<Integer> ints(List<Tuple> tuples, int field) {
+        ArrayList<Integer> out = new ArrayList<Integer>();
+        for (Tuple t : tuples)
+            out.add(((IntField) t.getField(field)).getValue());
+        Collections.sort(out);
+        return out;
+    }
+}
@@ -0,0 +1,98 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for TopN: its output must be the first n tuples of a stable sort of
+ * its input, so tuples with equal keys keep the order the child gave them.
+ */
+public class TopNTest {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+            new String[] { "k", "s" });
+
+    // few distinct keys, so most tuples tie with others
+    private static List<Tuple> rows() {
+        Random r = new Random(5);
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < 20000; i++) {
+            Tuple t = new Tuple(TD);
+            int k = r.nextInt(100);
+            t.setField(0, new IntField(k));
+            t.setField(1, new StringField("v" + (k * 7919 % 100), Type.STRING_LEN));
+            rows.add(t);
+        }
+        return rows;
+    }
+
+    private static List<Tuple> expected(List<Tuple> rows, final int field, final boolean asc, int n) {
+        ArrayList<Tuple> sorted = new ArrayList<Tuple>(rows);
+        Collections.sort(sorted, new Comparator<Tuple>() { // stable
+                public int compare(Tuple x, Tuple y) {
+                    Field p = x.getField(field), q = y.getField(field);
+                    int c = p.compare(Predicate.Op.LESS_THAN, q) ? -1 : p.compare(Predicate.Op.GREATER_THAN, q) ? 1 : 0;
+                    return asc ? c : -c;
+                }
+            });
+        return sorted.subList(0, Math.min(n, sorted.size()));
+    }
+
+    private static void assertSameTuples(List<Tuple> want, List<Tuple> got) {
+        assertEquals(want.size(), got.size());
+        for (int i = 0; i < want.size(); i++)
+            assertTrue("tuple " + i + " differs", want.get(i) == got.get(i));
+    }
+
+    @Test
+    public void firstNOfAStableSort() throws Exception {
+        List<Tuple> rows = rows();
+        for (int field : new int[] { 0, 1 }) {
+            for (boolean asc : new boolean[] { true, false }) {
+                for (int n : new int[] { 0, 1, 100, 5000, rows.size() + 1 }) {
+                    List<Tuple> got = TestUtil.drain(new TopN(field, asc, n, new TupleIterator(TD, rows)));
+                    assertSameTuples(expected(rows, field, asc, n), got);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tiesKeepTheChildsOrder() throws Exception {
+        List<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < 10; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(i % 2));
+            t.setField(1, new StringField("" + i, Type.STRING_LEN));
+            rows.add(t);
+        }
+        List<Tuple> got = TestUtil.drain(new TopN(0, true, 4, new TupleIterator(TD, rows)));
+        assertSameTuples(Arrays.asList(rows.get(0), rows.get(2), rows.get(4), rows.get(6)), got);
+        got = TestUtil.drain(new TopN(0, false, 3, new TupleIterator(TD, rows)));
+        assertSameTuples(Arrays.asList(rows.get(1), rows.get(3), rows.get(5)), got);
+    }
+
+    @Test
+    public void rewindReturnsTheSameTuples() throws Exception {
+        List<Tuple> rows = rows();
+        TopN top = new TopN(0, false, 100, new TupleIterator(TD, rows));
+        List<Tuple> first = TestUtil.drain(top);
+        top.open();
+        while (top.hasNext())
+            top.next();
+        top.rewind();
+        ArrayList<Tuple> again = new ArrayList<Tuple>();
+        while (top.hasNext())
+            again.add(top.next());
+        top.close();
+        assertSameTuples(first, again);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLimitIsRejected() {
+        new TopN(0, true, -1, new TupleIterator(TD, new ArrayList<Tuple>()));
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for ZoneMap and the page skipping it gives HeapFile scans.
+ */
+public class ZoneMapTest extends SimpleDbTestBase {
+
+    private static final int N = 10000;
+
+    private static List<Predicate> range(int lo, int hi) {
+        return Arrays.asList(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(lo)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(hi)));
+    }
+
+    private static int skippable(HeapFile hf, List<Predicate> preds) {
+        int n = 0;
+        for (int p = 0; p < hf.numPages(); p++) {
+            if (!hf.getZoneMap().mayMatch(p, preds))
+                n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void excludes() {
+        assertTrue(ZoneMap.excludes(10, 20, Predicate.Op.EQUALS, 9));
+        assertFalse(ZoneMap.excludes(10, 20, Predicate.Op.EQUALS, 20));
+        assertTrue(ZoneMap.excludes(10, 20, Predicate.Op.GREATER_THAN, 20));
+        assertFalse(ZoneMap.excludes(10, 20, Predicate.Op.GREATER_THAN_OR_EQ, 20));
+        assertTrue(ZoneMap.excludes(10, 20, Predicate.Op.LESS_THAN, 10));
+        assertFalse(ZoneMap.excludes(10, 20, Predicate.Op.LESS_THAN_OR_EQ, 10));
+        assertTrue(ZoneMap.excludes(5, 5, Predicate.Op.NOT_EQUALS, 5));
+        assertFalse(ZoneMap.excludes(5, 6, Predicate.Op.NOT_EQUALS, 5));
+        // an empty page (min > max) matches nothing
+        assertTrue(ZoneMap.excludes(Integer.MAX_VALUE, Integer.MIN_VALUE, Predicate.Op.NOT_EQUALS, 0));
+    }
+
+    @Test
+    public void unknownPagesAreLearnedByScans() throws Exception {
+        HeapFile hf = TestUtil.createHeapFile(2, TestUtil.keyMod(N, 7));
+        List<Predicate> preds = range(5000, 5100);
+        assertEquals(0, skippable(hf, preds)); // written by HeapFileEncoder
+
+        TransactionId tid = new TransactionId();
+        assertEquals(N, TestUtil.drain(new SeqScan(tid, hf.getId(), "t")).size());
+        assertTrue(skippable(hf, preds) >= hf.numPages() - 2);
+
+        List<Tuple> out = TestUtil.drain(new SeqScan(tid, hf.getId(), "t", preds));
+        assertEquals(100, out.size());
+        assertEquals(5000, TestUtil.ints(out, 0).get(0).intValue());
+    }
+
+    @Test
+    public void writtenPagesPersistTheirSummaries() throws Exception {
+        File f = File.createTempFile("zonemap", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".zmap").deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getPath(), 2);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < N; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(i % 7));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+        Database.getBufferPool().flushAllPages();
+
+        // a fresh HeapFile reads the summaries back from the sidecar
+        Database.reset();
+        hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "t");
+        List<Predicate> preds = range(5000, 5100);
+        assertTrue(skippable(hf, preds) >= hf.numPages() - 2);
+        assertEquals(0, skippable(hf, range(0, N)));
+        assertEquals(100, TestUtil.drain(new SeqScan(tid, hf.getId(), "t", preds)).size());
+    }
+
+    @Test
+    public void insertsWidenKnownPages() throws Exception {
+        HeapFile hf = TestUtil.createHeapFile(2, TestUtil.keyMod(10, 7));
+        TransactionId tid = new TransactionId();
+        TestUtil.drain(new SeqScan(tid, hf.getId(), "t")); // learn page 0: keys 0..9
+        assertFalse(hf.getZoneMap().mayMatch(0, range(100, 101)));
+
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(100));
+        t.setField(1, new IntField(0));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertTrue(hf.getZoneMap().mayMatch(0, range(100, 101)));
+        assertEquals(1, TestUtil.drain(new SeqScan(tid, hf.getId(), "t", range(100, 101))).size());
+    }
+}